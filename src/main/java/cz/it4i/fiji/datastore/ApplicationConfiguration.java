@@ -43,14 +43,80 @@ public class ApplicationConfiguration implements Serializable{
 	private static final String DATASTORE_S3_SECRET_KEY =
 		"datastore.s3.secretKey";
 
+	private static final String DATASTORE_READ_PARALLELISM =
+		"datastore.read.parallelism";
+
+	private static final String DATASTORE_WRITE_PARALLELISM =
+		"datastore.write.parallelism";
+
+	private static final String DATASTORE_BLOCK_IO_THREADS =
+		"datastore.blockIo.threads";
+
+	private static final String DATASTORE_BLOCK_INDEX =
+		"datastore.blockIndex";
+
+	private static final String DATASTORE_BLOCK_CACHE_SIZE =
+		"datastore.blockCache.size";
+
+	private static final String DATASTORE_BLOCK_CACHE_STALENESS =
+		"datastore.blockCache.staleness";
+
+	private static final String DATASTORE_BLOCK_STATISTICS =
+		"datastore.blockStatistics";
+
+	private static final String DATASTORE_READAHEAD_DEPTH =
+		"datastore.readahead.depth";
+
+	private static final String DATASTORE_READAHEAD_BUFFER_SIZE =
+		"datastore.readahead.bufferSize";
+
+	private static final String DATASTORE_JOURNAL_PATH =
+		"datastore.journal.path";
+
+	private static final String DATASTORE_JOURNAL_PENDING_SIZE =
+		"datastore.journal.pendingSize";
+
+	private static final String DATASTORE_JOURNAL_FLUSH_THREADS =
+		"datastore.journal.flushThreads";
+
+	private static final String DATASTORE_PYRAMID_THREADS =
+		"datastore.pyramid.threads";
+
+	private static final String DATASTORE_BLOCK_DEDUPLICATION =
+		"datastore.blockDeduplication";
+
+	private static final String DATASTORE_CONSTANT_BLOCKS =
+		"datastore.constantBlocks";
+
+	private static final String DATASTORE_SERVER_CACHE_SIZE =
+		"datastore.serverCache.size";
+
+	private static final String DATASTORE_SERVER_CACHE_IDLE_TIME =
+		"datastore.serverCache.idleTime";
+
+	private static final String DATASTORE_DOWNSAMPLING =
+		"datastore.downsampling";
+
 	private static final String DATASTORE_S3_SECRET_KEY_VAR =
 		"DATATASTORE_S3_SECRET_KEY";
 
 	public static final String DEFAULT_PATH_PREFIX = "target/output";
 
+	// properties of write-behind journal are not passed to dedicated data
+	// servers, they write blocks directly, so other processes read them
 	public static final Set<String> _properties = Arrays.asList(DATASTORE_PATH,
 		DATASTORE_S3_HOST_URL, DATASTORE_S3_BUCKET, DATASTORE_S3_REGION,
-		DATASTORE_S3_ACCESS_KEY, DATASTORE_S3_SECRET_KEY).stream().collect(toSet());
+		DATASTORE_S3_ACCESS_KEY, DATASTORE_S3_SECRET_KEY,
+		DATASTORE_READ_PARALLELISM, DATASTORE_WRITE_PARALLELISM,
+		DATASTORE_BLOCK_IO_THREADS,
+		DATASTORE_BLOCK_INDEX,
+		DATASTORE_BLOCK_CACHE_SIZE, DATASTORE_BLOCK_CACHE_STALENESS,
+		DATASTORE_DOWNSAMPLING, DATASTORE_BLOCK_STATISTICS,
+		DATASTORE_READAHEAD_DEPTH, DATASTORE_READAHEAD_BUFFER_SIZE,
+		DATASTORE_PYRAMID_THREADS,
+		DATASTORE_BLOCK_DEDUPLICATION, DATASTORE_CONSTANT_BLOCKS,
+		DATASTORE_SERVER_CACHE_SIZE, DATASTORE_SERVER_CACHE_IDLE_TIME).stream()
+			.collect(toSet());
 
 	public static final String BASE_NAME = "export";
 
@@ -66,6 +132,162 @@ public class ApplicationConfiguration implements Serializable{
 		return Paths.get(getProperty(DATASTORE_PATH, DEFAULT_PATH_PREFIX));
 	}
 
+	/**
+	 * @return maximal number of blocks read concurrently for one request
+	 */
+	public int getReadParallelism() {
+		return Integer.parseInt(getProperty(DATASTORE_READ_PARALLELISM, "" + Math
+			.max(4, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * @return number of blocks of one request that are compressed and stored
+	 *         concurrently
+	 */
+	public int getWriteParallelism() {
+		return Integer.parseInt(getProperty(DATASTORE_WRITE_PARALLELISM, "" + Math
+			.max(4, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * @return number of threads of the pool that handles block requests, it
+	 *         limits number of concurrent storage operations instead of the
+	 *         number of request threads; the default is the default size of the
+	 *         Quarkus worker pool, so fewer requests are not handled at once
+	 */
+	public int getBlockIoThreads() {
+		return Integer.parseInt(getProperty(DATASTORE_BLOCK_IO_THREADS, "" + Math
+			.max(200, 8 * Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * @return true if existence of blocks is tracked in persistent index, see
+	 *         {@link BlockIndexN5Writer}
+	 */
+	public static boolean isBlockIndexEnabled() {
+		return Boolean.parseBoolean(getProperty(DATASTORE_BLOCK_INDEX, "true"));
+	}
+
+	/**
+	 * @return true if statistics of voxels are computed for every written block,
+	 *         see {@link BlockStatisticsN5Writer}
+	 */
+	public static boolean isBlockStatisticsEnabled() {
+		return Boolean.parseBoolean(getProperty(DATASTORE_BLOCK_STATISTICS,
+			"true"));
+	}
+
+	/**
+	 * @return maximal size of decoded blocks in {@link BlockCache} in bytes, 0
+	 *         disables the cache
+	 */
+	public static long getBlockCacheSize() {
+		return Long.parseLong(getProperty(DATASTORE_BLOCK_CACHE_SIZE, "" + Runtime
+			.getRuntime().maxMemory() / 10));
+	}
+
+	/**
+	 * @return time in milliseconds for which read-only sessions use cached blocks
+	 *         without revalidation, 0 means that every use is revalidated
+	 */
+	public static long getBlockCacheStaleness() {
+		return Long.parseLong(getProperty(DATASTORE_BLOCK_CACHE_STALENESS, "0"));
+	}
+
+	/**
+	 * @return maximal number of dataset servers kept by
+	 *         {@link DatasetServerRegistry}, 0 disables the registry
+	 */
+	public static long getServerCacheSize() {
+		return Long.parseLong(getProperty(DATASTORE_SERVER_CACHE_SIZE, "256"));
+	}
+
+	/**
+	 * @return time in seconds after which an unused dataset server is evicted
+	 *         from {@link DatasetServerRegistry}
+	 */
+	public static long getServerCacheIdleTime() {
+		return Long.parseLong(getProperty(DATASTORE_SERVER_CACHE_IDLE_TIME,
+			"300"));
+	}
+
+	/**
+	 * @return number of blocks prefetched ahead of a client reading blocks in a
+	 *         regular pattern, 0 disables prefetching
+	 */
+	public static int getReadaheadDepth() {
+		return Integer.parseInt(getProperty(DATASTORE_READAHEAD_DEPTH, "4"));
+	}
+
+	/**
+	 * @return maximal size of prefetched blocks waiting for clients in bytes
+	 */
+	public static long getReadaheadBufferSize() {
+		return Long.parseLong(getProperty(DATASTORE_READAHEAD_BUFFER_SIZE, "" +
+			64 * 1024 * 1024));
+	}
+
+	/**
+	 * @return directory of write-behind journal of blocks written to filesystem
+	 *         storage or null if blocks are written directly, see
+	 *         {@link WriteBehindN5Writer}
+	 */
+	public static Path getJournalPath() {
+		String result = getProperty(DATASTORE_JOURNAL_PATH);
+		return result != null ? Paths.get(result) : null;
+	}
+
+	/**
+	 * @return maximal size of journaled blocks not yet written to the storage in
+	 *         bytes, writing of next blocks waits when it is reached
+	 */
+	public static long getJournalPendingSize() {
+		return Long.parseLong(getProperty(DATASTORE_JOURNAL_PENDING_SIZE, "" +
+			256 * 1024 * 1024));
+	}
+
+	/**
+	 * @return number of threads writing journaled blocks to the storage
+	 */
+	public static int getJournalFlushThreads() {
+		return Integer.parseInt(getProperty(DATASTORE_JOURNAL_FLUSH_THREADS, "4"));
+	}
+
+	/**
+	 * @return number of threads recomputing coarser resolution levels after
+	 *         blocks are written, see {@link PyramidUpdater}
+	 */
+	public static int getPyramidThreads() {
+		return Integer.parseInt(getProperty(DATASTORE_PYRAMID_THREADS, "2"));
+	}
+
+	/**
+	 * @return true if blocks written to filesystem storage are kept in
+	 *         content-addressed store shared by versions of a dataset, see
+	 *         {@link BlockContentStore}
+	 */
+	public static boolean isBlockDeduplicationEnabled() {
+		return Boolean.parseBoolean(getProperty(DATASTORE_BLOCK_DEDUPLICATION,
+			"false"));
+	}
+
+	/**
+	 * @return true if blocks whose voxels have the same value are kept in a map
+	 *         instead of block files, see {@link ConstantBlockN5Writer}
+	 */
+	public static boolean isConstantBlocksEnabled() {
+		return Boolean.parseBoolean(getProperty(DATASTORE_CONSTANT_BLOCKS,
+			"false"));
+	}
+
+	/**
+	 * @return true if read-only sessions compute blocks missing in a resolution
+	 *         level from a finer level
+	 */
+	public static boolean isDownsamplingEnabled() {
+		return Boolean.parseBoolean(getProperty(DATASTORE_DOWNSAMPLING, "true"));
+	}
+
 	public Map<String,String> getConfiguredProperties() {
 		Map<String, String> result = new HashMap<>();
 		for (Entry<?, ?> entry : System.getProperties().entrySet()) {
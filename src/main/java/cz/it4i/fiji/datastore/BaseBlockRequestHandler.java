@@ -4,8 +4,11 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 
 import javax.ws.rs.core.Response;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -14,6 +17,13 @@ public abstract class BaseBlockRequestHandler<T> {
     private static final Pattern URL_BLOCKS_PATTERN = Pattern.compile(
             "(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)");
 
+    /**
+     * Size of one block identification in binary batch - three longs of grid
+     * position followed by time, channel and angle.
+     */
+    public static final int BINARY_BLOCK_ID_SIZE = 3 * Long.BYTES + 3 *
+            Integer.BYTES;
+
     public abstract T readBlock(DatasetServerImpl datasetServer, long x, long y,
                               long z, int time, int channel, int angle, String blocks) throws IOException;
 
@@ -58,6 +68,38 @@ public abstract class BaseBlockRequestHandler<T> {
             }
         }
 
+        /**
+         * Reads binary batch of block identifications - number of blocks
+         * followed by identifications, see {@link #BINARY_BLOCK_ID_SIZE}. All
+         * values are big-endian.
+         */
+        static List<BlockIdentification> read(DataInputStream input)
+                throws IOException
+        {
+            int count;
+            try {
+                count = input.readInt();
+                if (count <= 0) {
+                    throw new IllegalArgumentException(
+                            "Number of blocks should be positive but is " + count);
+                }
+                // count is not trusted before its identifications are read
+                List<BlockIdentification> result = new ArrayList<>(Math.min(
+                        count, 1 << 16));
+                for (int i = 0; i < count; i++) {
+                    long[] gridPosition = { input.readLong(), input.readLong(),
+                            input.readLong() };
+                    result.add(new BlockIdentification(gridPosition, input
+                            .readInt(), input.readInt(), input.readInt()));
+                }
+                return result;
+            }
+            catch (EOFException exc) {
+                throw new IllegalArgumentException(
+                        "Batch of block identifications is truncated", exc);
+            }
+        }
+
         static int getInt(Matcher matcher, int i) {
             return Integer.parseInt(matcher.group(i));
         }
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Process-wide cache of decoded blocks bounded by their size in bytes. It uses
+ * segmented LRU - a block enters probationary segment and it is promoted into
+ * protected segment when it is requested again, so a scan through many blocks
+ * evicts only blocks requested once. Every hit is revalidated against version
+ * of the stored block (see
+ * {@link RawBlockAccess#getBlockVersion(String, long[])}) unless the caller
+ * accepts a stale block. Cached blocks are shared and must not be modified.
+ */
+public final class BlockCache {
+
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private static final int BLOCK_OVERHEAD = 64;
+
+	private static BlockCache instance;
+
+	public static synchronized BlockCache getInstance() {
+		if (instance == null) {
+			instance = new BlockCache(ApplicationConfiguration.getBlockCacheSize());
+		}
+		return instance;
+	}
+
+	@EqualsAndHashCode
+	@AllArgsConstructor
+	public static final class Key {
+
+		private final String namespace;
+
+		private final String path;
+
+		private final long[] gridPosition;
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static final class Statistics {
+
+		private final long hits;
+
+		private final long misses;
+
+		private final int blocks;
+
+		private final long weight;
+
+		private final long maxWeight;
+	}
+
+	@FunctionalInterface
+	public interface VersionSupplier {
+
+		String get() throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface BlockLoader {
+
+		DataBlock<?> load() throws IOException;
+	}
+
+	@AllArgsConstructor
+	private static final class Entry {
+
+		private final DataBlock<?> block;
+
+		private final String version;
+
+		private final long weight;
+
+		private volatile long validated;
+	}
+
+	private final long maxWeight;
+
+	private final long maxProtectedWeight;
+
+	private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16,
+		0.75f, true);
+
+	private final LinkedHashMap<Key, Entry> protectedSegment =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	private long probationWeight;
+
+	private long protectedWeight;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	BlockCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		this.maxProtectedWeight = (long) (maxWeight * PROTECTED_RATIO);
+	}
+
+	public boolean isEnabled() {
+		return maxWeight > 0;
+	}
+
+	/**
+	 * @param staleness time in milliseconds for which a block is returned
+	 *          without revalidation
+	 * @param version provides current version of the stored block, null for
+	 *          missing block
+	 * @param loader reads the block when it is not cached or it was changed
+	 * @return the block or null if it does not exist
+	 */
+	public DataBlock<?> get(Key key, long staleness, VersionSupplier version,
+		BlockLoader loader) throws IOException
+	{
+		if (!isEnabled()) {
+			return loader.load();
+		}
+		long now = System.currentTimeMillis();
+		Entry entry = lookup(key);
+		if (entry != null && staleness > 0 && now - entry.validated <= staleness) {
+			hits.increment();
+			return entry.block;
+		}
+		String currentVersion = version.get();
+		if (currentVersion == null) {
+			invalidate(key);
+			return null;
+		}
+		if (entry != null && currentVersion.equals(entry.version)) {
+			entry.validated = now;
+			hits.increment();
+			return entry.block;
+		}
+		misses.increment();
+		DataBlock<?> result = loader.load();
+		if (result != null) {
+			put(key, new Entry(result, currentVersion, weigh(result), now));
+		}
+		return result;
+	}
+
+	public synchronized void invalidate(Key key) {
+		Entry entry = probation.remove(key);
+		if (entry != null) {
+			probationWeight -= entry.weight;
+		}
+		entry = protectedSegment.remove(key);
+		if (entry != null) {
+			protectedWeight -= entry.weight;
+		}
+	}
+
+	public synchronized Statistics getStatistics() {
+		return new Statistics(hits.sum(), misses.sum(), probation.size() +
+			protectedSegment.size(), probationWeight + protectedWeight, maxWeight);
+	}
+
+	private synchronized Entry lookup(Key key) {
+		Entry result = protectedSegment.get(key);
+		if (result != null) {
+			return result;
+		}
+		result = probation.remove(key);
+		if (result == null) {
+			return null;
+		}
+		probationWeight -= result.weight;
+		protectedSegment.put(key, result);
+		protectedWeight += result.weight;
+		// demoted blocks get another chance in probationary segment
+		for (Iterator<Map.Entry<Key, Entry>> iter = protectedSegment.entrySet()
+			.iterator(); protectedWeight > maxProtectedWeight && iter.hasNext();)
+		{
+			Map.Entry<Key, Entry> demoted = iter.next();
+			iter.remove();
+			protectedWeight -= demoted.getValue().weight;
+			probation.put(demoted.getKey(), demoted.getValue());
+			probationWeight += demoted.getValue().weight;
+		}
+		return result;
+	}
+
+	private synchronized void put(Key key, Entry entry) {
+		invalidate(key);
+		if (entry.weight > maxWeight) {
+			return;
+		}
+		probation.put(key, entry);
+		probationWeight += entry.weight;
+		evict(probation);
+		evict(protectedSegment);
+	}
+
+	private void evict(LinkedHashMap<Key, Entry> segment) {
+		for (Iterator<Entry> iter = segment.values().iterator(); probationWeight +
+			protectedWeight > maxWeight && iter.hasNext();)
+		{
+			Entry evicted = iter.next();
+			iter.remove();
+			if (segment == probation) {
+				probationWeight -= evicted.weight;
+			}
+			else {
+				protectedWeight -= evicted.weight;
+			}
+		}
+	}
+
+	static long weigh(DataBlock<?> block) {
+		Object data = block.getData();
+		int elementSize;
+		if (data instanceof byte[]) {
+			elementSize = Byte.BYTES;
+		}
+		else if (data instanceof short[]) {
+			elementSize = Short.BYTES;
+		}
+		else if (data instanceof int[] || data instanceof float[]) {
+			elementSize = Integer.BYTES;
+		}
+		else {
+			elementSize = Long.BYTES;
+		}
+		return (long) block.getNumElements() * elementSize + BLOCK_OVERHEAD;
+	}
+}
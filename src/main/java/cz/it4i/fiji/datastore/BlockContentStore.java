@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Content-addressed store of stored blocks shared by all versions of a dataset.
+ * Content is keyed by murmur3 hash of the stored block and a block of a
+ * version is a hard link to the content, so identical blocks of versions and
+ * positions occupy the storage once. Number of hard links of a content is its
+ * reference count, content referenced only by the store is removed when a
+ * block referencing it is replaced or when a version is deleted.
+ */
+@Log4j2
+final class BlockContentStore {
+
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{32}");
+
+	private static final String LINK_COUNT = "unix:nlink";
+
+	private static final int CONTENT_PATH_DEPTH = 2;
+
+	private final Path root;
+
+	BlockContentStore(Path root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return hash under which the stored block is kept
+	 */
+	static String hash(byte[] data) {
+		return Hashing.murmur3_128().hashBytes(data).toString();
+	}
+
+	boolean contains(String hash) {
+		return Files.isRegularFile(getPath(hash));
+	}
+
+	/**
+	 * @return stored block or null if the store does not hold the content
+	 */
+	byte[] read(String hash) throws IOException {
+		try {
+			return Files.readAllBytes(getPath(hash));
+		}
+		catch (NoSuchFileException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the block file atomically by a link to the content of data. The
+	 * hash is not collision resistant, so data are compared with the held
+	 * content before it is reused.
+	 *
+	 * @return false if the store holds different data with the same hash, the
+	 *         block is then not written
+	 */
+	boolean link(byte[] data, Path block) throws IOException {
+		String hash = hash(data);
+		Path content = getPath(hash);
+		Path replaced = getReplacedContent(block, hash);
+		Files.createDirectories(block.getParent());
+		// name of the temporary link is not a number, so it is not listed
+		Path temp = block.resolveSibling(block.getFileName() + "-" + UUID
+			.randomUUID() + ".tmp");
+		try {
+			while (true) {
+				if (!put(content, data)) {
+					return false;
+				}
+				try {
+					Files.createLink(temp, content);
+					break;
+				}
+				catch (NoSuchFileException exc) {
+					// content was collected meanwhile, it is stored again
+				}
+			}
+			Files.move(temp, block, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+		if (replaced != null) {
+			collect(replaced);
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the block and content referenced only by it.
+	 *
+	 * @return true if the block existed
+	 */
+	boolean delete(Path block) throws IOException {
+		Path replaced = getReplacedContent(block, null);
+		boolean result = Files.deleteIfExists(block);
+		if (replaced != null) {
+			collect(replaced);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes content that is not referenced by any block.
+	 */
+	void collect() throws IOException {
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(root, CONTENT_PATH_DEPTH)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				// temporary files of contents being stored are not touched
+				if (HASH_PATTERN.matcher(path.getFileName().toString()).matches() &&
+					Files.isRegularFile(path))
+				{
+					collect(path);
+				}
+			}
+		}
+	}
+
+	private boolean put(Path content, byte[] data) throws IOException {
+		if (!Files.exists(content)) {
+			Files.createDirectories(content.getParent());
+			Path temp = FilesystemN5Writer.createTempFile(content.getParent(),
+				content.getFileName().toString() + "-");
+			try {
+				Files.write(temp, data);
+				// link fails if the content was stored by other writer meanwhile
+				Files.createLink(content, temp);
+				return true;
+			}
+			catch (FileAlreadyExistsException exc) {
+				// compared below
+			}
+			finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		try {
+			return Files.size(content) == data.length && Arrays.equals(Files
+				.readAllBytes(content), data);
+		}
+		catch (NoSuchFileException exc) {
+			// collected meanwhile
+			return put(content, data);
+		}
+	}
+
+	/**
+	 * @param hash of the new content of the block or null if it is deleted
+	 * @return content referenced by the block that is going to be replaced by
+	 *         other content or null
+	 */
+	private Path getReplacedContent(Path block, String hash) throws IOException {
+		try {
+			if (getLinkCount(block) < 2) {
+				return null;
+			}
+			String replaced = hash(Files.readAllBytes(block));
+			return replaced.equals(hash) ? null : getPath(replaced);
+		}
+		catch (NoSuchFileException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Content linked concurrently with its removal stays referenced by the new
+	 * block, it is only stored again when it is written next time.
+	 */
+	private void collect(Path content) throws IOException {
+		try {
+			if (getLinkCount(content) == 1) {
+				Files.deleteIfExists(content);
+				log.debug("Unreferenced content {} removed", content);
+			}
+		}
+		catch (NoSuchFileException exc) {
+			// already removed
+		}
+	}
+
+	private Path getPath(String hash) {
+		if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+			throw new IllegalArgumentException("Hash " + hash +
+				" is not murmur3 128 bit hash in hexadecimal format");
+		}
+		return root.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static int getLinkCount(Path path) throws IOException {
+		return (Integer) Files.getAttribute(path, LINK_COUNT);
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.base.Strings;
+
+import java.util.EnumSet;
+
+import lombok.Getter;
+
+/**
+ * Format of a multi-block read response or of blocks in a write request. It is
+ * selected either by query parameter {@link DatasetServerEndpoint#FORMAT_PARAM}
+ * or by header {@link DatasetServerEndpoint#FORMAT_HEADER}. Writing supports
+ * formats {@link #PLAIN} and {@link #STORED}.
+ */
+public enum BlockFormat {
+
+		/**
+		 * Blocks in requested order, every one is prefixed by its size.
+		 */
+		PLAIN("plain"),
+
+		/**
+		 * Blocks in order of their availability, every frame carries grid
+		 * position, time, channel and angle of the block.
+		 */
+		FRAMED("framed"),
+
+		/**
+		 * Blocks in requested order exactly as they are stored - N5 block header
+		 * followed by data compressed by the compression reported in header
+		 * {@link DatasetServerEndpoint#COMPRESSION_HEADER}. Every block is prefixed
+		 * by its length in bytes, -1 for a missing block. Blocks written in this
+		 * format are prefixed by length and CRC32C of the block and are stored
+		 * without recompression.
+		 */
+		STORED("stored");
+
+	@Getter
+	private final String name;
+
+	private BlockFormat(String name) {
+		this.name = name;
+	}
+
+	public static BlockFormat of(String queryValue, String headerValue) {
+		String value = Strings.isNullOrEmpty(queryValue) ? headerValue
+			: queryValue;
+		if (Strings.isNullOrEmpty(value)) {
+			return PLAIN;
+		}
+		for (BlockFormat format : EnumSet.allOf(BlockFormat.class)) {
+			if (format.name.equalsIgnoreCase(value)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Format " + value +
+			" is not supported");
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import cz.it4i.fiji.datastore.RawBlockAccess.StoredBlockConsumer;
+
+/**
+ * Stored sizes of all blocks in the grid of one dataset (setup, timepoint and
+ * level) of one version. Size 0 marks a missing block. Blocks are ordered with
+ * x as the fastest varying coordinate.
+ */
+class BlockIndex {
+
+	private static final int MAGIC = 0x42494458;
+
+	private final long[] gridDimensions;
+
+	private final int[] storedSizes;
+
+	BlockIndex(long[] gridDimensions) {
+		this.gridDimensions = gridDimensions;
+		long numBlocks = 1;
+		for (long dimension : gridDimensions) {
+			numBlocks *= dimension;
+		}
+		if (numBlocks > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Grid " + Arrays.toString(
+				gridDimensions) + " is too large for index");
+		}
+		storedSizes = new int[(int) numBlocks];
+	}
+
+	static long[] getGridDimensions(DatasetAttributes attributes) {
+		long[] dimensions = attributes.getDimensions();
+		int[] blockSize = attributes.getBlockSize();
+		long[] result = new long[dimensions.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (dimensions[i] + blockSize[i] - 1) / blockSize[i];
+		}
+		return result;
+	}
+
+	/**
+	 * @return index read from its serialized form or null if the form does not
+	 *         match the grid
+	 */
+	static BlockIndex fromByteArray(byte[] data, long[] gridDimensions) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if (buffer.remaining() < Integer.BYTES + gridDimensions.length *
+			Long.BYTES || buffer.getInt() != MAGIC)
+		{
+			return null;
+		}
+		for (long dimension : gridDimensions) {
+			if (buffer.getLong() != dimension) {
+				return null;
+			}
+		}
+		BlockIndex result = new BlockIndex(gridDimensions);
+		if (buffer.remaining() != result.storedSizes.length * Integer.BYTES) {
+			return null;
+		}
+		buffer.asIntBuffer().get(result.storedSizes);
+		return result;
+	}
+
+	synchronized byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES +
+			gridDimensions.length * Long.BYTES + storedSizes.length * Integer.BYTES);
+		buffer.putInt(MAGIC);
+		for (long dimension : gridDimensions) {
+			buffer.putLong(dimension);
+		}
+		buffer.asIntBuffer().put(storedSizes);
+		return buffer.array();
+	}
+
+	long[] getGridDimensions() {
+		return gridDimensions.clone();
+	}
+
+	boolean contains(long[] gridPosition) {
+		if (gridPosition.length != gridDimensions.length) {
+			return false;
+		}
+		for (int i = 0; i < gridPosition.length; i++) {
+			if (gridPosition[i] < 0 || gridDimensions[i] <= gridPosition[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return stored size of block or 0 if the block does not exist
+	 */
+	synchronized int getStoredSize(long[] gridPosition) {
+		return storedSizes[getIndex(gridPosition)];
+	}
+
+	synchronized void setStoredSize(long[] gridPosition, long storedSize) {
+		storedSizes[getIndex(gridPosition)] = (int) Math.min(Math.max(storedSize,
+			0), Integer.MAX_VALUE);
+	}
+
+	synchronized void forEach(StoredBlockConsumer consumer) {
+		for (int i = 0; i < storedSizes.length; i++) {
+			if (storedSizes[i] > 0) {
+				consumer.accept(getGridPosition(i), storedSizes[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes grid dimensions as longs followed by bitmap of existing blocks - bit
+	 * of block i is bit (i % 8) of byte (i / 8). If requested, stored sizes of
+	 * existing blocks follow as ints in the same order.
+	 */
+	synchronized void writeOccupancy(OutputStream output, boolean withSizes)
+		throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(output);
+		for (long dimension : gridDimensions) {
+			dos.writeLong(dimension);
+		}
+		BitSet bitmap = new BitSet(storedSizes.length);
+		for (int i = 0; i < storedSizes.length; i++) {
+			if (storedSizes[i] > 0) {
+				bitmap.set(i);
+			}
+		}
+		dos.write(Arrays.copyOf(bitmap.toByteArray(), (storedSizes.length + 7) /
+			8));
+		if (withSizes) {
+			for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+				dos.writeInt(storedSizes[i]);
+			}
+		}
+		dos.flush();
+	}
+
+	private int getIndex(long[] gridPosition) {
+		long result = 0;
+		for (int i = gridDimensions.length - 1; i >= 0; i--) {
+			result = result * gridDimensions[i] + gridPosition[i];
+		}
+		return (int) result;
+	}
+
+	private long[] getGridPosition(int index) {
+		long[] result = new long[gridDimensions.length];
+		long rest = index;
+		for (int i = 0; i < result.length; i++) {
+			result[i] = rest % gridDimensions[i];
+			rest /= gridDimensions[i];
+		}
+		return result;
+	}
+}
@@ -0,0 +1,510 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps {@link BlockIndex} for every dataset of one version and answers
+ * requests for missing blocks from it without touching the storage. Indexes
+ * are shared by all writers in the process and persisted as sidecar files.
+ * Before the first change after an index is persisted the index stores its own
+ * dirty marker, so an index that may have missed a write is rebuilt from
+ * listing of blocks when it is loaded next time. A marker holds time of its
+ * last refresh, a marker not refreshed for {@link #STALE_MARKER_MINUTES} is
+ * left by a process that ended and it is deleted after the index is rebuilt.
+ * <p>
+ * Other processes (e.g. a server writing to other resolutions) change blocks
+ * through their own indexes. A cached index therefore checks the sidecar files
+ * at most once per {@link #REVALIDATION_INTERVAL_MILLIS}: while a dirty marker
+ * of other process exists, blocks are looked up in the storage and an index
+ * persisted by other process is loaded again. An index changed while other
+ * process changes blocks or after other process persisted its index is not
+ * persisted as it is, it is rebuilt from listing of blocks first. Only the own
+ * marker is deleted after the index is persisted.
+ */
+@Log4j2
+public class BlockIndexN5Writer extends N5WriterDecorator {
+
+	static final String INDEX_SIDECAR = "block-index";
+
+	/**
+	 * Prefix of names of dirty markers
+	 */
+	static final String DIRTY_SIDECAR = "block-index-dirty";
+
+	private static final long FLUSH_INTERVAL_SECONDS = 1;
+
+	private static final long EXPIRATION_MINUTES = 10;
+
+	private static final long REVALIDATION_INTERVAL_MILLIS = 1000;
+
+	private static final long MARKER_REFRESH_MILLIS = 60 * 1000;
+
+	private static final long STALE_MARKER_MINUTES = 10;
+
+	private static final Cache<String, Optional<PersistedIndex>> INDEXES =
+		CacheBuilder.newBuilder().expireAfterAccess(EXPIRATION_MINUTES,
+			TimeUnit.MINUTES).removalListener(BlockIndexN5Writer::onRemoval).build();
+
+	private static final ScheduledExecutorService FLUSHER = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+			"block-index-flusher").setDaemon(true).build());
+
+	static {
+		FLUSHER.scheduleWithFixedDelay(BlockIndexN5Writer::flushAll,
+			FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public static N5Writer decorate(N5Writer writer) {
+		if (!ApplicationConfiguration.isBlockIndexEnabled()) {
+			return writer;
+		}
+		return new BlockIndexN5Writer(writer);
+	}
+
+	/**
+	 * Drops indexes of all versions stored under the base path without
+	 * persisting them. It is used when versions are moved or deleted.
+	 */
+	public static void invalidate(String basePathPrefix) {
+		INDEXES.asMap().keySet().removeIf(key -> key.startsWith(basePathPrefix));
+	}
+
+	private BlockIndexN5Writer(N5Writer writer) {
+		super(writer);
+	}
+
+	@Override
+	public DataBlock<?> readBlock(String pathName,
+		DatasetAttributes datasetAttributes, long[] gridPosition) throws IOException
+	{
+		if (isMissing(pathName, gridPosition)) {
+			return null;
+		}
+		return super.readBlock(pathName, datasetAttributes, gridPosition);
+	}
+
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		if (isMissing(pathName, gridPosition)) {
+			return null;
+		}
+		return super.readRawBlock(pathName, gridPosition);
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		if (isMissing(pathName, gridPosition)) {
+			return null;
+		}
+		return super.getBlockVersion(pathName, gridPosition);
+	}
+
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		PersistedIndex persisted = getIndex(pathName);
+		if (persisted == null || !persisted.index.contains(gridPosition)) {
+			return super.getStoredBlockSize(pathName, gridPosition);
+		}
+		int result = persisted.index.getStoredSize(gridPosition);
+		return result > 0 ? result : -1;
+	}
+
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		PersistedIndex persisted = getIndex(pathName);
+		if (persisted == null) {
+			super.listBlocks(pathName, consumer);
+			return;
+		}
+		persisted.index.forEach(consumer);
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		long[] gridPosition = dataBlock.getGridPosition();
+		changeBlock(pathName, gridPosition, () -> super.writeBlock(pathName,
+			datasetAttributes, dataBlock));
+	}
+
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		changeBlock(pathName, gridPosition, () -> super.writeRawBlock(pathName,
+			gridPosition, data));
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		boolean[] result = { false };
+		changeBlock(pathName, gridPosition, () -> result[0] = super.deleteBlock(
+			pathName, gridPosition));
+		return result[0];
+	}
+
+	private interface BlockChange {
+
+		void run() throws IOException;
+	}
+
+	private void changeBlock(String pathName, long[] gridPosition,
+		BlockChange change) throws IOException
+	{
+		PersistedIndex persisted = getIndex(pathName, true);
+		if (persisted == null || !persisted.index.contains(gridPosition)) {
+			change.run();
+			return;
+		}
+		persisted.beginChange();
+		boolean success = false;
+		try {
+			change.run();
+			persisted.index.setStoredSize(gridPosition, super.getStoredBlockSize(
+				pathName, gridPosition));
+			success = true;
+		}
+		finally {
+			persisted.endChange(success);
+		}
+	}
+
+	private boolean isMissing(String pathName, long[] gridPosition) {
+		PersistedIndex persisted = getIndex(pathName);
+		return persisted != null && persisted.index.contains(gridPosition) &&
+			persisted.index.getStoredSize(gridPosition) == 0;
+	}
+
+	private PersistedIndex getIndex(String pathName) {
+		return getIndex(pathName, false);
+	}
+
+	/**
+	 * @param forChange the index is going to be changed, so it is returned even
+	 *          if it is being changed by other process, it is rebuilt before
+	 *          it is persisted then
+	 * @return index or null if there is no index for the dataset or if it is
+	 *         being changed by other process, blocks are looked up in the
+	 *         storage then
+	 */
+	private PersistedIndex getIndex(String pathName, boolean forChange) {
+		String key = getKey(pathName);
+		try {
+			while (true) {
+				Optional<PersistedIndex> result = INDEXES.get(key, () -> Optional
+					.ofNullable(load(pathName)));
+				if (!result.isPresent()) {
+					return null;
+				}
+				switch (result.get().revalidate()) {
+					case CURRENT:
+						return result.get();
+					case CHANGING_ELSEWHERE:
+						return forChange ? result.get() : null;
+					default:
+						INDEXES.asMap().remove(key, result);
+				}
+			}
+		}
+		catch (ExecutionException | UncheckedExecutionException exc) {
+			log.warn("Loading of block index for " + pathName, exc.getCause());
+			return null;
+		}
+		catch (IOException exc) {
+			log.warn("Revalidation of block index for " + pathName, exc);
+			return null;
+		}
+	}
+
+	private PersistedIndex load(String pathName) throws IOException {
+		DatasetAttributes attributes = super.getDatasetAttributes(pathName);
+		if (attributes == null) {
+			return null;
+		}
+		long[] gridDimensions = BlockIndex.getGridDimensions(attributes);
+		// version is obtained before reading, so a concurrent write is noticed
+		String version = getSidecarVersion(pathName, INDEX_SIDECAR);
+		if (listSidecars(pathName, DIRTY_SIDECAR).isEmpty()) {
+			byte[] data = readSidecar(pathName, INDEX_SIDECAR);
+			if (data != null) {
+				return new PersistedIndex(BlockIndex.fromByteArray(data,
+					gridDimensions), this, pathName, version);
+			}
+		}
+
+		BlockIndex index;
+		try {
+			index = new BlockIndex(gridDimensions);
+		}
+		catch (IllegalArgumentException exc) {
+			log.warn("Block index for {} not created - {}", pathName, exc
+				.getMessage());
+			return null;
+		}
+		// the index is built from listing of blocks when it is persisted
+		PersistedIndex result = new PersistedIndex(index, this, pathName,
+			version);
+		result.dirty = true;
+		result.incomplete = true;
+		result.flush();
+		return result;
+	}
+
+	private BlockIndex buildIndex(String pathName, long[] gridDimensions)
+		throws IOException
+	{
+		BlockIndex result = new BlockIndex(gridDimensions);
+		super.listBlocks(pathName, (gridPosition, size) -> {
+			if (result.contains(gridPosition)) {
+				result.setStoredSize(gridPosition, size);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return true if the marker was not refreshed by its owner for
+	 *         {@link #STALE_MARKER_MINUTES} or if it is an empty marker stored by
+	 *         former versions
+	 */
+	private boolean isStale(String pathName, String marker) throws IOException {
+		byte[] data = readSidecar(pathName, marker);
+		if (data == null) {
+			return false;
+		}
+		return data.length != Long.BYTES || System.currentTimeMillis() - ByteBuffer
+			.wrap(data).getLong() > TimeUnit.MINUTES.toMillis(STALE_MARKER_MINUTES);
+	}
+
+	private String getKey(String pathName) {
+		return getBasePath() + ":" + (pathName.startsWith("/") ? pathName
+			.substring(1) : pathName);
+	}
+
+	private static void flushAll() {
+		INDEXES.cleanUp();
+		for (Optional<PersistedIndex> persisted : INDEXES.asMap().values()) {
+			persisted.ifPresent(PersistedIndex::flush);
+		}
+	}
+
+	private static void onRemoval(
+		RemovalNotification<String, Optional<PersistedIndex>> notification)
+	{
+		if (notification.getCause() == RemovalCause.EXPLICIT) {
+			return;
+		}
+		notification.getValue().ifPresent(PersistedIndex::flush);
+	}
+
+	private enum Validity {
+		CURRENT, CHANGING_ELSEWHERE, PERSISTED_ELSEWHERE
+	}
+
+	private static class PersistedIndex {
+
+		private volatile BlockIndex index;
+
+		private final BlockIndexN5Writer storage;
+
+		private final String pathName;
+
+		private final String marker = DIRTY_SIDECAR + "-" + UUID.randomUUID();
+
+		/**
+		 * Version of the index sidecar that this index corresponds to
+		 */
+		private String version;
+
+		private boolean dirty;
+
+		/**
+		 * A change failed, so the index may differ from the storage until it is
+		 * rebuilt
+		 */
+		private boolean incomplete;
+
+		private long markedAt;
+
+		private int pendingChanges;
+
+		private long validatedAt;
+
+		private Validity validity = Validity.CURRENT;
+
+		PersistedIndex(BlockIndex index, BlockIndexN5Writer storage,
+			String pathName, String version)
+		{
+			this.index = index;
+			this.storage = storage;
+			this.pathName = pathName;
+			this.version = version;
+			this.validatedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * Changes of other processes are not checked while this index has
+		 * unpersisted changes, they are detected when it is persisted. Stale
+		 * markers make the index loaded again, so it is rebuilt.
+		 */
+		synchronized Validity revalidate() throws IOException {
+			if (incomplete) {
+				return Validity.CHANGING_ELSEWHERE;
+			}
+			long now = System.currentTimeMillis();
+			if (dirty || now - validatedAt < REVALIDATION_INTERVAL_MILLIS) {
+				return validity;
+			}
+			validatedAt = now;
+			List<String> markers = getOtherMarkers();
+			if (!markers.isEmpty()) {
+				validity = Validity.PERSISTED_ELSEWHERE;
+				for (String other : markers) {
+					if (!storage.isStale(pathName, other)) {
+						validity = Validity.CHANGING_ELSEWHERE;
+						break;
+					}
+				}
+			}
+			else if (!Objects.equals(version, storage.getSidecarVersion(pathName,
+				INDEX_SIDECAR)))
+			{
+				validity = Validity.PERSISTED_ELSEWHERE;
+			}
+			else {
+				validity = Validity.CURRENT;
+			}
+			return validity;
+		}
+
+		synchronized void beginChange() throws IOException {
+			if (!dirty) {
+				mark();
+				dirty = true;
+			}
+			pendingChanges++;
+		}
+
+		synchronized void endChange(boolean success) {
+			pendingChanges--;
+			if (!success) {
+				// the own marker stays stored until the index is rebuilt
+				incomplete = true;
+			}
+		}
+
+		/**
+		 * Persists the index. It is rebuilt from listing of blocks first if other
+		 * process has changed blocks since the index was loaded, so changes of
+		 * other processes are not overwritten.
+		 */
+		synchronized void flush() {
+			if (!dirty) {
+				return;
+			}
+			try {
+				if (pendingChanges > 0) {
+					if (System.currentTimeMillis() - markedAt > MARKER_REFRESH_MILLIS) {
+						mark();
+					}
+					return;
+				}
+				while (true) {
+					String current = storage.getSidecarVersion(pathName, INDEX_SIDECAR);
+					List<String> markers = getOtherMarkers();
+					BlockIndex persisting = index;
+					boolean rebuilt = incomplete || !markers.isEmpty() ||
+						!Objects.equals(version, current);
+					if (rebuilt) {
+						persisting = storage.buildIndex(pathName, index
+							.getGridDimensions());
+					}
+					if (!Objects.equals(current, storage.getSidecarVersion(pathName,
+						INDEX_SIDECAR)))
+					{
+						// other process persisted its index while blocks were listed
+						continue;
+					}
+					storage.writeSidecar(pathName, INDEX_SIDECAR, persisting
+						.toByteArray());
+					version = storage.getSidecarVersion(pathName, INDEX_SIDECAR);
+					index = persisting;
+					incomplete = false;
+					if (rebuilt) {
+						for (String other : markers) {
+							if (storage.isStale(pathName, other)) {
+								storage.deleteSidecar(pathName, other);
+							}
+						}
+						if (!markers.containsAll(getOtherMarkers())) {
+							// other process began a change while blocks were listed
+							return;
+						}
+					}
+					break;
+				}
+				storage.deleteSidecar(pathName, marker);
+				dirty = false;
+				validatedAt = System.currentTimeMillis();
+				validity = Validity.CURRENT;
+			}
+			catch (IOException exc) {
+				log.warn("Persisting of block index for " + pathName, exc);
+			}
+		}
+
+		private void mark() throws IOException {
+			long now = System.currentTimeMillis();
+			storage.writeSidecar(pathName, marker, ByteBuffer.allocate(Long.BYTES)
+				.putLong(now).array());
+			markedAt = now;
+		}
+
+		private List<String> getOtherMarkers() throws IOException {
+			List<String> result = storage.listSidecars(pathName, DIRTY_SIDECAR);
+			result.remove(marker);
+			return result;
+		}
+	}
+}
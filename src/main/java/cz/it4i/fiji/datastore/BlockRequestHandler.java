@@ -7,19 +7,46 @@
  ******************************************************************************/
 package cz.it4i.fiji.datastore;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 
@@ -35,64 +62,839 @@ public class BlockRequestHandler extends BaseBlockRequestHandler<Response> {
 	private static final Pattern URL_BLOCKS_PATTERN = Pattern.compile(
 		"(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)/(\\p{Digit}+)");
 
+	@Inject
+	ApplicationConfiguration configuration;
+
+	private ExecutorService readExecutor;
+
+	private ExecutorService blockIoExecutor;
+
+	private ExecutorService writeExecutor;
+
+	private int writeParallelism;
+
+	private ForkJoinPool projectionPool;
+
+	private int readParallelism;
+
+	@PostConstruct
+	void init() {
+		readParallelism = configuration.getReadParallelism();
+		readExecutor = Executors.newFixedThreadPool(readParallelism,
+			new ThreadFactoryBuilder().setNameFormat("block-reader-%d").setDaemon(
+				true).build());
+		projectionPool = new ForkJoinPool(readParallelism);
+		writeParallelism = configuration.getWriteParallelism();
+		writeExecutor = Executors.newFixedThreadPool(writeParallelism,
+			new ThreadFactoryBuilder().setNameFormat("block-writer-%d").setDaemon(
+				true).build());
+		blockIoExecutor = Executors.newFixedThreadPool(configuration
+			.getBlockIoThreads(), new ThreadFactoryBuilder().setNameFormat(
+				"block-io-%d").setDaemon(true).build());
+	}
+
+	@PreDestroy
+	void destroy() {
+		readExecutor.shutdownNow();
+		projectionPool.shutdownNow();
+		blockIoExecutor.shutdownNow();
+		writeExecutor.shutdownNow();
+	}
+
+	/**
+	 * Handles a block request on a thread of the block I/O pool. The request is
+	 * suspended until the response is written, so request threads are not held
+	 * by slow storage and the number of concurrent requests is limited by the
+	 * pool instead of the request threads. Exceptions thrown by the handling
+	 * are passed unchanged to exception mappers.
+	 */
+	public CompletionStage<Response> handleAsync(Supplier<Response> handling) {
+		CompletableFuture<Response> result = new CompletableFuture<>();
+		blockIoExecutor.execute(() -> {
+			try {
+				result.complete(handling.get());
+			}
+			catch (RuntimeException exc) {
+				result.completeExceptionally(exc);
+			}
+		});
+		return result;
+	}
+
 	@Override
 	public Response readBlock(DatasetServerImpl datasetServer, long x, long y,
 		long z, int time, int channel, int angle, String blocks)
 	{
+		return readBlock(datasetServer, x, y, z, time, channel, angle, blocks,
+			BlockFormat.PLAIN, TransferEncoding.NATIVE, null,
+			Readahead.ANONYMOUS_SESSION);
+	}
+
+	/**
+	 * @param request used for evaluation of conditional request against entity
+	 *          tag derived from versions of requested blocks, may be null
+	 * @param session client session the blocks are read in, see
+	 *          {@link Readahead#getSession(String, String)}
+	 */
+	public Response readBlock(DatasetServerImpl datasetServer, long x, long y,
+		long z, int time, int channel, int angle, String blocks,
+		BlockFormat format, TransferEncoding encoding, Request request,
+		String session)
+	{
+		List<BlockIdentification> blocksId = new LinkedList<>();
+		blocksId.add(new BlockIdentification(new long[] { x, y, z }, time,
+			channel, angle));
+		BlockIdentification.extract(blocks, blocksId);
+		if (request == null) {
+			return readBlocks(datasetServer, blocksId, format, encoding, null,
+				session);
+		}
+		EntityTag entityTag = getEntityTag(datasetServer, blocksId, format,
+			encoding);
+		ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+		if (notModified != null) {
+			return notModified.tag(entityTag).build();
+		}
+		return readBlocks(datasetServer, blocksId, format, encoding, entityTag,
+			session);
+	}
+
+	/**
+	 * Reads blocks identified by binary batch in request body, see
+	 * {@link BlockIdentification#read(DataInputStream)}.
+	 */
+	public Response readBlocks(DatasetServerImpl datasetServer,
+		InputStream inputStream, BlockFormat format, TransferEncoding encoding,
+		String session)
+	{
+		List<BlockIdentification> blocksId;
 		try {
-			List<BlockIdentification> blocksId = new LinkedList<>();
-			blocksId.add(new BlockIdentification(new long[] { x, y, z }, time,
-				channel, angle));
-			BlockIdentification.extract(blocks, blocksId);
-			DataType dataType = null;
-			try (DataBlockInputStream result = new DataBlockInputStream()) {
-				for (BlockIdentification bi : blocksId) {
-					long[] position = new long[] { bi.gridPosition[0], bi.gridPosition[1],
-						bi.gridPosition[2] };
-					DataBlock<?> block = datasetServer.read(position, bi.time, bi.channel,
-						bi.angle);
-					// block do not exist - return empty block having size [-1, -1, -1]
-					if (block == null) {
-						if (dataType == null) {
-							dataType = datasetServer.getType(time, channel, angle);
-						}
-						block = dataType.createDataBlock(new int[] { -1, -1, -1 }, position,
-							0);
-					}
-					result.add(block);
+			blocksId = BlockIdentification.read(new DataInputStream(
+				new BufferedInputStream(inputStream)));
+		}
+		catch (IOException exc) {
+			log.warn("readBlocks", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return readBlocks(datasetServer, blocksId, format, encoding, null,
+			session);
+	}
+
+	/**
+	 * @param entityTag tag of the response, may be null
+	 */
+	private Response readBlocks(DatasetServerImpl datasetServer,
+		List<BlockIdentification> blocksId, BlockFormat format,
+		TransferEncoding encoding, EntityTag entityTag, String session)
+	{
+		if (format == BlockFormat.STORED && !encoding.isNative()) {
+			throw new IllegalArgumentException("Format " + format.getName() +
+				" cannot be combined with other than native encoding");
+		}
+		StreamingOutput result;
+		ResponseBuilder responseBuilder = Response.ok();
+		if (!encoding.isNative()) {
+			BlockIdentification first = blocksId.get(0);
+			responseBuilder.header(DatasetServerEndpoint.DATA_TYPE_HEADER, encoding
+				.getTypeName(datasetServer.getType(first.time, first.channel,
+					first.angle))).header(DatasetServerEndpoint.BYTE_ORDER_HEADER,
+						encoding.getByteOrderName());
+		}
+		switch (format) {
+			case FRAMED:
+				result = new FramedBlockStreamingOutput(datasetServer, blocksId,
+					readExecutor, readParallelism, encoding, session);
+				break;
+			case STORED:
+				BlockIdentification first = blocksId.get(0);
+				result = new StoredBlockStreamingOutput(datasetServer, blocksId);
+				responseBuilder.header(DatasetServerEndpoint.COMPRESSION_HEADER,
+					getCompression(datasetServer, first).getType());
+				break;
+			default:
+				try {
+					result = new DataBlockStreamingOutput(datasetServer, blocksId,
+						encoding, session).open();
 				}
-				return Response.ok(result).type(MediaType.APPLICATION_OCTET_STREAM)
-					.build();
-			}
+				catch (IOException exc) {
+					log.warn("read", exc);
+					return Response.serverError().entity(exc.getMessage()).type(
+						MediaType.TEXT_PLAIN).build();
+				}
+		}
+		if (entityTag != null) {
+			responseBuilder.tag(entityTag);
+		}
+		return responseBuilder.entity(result).type(
+			MediaType.APPLICATION_OCTET_STREAM).header(
+				DatasetServerEndpoint.FORMAT_HEADER, format.getName()).build();
+	}
+
+	/**
+	 * Region is sent in the same form as one block - its size followed by its
+	 * voxels.
+	 */
+	public Response readRegion(DatasetServerImpl datasetServer, long[] min,
+		int[] size, int time, int channel, int angle, TransferEncoding encoding)
+	{
+		DataBlock<?> region;
+		try {
+			region = datasetServer.readRegion(min, size, time, channel, angle);
 		}
-		catch (IOException | NullPointerException exc) {
-			log.warn("read", exc);
+		catch (IOException exc) {
+			log.warn("readRegion", exc);
 			return Response.serverError().entity(exc.getMessage()).type(
 				MediaType.TEXT_PLAIN).build();
 		}
+		DataType dataType = datasetServer.getType(time, channel, angle);
+		StreamingOutput result = output -> {
+			DataBlockStreamingOutput.writeBlock(output, region, dataType, encoding);
+			output.flush();
+		};
+		return Response.ok(result).type(MediaType.APPLICATION_OCTET_STREAM).header(
+			DatasetServerEndpoint.DATA_TYPE_HEADER, encoding.getTypeName(dataType))
+			.header(DatasetServerEndpoint.BYTE_ORDER_HEADER, encoding.getByteOrderName())
+			.build();
+	}
+
+	/**
+	 * Region is sent in the same form as it is read. Blocks intersected by the
+	 * region are written in parallel, blocks intersected only partially are
+	 * updated on the server.
+	 */
+	public Response writeRegion(DatasetServerImpl datasetServer, long[] min,
+		int[] size, int time, int channel, int angle, InputStream inputStream)
+	{
+		try {
+			datasetServer.writeRegion(min, size, time, channel, angle,
+				new BufferedInputStream(inputStream), writeExecutor);
+		}
+		catch (IOException exc) {
+			log.warn("writeRegion", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok().build();
+	}
+
+	/**
+	 * Projection is sent in the same form as a region, type of its voxels is in
+	 * {@link DatasetServerEndpoint#DATA_TYPE_HEADER}.
+	 * 
+	 * @param operation max, min, sum or mean
+	 * @param axis x, y or z
+	 */
+	public Response readProjection(DatasetServerImpl datasetServer, long[] min,
+		int[] size, int time, int channel, int angle, String operation,
+		String axis)
+	{
+		Projection.Operation projectionOperation = Projection.Operation.of(
+			operation);
+		DataBlock<?> projection;
+		try {
+			projection = datasetServer.project(min, size, time, channel, angle,
+				projectionOperation, Projection.getAxis(axis), projectionPool);
+		}
+		catch (IOException exc) {
+			log.warn("readProjection", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		StreamingOutput result = output -> {
+			DataBlockStreamingOutput.writeBlock(output, projection);
+			output.flush();
+		};
+		return Response.ok(result).type(MediaType.APPLICATION_OCTET_STREAM).header(
+			DatasetServerEndpoint.DATA_TYPE_HEADER, projectionOperation.getResultType(
+				datasetServer.getType(time, channel, angle)).toString()).build();
+	}
+
+	/**
+	 * @param min first voxel of the region or null for the whole level
+	 * @param size size of the region or null for the whole level
+	 */
+	public Response readStatistics(DatasetServerImpl datasetServer, long[] min,
+		int[] size, int time, int channel, int angle)
+	{
+		BlockStatistics statistics;
+		try {
+			statistics = datasetServer.getStatistics(min, size, time, channel,
+				angle);
+		}
+		catch (IOException exc) {
+			log.warn("readStatistics", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok(statistics).type(MediaType.APPLICATION_JSON_TYPE)
+			.build();
+	}
+
+	/**
+	 * Finds blocks by bounds of their minimal and maximal values. Bounds are
+	 * exclusive and the bounds that are null are not checked.
+	 */
+	public Response findBlocks(DatasetServerImpl datasetServer, int time,
+		int channel, int angle, Double minAbove, Double minBelow, Double maxAbove,
+		Double maxBelow)
+	{
+		Predicate<BlockStatistics> filter = statistics -> (minAbove == null ||
+			statistics.getMin() > minAbove) && (minBelow == null || statistics
+				.getMin() < minBelow) && (maxAbove == null || statistics
+					.getMax() > maxAbove) && (maxBelow == null || statistics
+						.getMax() < maxBelow);
+		List<BlockStatistics.Entry> result;
+		try {
+			result = datasetServer.findBlocks(time, channel, angle, filter);
+		}
+		catch (IOException exc) {
+			log.warn("findBlocks", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok(result).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	/**
+	 * @see BlockIndex#writeOccupancy(java.io.OutputStream, boolean)
+	 */
+	public Response readOccupancy(DatasetServerImpl datasetServer, int time,
+		int channel, int angle, boolean withSizes)
+	{
+		BlockIndex occupancy;
+		try {
+			occupancy = datasetServer.getOccupancy(time, channel, angle);
+		}
+		catch (IOException exc) {
+			log.warn("readOccupancy", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		StreamingOutput result = output -> occupancy.writeOccupancy(output,
+			withSizes);
+		return Response.ok(result).type(MediaType.APPLICATION_OCTET_STREAM)
+			.build();
+	}
+
+	/**
+	 * Announces that blocks of the box are going to be read slice by slice
+	 * along the axis, so they are prefetched ahead of the client.
+	 *
+	 * @param min first block of the box in block grid coordinates
+	 * @param size size of the box in blocks
+	 */
+	public Response hintReadahead(DatasetServerImpl datasetServer, long[] min,
+		long[] size, int time, int channel, int angle, String axis,
+		String session)
+	{
+		datasetServer.hintReadahead(new Readahead.Hint(min, size, Projection
+			.getAxis(axis)), time, channel, angle, session);
+		return Response.ok().build();
+	}
+
+	/**
+	 * Cancels prefetching of the stream of the session only.
+	 */
+	public Response cancelReadahead(DatasetServerImpl datasetServer, int time,
+		int channel, int angle, String session)
+	{
+		datasetServer.cancelReadahead(time, channel, angle, session);
+		return Response.ok().build();
+	}
+
+	private static EntityTag getEntityTag(DatasetServerImpl datasetServer,
+		List<BlockIdentification> blocksId, BlockFormat format,
+		TransferEncoding encoding)
+	{
+		EntityTagBuilder builder = new EntityTagBuilder(encoding.isNative() ? format
+			.getName() : format.getName() + ":" + encoding.getName());
+		try {
+			for (BlockIdentification blockId : blocksId) {
+				builder.add(blockId.toString(), datasetServer.getBlockVersion(
+					blockId.gridPosition, blockId.time, blockId.channel, blockId.angle));
+			}
+		}
+		catch (IOException exc) {
+			throw new InternalServerErrorException(exc);
+		}
+		return builder.build();
+	}
+
+	private static Compression getCompression(DatasetServerImpl datasetServer,
+		BlockIdentification blockId)
+	{
+		try {
+			return datasetServer.getCompression(blockId.time, blockId.channel,
+				blockId.angle);
+		}
+		catch (IOException exc) {
+			throw new InternalServerErrorException(exc);
+		}
 	}
 
 	@Override
 	public Response writeBlock(DatasetServerImpl datasetServer, long x, long y,
 		long z, int time, int channel, int angle, String blocks,
 		InputStream inputStream)
+	{
+		return writeBlock(datasetServer, x, y, z, time, channel, angle, blocks,
+			BlockFormat.PLAIN, null, inputStream);
+	}
+
+	/**
+	 * Blocks in format {@link BlockFormat#STORED} are sent already compressed,
+	 * see {@link N5Access#parseStored(long[], int, int, int, InputStream)}.
+	 *
+	 * @param ifMatch value of {@link HttpHeaders#IF_MATCH} or null, see
+	 *          {@link #writeBlockIfMatch}
+	 */
+	public Response writeBlock(DatasetServerImpl datasetServer, long x, long y,
+		long z, int time, int channel, int angle, String blocks,
+		BlockFormat format, String ifMatch, InputStream inputStream)
 	{
 		List<BlockIdentification> blocksId = new LinkedList<>();
 		blocksId.add(new BlockIdentification(new long[] { x, y, z }, time, channel,
 			angle));
 		BlockIdentification.extract(blocks, blocksId);
+		if (ifMatch != null) {
+			if (blocksId.size() != 1) {
+				throw new IllegalArgumentException(HttpHeaders.IF_MATCH +
+					" is supported only for writing of one block");
+			}
+			return writeBlockIfMatch(datasetServer, blocksId.get(0), format, ifMatch,
+				inputStream);
+		}
+		return writeBlocks(datasetServer, blocksId, format, inputStream);
+	}
+
+	/**
+	 * The block is written only if entity tag of the stored block read in the
+	 * same format matches the precondition, otherwise 412 is returned. The tag
+	 * is compared while the block is locked for writing. Response carries
+	 * entity tag of the written block, so a client can write the block again
+	 * without reading it.
+	 */
+	private Response writeBlockIfMatch(DatasetServerImpl datasetServer,
+		BlockIdentification blockId, BlockFormat format, String ifMatch,
+		InputStream inputStream)
+	{
+		if (format == BlockFormat.FRAMED) {
+			throw new IllegalArgumentException("Format " + format.getName() +
+				" is not supported for writing");
+		}
+		Predicate<String> condition = blockVersion -> matches(ifMatch,
+			blockVersion != null ? getEntityTag(blockId, format, blockVersion)
+				: null);
+		InputStream input = new BufferedInputStream(inputStream);
+		String blockVersion;
 		try {
+			if (format == BlockFormat.STORED) {
+				blockVersion = datasetServer.storeStored(datasetServer.parseStored(
+					blockId.gridPosition, blockId.time, blockId.channel, blockId.angle,
+					input), blockId.time, blockId.channel, blockId.angle, condition);
+			}
+			else {
+				blockVersion = datasetServer.store(datasetServer.parse(
+					blockId.gridPosition, blockId.time, blockId.channel, blockId.angle,
+					input), blockId.time, blockId.channel, blockId.angle, condition);
+			}
+		}
+		catch (IOException exc) {
+			log.warn("writeBlockIfMatch", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		if (blockVersion == null) {
+			return Response.status(Status.PRECONDITION_FAILED).build();
+		}
+		return Response.ok().tag(getEntityTag(blockId, format, blockVersion))
+			.build();
+	}
 
-			for (BlockIdentification blockId : blocksId) {
-				datasetServer.write(blockId.gridPosition, blockId.time, blockId.channel,
-					blockId.angle, inputStream);
+	private static EntityTag getEntityTag(BlockIdentification blockId,
+		BlockFormat format, String blockVersion)
+	{
+		return new EntityTagBuilder(format.getName()).add(blockId.toString(),
+			blockVersion).build();
+	}
+
+	/**
+	 * Strong comparison of If-Match - weak tags never match, * matches any
+	 * existing block.
+	 */
+	private static boolean matches(String ifMatch, EntityTag entityTag) {
+		if (entityTag == null) {
+			return false;
+		}
+		for (String value : ifMatch.split(",")) {
+			value = value.trim();
+			if (value.equals("*") || value.equals("\"" + entityTag.getValue() +
+				"\""))
+			{
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * Writes blocks identified by binary batch at the beginning of request body,
+	 * see {@link BlockIdentification#read(DataInputStream)}. Data of blocks
+	 * follow in the same order.
+	 */
+	public Response writeBlocks(DatasetServerImpl datasetServer,
+		InputStream inputStream, BlockFormat format)
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+			inputStream));
+		List<BlockIdentification> blocksId;
+		try {
+			blocksId = BlockIdentification.read(input);
+		}
+		catch (IOException exc) {
+			log.warn("writeBlocks", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return writeBlocks(datasetServer, blocksId, format, input);
+	}
+
+	/**
+	 * Blocks are parsed from the request while earlier blocks are stored, see
+	 * {@link PipelinedBlockWriter}. Response lists {@link BlockWriteStatus} of
+	 * every block, its status is given by the first failure.
+	 */
+	private Response writeBlocks(DatasetServerImpl datasetServer,
+		List<BlockIdentification> blocksId, BlockFormat format,
+		InputStream inputStream)
+	{
+		if (format == BlockFormat.FRAMED) {
+			throw new IllegalArgumentException("Format " + format.getName() +
+				" is not supported for writing");
+		}
+		PipelinedBlockWriter.Result result;
+		try {
+			result = new PipelinedBlockWriter(datasetServer, writeExecutor,
+				writeParallelism, format).write(blocksId, inputStream);
+		}
 		catch (IOException exc) {
 			log.warn("write", exc);
 			return Response.serverError().entity(exc.getMessage()).type(
 				MediaType.TEXT_PLAIN).build();
 		}
+		Exception failure = result.getFailure();
+		Status status;
+		if (failure == null) {
+			status = Status.OK;
+		}
+		else if (failure instanceof IllegalArgumentException) {
+			status = Status.BAD_REQUEST;
+		}
+		else if (failure instanceof IllegalStateException) {
+			status = Status.NOT_ACCEPTABLE;
+		}
+		else {
+			status = Status.INTERNAL_SERVER_ERROR;
+		}
+		return Response.status(status).entity(result.getStatuses()).type(
+			MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	/**
+	 * Creates an upload session. Request body may declare blocks the client is
+	 * going to write in the binary batch format, see
+	 * {@link BlockIdentification#read(DataInputStream)}, blocks not yet written
+	 * are then reported in {@link UploadSessionState#getMissing()}.
+	 */
+	public Response createUploadSession(DatasetServerImpl datasetServer,
+		InputStream inputStream)
+	{
+		String datasetKey = datasetServer.getUploadSessionKey();
+		List<BlockIdentification> expected = null;
+		try {
+			if (inputStream != null) {
+				BufferedInputStream input = new BufferedInputStream(inputStream);
+				input.mark(1);
+				if (input.read() >= 0) {
+					input.reset();
+					expected = BlockIdentification.read(new DataInputStream(input));
+				}
+			}
+			return uploadSessionState(UploadSessions.getInstance().create(
+				datasetKey, expected));
+		}
+		catch (IOException exc) {
+			log.warn("createUploadSession", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+	}
+
+	public Response getUploadSession(DatasetServerImpl datasetServer,
+		String sessionId)
+	{
+		try {
+			return uploadSessionState(UploadSessions.getInstance().get(sessionId,
+				datasetServer.getUploadSessionKey()));
+		}
+		catch (IOException exc) {
+			log.warn("getUploadSession", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+	}
+
+	public Response deleteUploadSession(DatasetServerImpl datasetServer,
+		String sessionId)
+	{
+		UploadSessions.getInstance().remove(sessionId, datasetServer
+			.getUploadSessionKey());
+		return Response.ok().build();
+	}
+
+	/**
+	 * Writes a block in an upload session. The block is stored only if CRC32C
+	 * of the request body matches the checksum.
+	 */
+	public Response writeSessionBlock(DatasetServerImpl datasetServer,
+		String sessionId, long x, long y, long z, int time, int channel,
+		int angle, BlockFormat format, String checksum, InputStream inputStream)
+	{
+		int expectedChecksum = parseChecksum(checksum, true);
+		UploadSessions.Session session = UploadSessions.getInstance().get(
+			sessionId, datasetServer.getUploadSessionKey());
+		BlockIdentification blockId = new BlockIdentification(new long[] { x, y,
+			z }, time, channel, angle);
+		try {
+			storeChecked(datasetServer, blockId, format, expectedChecksum,
+				inputStream);
+			session.commit(blockId);
+		}
+		catch (IOException exc) {
+			log.warn("writeSessionBlock", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok().build();
+	}
+
+	/**
+	 * Receives a part of a block. A part is kept only if CRC32C of the request
+	 * body matches the checksum, part sent again replaces the previous one.
+	 */
+	public Response writeSessionBlockPart(DatasetServerImpl datasetServer,
+		String sessionId, long x, long y, long z, int time, int channel,
+		int angle, int part, String checksum, InputStream inputStream)
+	{
+		int expectedChecksum = parseChecksum(checksum, true);
+		UploadSessions.Session session = UploadSessions.getInstance().get(
+			sessionId, datasetServer.getUploadSessionKey());
+		BlockIdentification blockId = new BlockIdentification(new long[] { x, y,
+			z }, time, channel, angle);
+		Path temp = null;
+		try {
+			Path partPath = session.getPartPath(blockId, part);
+			temp = Files.createTempFile(partPath.getParent(), "part-", ".tmp");
+			CheckedInputStream input = new CheckedInputStream(inputStream,
+				new CRC32C());
+			Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+			checkChecksum(expectedChecksum, input);
+			Files.move(temp, partPath, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException exc) {
+			log.warn("writeSessionBlockPart", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		finally {
+			deleteTemp(temp);
+		}
+		return Response.ok().build();
+	}
+
+	/**
+	 * Stores a block from its received parts. If the checksum is given, it has
+	 * to match CRC32C of the whole block.
+	 */
+	public Response completeSessionBlock(DatasetServerImpl datasetServer,
+		String sessionId, long x, long y, long z, int time, int channel,
+		int angle, BlockFormat format, String checksum)
+	{
+		Integer expectedChecksum = parseChecksum(checksum, false);
+		UploadSessions.Session session = UploadSessions.getInstance().get(
+			sessionId, datasetServer.getUploadSessionKey());
+		BlockIdentification blockId = new BlockIdentification(new long[] { x, y,
+			z }, time, channel, angle);
+		try {
+			try (InputStream parts = session.openParts(blockId)) {
+				storeChecked(datasetServer, blockId, format, expectedChecksum, parts);
+			}
+			session.commit(blockId);
+		}
+		catch (IOException exc) {
+			log.warn("completeSessionBlock", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok().build();
+	}
+
+	private static Response uploadSessionState(UploadSessions.Session session)
+		throws IOException
+	{
+		return Response.ok(session.getState()).type(
+			MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	/**
+	 * The block is parsed whole before it is stored, so a block with wrong
+	 * checksum is never stored.
+	 */
+	private static void storeChecked(DatasetServerImpl datasetServer,
+		BlockIdentification blockId, BlockFormat format, Integer expectedChecksum,
+		InputStream inputStream) throws IOException
+	{
+		if (format == BlockFormat.FRAMED) {
+			throw new IllegalArgumentException("Format " + format.getName() +
+				" is not supported for writing");
+		}
+		CheckedInputStream input = new CheckedInputStream(new BufferedInputStream(
+			inputStream), new CRC32C());
+		DataBlock<?> block = null;
+		N5Access.StoredBlock stored = null;
+		if (format == BlockFormat.STORED) {
+			stored = datasetServer.parseStored(blockId.gridPosition, blockId.time,
+				blockId.channel, blockId.angle, input);
+		}
+		else {
+			block = datasetServer.parse(blockId.gridPosition, blockId.time,
+				blockId.channel, blockId.angle, input);
+		}
+		if (input.read() >= 0) {
+			throw new IllegalArgumentException("Request contains data after block " +
+				blockId);
+		}
+		if (expectedChecksum != null) {
+			checkChecksum(expectedChecksum, input);
+		}
+		if (stored != null) {
+			datasetServer.storeStored(stored, blockId.time, blockId.channel,
+				blockId.angle);
+		}
+		else {
+			datasetServer.store(block, blockId.time, blockId.channel,
+				blockId.angle);
+		}
+	}
+
+	private static Integer parseChecksum(String checksum, boolean required) {
+		if (checksum == null) {
+			if (required) {
+				throw new IllegalArgumentException("Header " +
+					DatasetServerEndpoint.CHECKSUM_HEADER + " is required");
+			}
+			return null;
+		}
+		try {
+			return Integer.parseUnsignedInt(checksum.trim(), 16);
+		}
+		catch (NumberFormatException exc) {
+			throw new IllegalArgumentException("Checksum " + checksum +
+				" is not CRC32C in hexadecimal format");
+		}
+	}
+
+	private static void checkChecksum(int expectedChecksum,
+		CheckedInputStream input) throws IOException
+	{
+		// drain what is left so the checksum covers the whole body
+		byte[] buffer = new byte[8192];
+		while (input.read(buffer) >= 0) {
+			// nothing
+		}
+		int actual = (int) input.getChecksum().getValue();
+		if (actual != expectedChecksum) {
+			throw new IllegalArgumentException(String.format(
+				"Checksum %08x does not match received data %08x", expectedChecksum,
+				actual));
+		}
+	}
+
+	private static void deleteTemp(Path temp) {
+		if (temp == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(temp);
+		}
+		catch (IOException exc) {
+			log.warn("Deleting of {}", temp, exc);
+		}
+	}
+
+	/**
+	 * Lets a client find which of its blocks the storage already holds, so it
+	 * does not have to send them, see {@link #writeContentBlock}.
+	 *
+	 * @param hashes murmur3 128 bit hashes of blocks in format
+	 *          {@link BlockFormat#STORED}
+	 */
+	public Response findBlockContents(DatasetServerImpl datasetServer,
+		List<String> hashes)
+	{
+		if (hashes == null) {
+			throw new IllegalArgumentException("List of hashes is required");
+		}
+		try {
+			return Response.ok(datasetServer.findBlockContents(hashes)).type(
+				MediaType.APPLICATION_JSON_TYPE).build();
+		}
+		catch (IOException exc) {
+			log.warn("findBlockContents", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+	}
+
+	/**
+	 * Writes a block from content held by the storage. 404 is returned if the
+	 * content is not held, the client then sends the block itself.
+	 */
+	public Response writeContentBlock(DatasetServerImpl datasetServer,
+		String hash, long x, long y, long z, int time, int channel, int angle)
+	{
+		try {
+			N5Access.StoredBlock block = datasetServer.getStoredContent(new long[] {
+				x, y, z }, time, channel, angle, hash);
+			if (block == null) {
+				throw new NotFoundException("Block content " + hash +
+					" is not held");
+			}
+			datasetServer.storeStored(block, time, channel, angle);
+		}
+		catch (IOException exc) {
+			log.warn("writeContentBlock", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
+		return Response.ok().build();
+	}
+
+	/**
+	 * Waits until coarser resolution levels written by the server are
+	 * recomputed from all blocks written so far.
+	 */
+	public Response awaitOtherResolutions(DatasetServerImpl datasetServer) {
+		try {
+			datasetServer.awaitOtherResolutions();
+		}
+		catch (IOException exc) {
+			log.warn("awaitOtherResolutions", exc);
+			return Response.serverError().entity(exc.getMessage()).type(
+				MediaType.TEXT_PLAIN).build();
+		}
 		return Response.ok().build();
 	}
 
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Statistics of voxels of one block or aggregated over more blocks. Histogram
+ * has {@link #HISTOGRAM_BINS} bins of the same width covering whole range of
+ * integer data type or range [0, 1] of floating point data type - values
+ * outside of the range fall into the first or the last bin.
+ */
+public final class BlockStatistics {
+
+	public static final int HISTOGRAM_BINS = 16;
+
+	@Getter
+	@AllArgsConstructor
+	public static final class Entry {
+
+		private final long[] gridPosition;
+
+		private final BlockStatistics statistics;
+	}
+
+	private double min;
+
+	private double max;
+
+	@Getter
+	private double sum;
+
+	@Getter
+	private long nonZero;
+
+	@Getter
+	private long voxels;
+
+	@Getter
+	private long blocks;
+
+	@Getter
+	private final long[] histogram = new long[HISTOGRAM_BINS];
+
+	@Getter
+	private final double histogramMin;
+
+	@Getter
+	private final double histogramMax;
+
+	public static BlockStatistics compute(DataBlock<?> block, DataType dataType) {
+		BlockStatistics result = new BlockStatistics(dataType);
+		Object data = block.getData();
+		int numElements = block.getNumElements();
+		double scale = HISTOGRAM_BINS / (result.histogramMax - result.histogramMin);
+		for (int i = 0; i < numElements; i++) {
+			double value = VoxelArrays.get(data, dataType, i);
+			result.min = Math.min(result.min, value);
+			result.max = Math.max(result.max, value);
+			result.sum += value;
+			if (value != 0) {
+				result.nonZero++;
+			}
+			int bin = (int) ((value - result.histogramMin) * scale);
+			result.histogram[Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin))]++;
+		}
+		result.voxels = numElements;
+		result.blocks = 1;
+		return result;
+	}
+
+	public BlockStatistics(DataType dataType) {
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		switch (dataType) {
+			case UINT8:
+				histogramMin = 0;
+				histogramMax = 0x1p8;
+				break;
+			case INT8:
+				histogramMin = -0x1p7;
+				histogramMax = 0x1p7;
+				break;
+			case UINT16:
+				histogramMin = 0;
+				histogramMax = 0x1p16;
+				break;
+			case INT16:
+				histogramMin = -0x1p15;
+				histogramMax = 0x1p15;
+				break;
+			case UINT32:
+				histogramMin = 0;
+				histogramMax = 0x1p32;
+				break;
+			case INT32:
+				histogramMin = -0x1p31;
+				histogramMax = 0x1p31;
+				break;
+			case UINT64:
+				histogramMin = 0;
+				histogramMax = 0x1p64;
+				break;
+			case INT64:
+				histogramMin = -0x1p63;
+				histogramMax = 0x1p63;
+				break;
+			default:
+				histogramMin = 0;
+				histogramMax = 1;
+		}
+	}
+
+	/**
+	 * @return minimal value or null if no block was aggregated
+	 */
+	public Double getMin() {
+		return blocks > 0 ? min : null;
+	}
+
+	/**
+	 * @return maximal value or null if no block was aggregated
+	 */
+	public Double getMax() {
+		return blocks > 0 ? max : null;
+	}
+
+	public double getMean() {
+		return voxels > 0 ? sum / voxels : 0;
+	}
+
+	/**
+	 * Adds statistics of another block with the same data type.
+	 */
+	public void add(BlockStatistics other) {
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		sum += other.sum;
+		nonZero += other.nonZero;
+		voxels += other.voxels;
+		blocks += other.blocks;
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			histogram[i] += other.histogram[i];
+		}
+	}
+
+	void write(DataOutput output) throws IOException {
+		output.writeDouble(min);
+		output.writeDouble(max);
+		output.writeDouble(sum);
+		output.writeLong(nonZero);
+		output.writeLong(voxels);
+		for (long count : histogram) {
+			output.writeLong(count);
+		}
+	}
+
+	static BlockStatistics read(DataInput input, DataType dataType)
+		throws IOException
+	{
+		BlockStatistics result = new BlockStatistics(dataType);
+		result.min = input.readDouble();
+		result.max = input.readDouble();
+		result.sum = input.readDouble();
+		result.nonZero = input.readLong();
+		result.voxels = input.readLong();
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			result.histogram[i] = input.readLong();
+		}
+		result.blocks = 1;
+		return result;
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Access to statistics of voxels of stored blocks, see
+ * {@link BlockStatisticsN5Writer}.
+ */
+public interface BlockStatisticsAccess {
+
+	@FunctionalInterface
+	interface BlockStatisticsConsumer {
+
+		void accept(long[] gridPosition, BlockStatistics statistics);
+	}
+
+	/**
+	 * Used for storages that do not track statistics.
+	 */
+	static final BlockStatisticsAccess NONE = new BlockStatisticsAccess() {
+
+		@Override
+		public BlockStatistics getBlockStatistics(String pathName,
+			long[] gridPosition)
+		{
+			return null;
+		}
+
+		@Override
+		public void forEachBlockStatistics(String pathName,
+			BlockStatisticsConsumer consumer)
+		{}
+	};
+
+	static BlockStatisticsAccess of(N5Reader reader) {
+		if (reader instanceof BlockStatisticsAccess) {
+			return (BlockStatisticsAccess) reader;
+		}
+		return NONE;
+	}
+
+	/**
+	 * @return statistics of the block or null if they are not known
+	 */
+	BlockStatistics getBlockStatistics(String pathName, long[] gridPosition)
+		throws IOException;
+
+	/**
+	 * Passes every block of the dataset with known statistics to the consumer.
+	 */
+	void forEachBlockStatistics(String pathName,
+		BlockStatisticsConsumer consumer) throws IOException;
+}
@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Computes {@link BlockStatistics} of every written block from the block being
+ * written, so no voxel is read again. Statistics of all blocks of one dataset
+ * (setup, timepoint and level) of one version are persisted together in a
+ * sidecar file. Every entry keeps version of the block it was computed for -
+ * when statistics are loaded after a change that was not persisted (marked
+ * the same way as in {@link BlockIndexN5Writer}), entries of changed blocks
+ * are dropped.
+ * <p>
+ * Changes of other processes are detected the same way as by
+ * {@link BlockIndexN5Writer}: while other process is changing blocks, every
+ * entry is verified against the current version of its block before it is
+ * used.
+ */
+@Log4j2
+public class BlockStatisticsN5Writer extends N5WriterDecorator {
+
+	static final String STATISTICS_SIDECAR = "block-statistics";
+
+	static final String DIRTY_SIDECAR = "block-statistics-dirty";
+
+	private static final int MAGIC = 0x42535441;
+
+	private static final long FLUSH_INTERVAL_SECONDS = 1;
+
+	private static final long EXPIRATION_MINUTES = 10;
+
+	private static final long REVALIDATION_INTERVAL_MILLIS = 1000;
+
+	private static final Cache<String, Optional<PersistedStatistics>> STATISTICS =
+		CacheBuilder.newBuilder().expireAfterAccess(EXPIRATION_MINUTES,
+			TimeUnit.MINUTES).removalListener(BlockStatisticsN5Writer::onRemoval)
+			.build();
+
+	private static final ScheduledExecutorService FLUSHER = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+			"block-statistics-flusher").setDaemon(true).build());
+
+	static {
+		FLUSHER.scheduleWithFixedDelay(BlockStatisticsN5Writer::flushAll,
+			FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public static N5Writer decorate(N5Writer writer) {
+		if (!ApplicationConfiguration.isBlockStatisticsEnabled()) {
+			return writer;
+		}
+		return new BlockStatisticsN5Writer(writer);
+	}
+
+	/**
+	 * Drops statistics of all versions stored under the base path without
+	 * persisting them. It is used when versions are moved or deleted.
+	 */
+	public static void invalidate(String basePathPrefix) {
+		STATISTICS.asMap().keySet().removeIf(key -> key.startsWith(
+			basePathPrefix));
+	}
+
+	private BlockStatisticsN5Writer(N5Writer writer) {
+		super(writer);
+	}
+
+	@Override
+	public BlockStatistics getBlockStatistics(String pathName,
+		long[] gridPosition) throws IOException
+	{
+		PersistedStatistics persisted = getStatistics(pathName, false);
+		if (persisted == null) {
+			return null;
+		}
+		if (persisted.getValidity() == Validity.CHANGING_ELSEWHERE) {
+			return persisted.get(gridPosition, super.getBlockVersion(pathName,
+				gridPosition));
+		}
+		return persisted.get(gridPosition);
+	}
+
+	@Override
+	public void forEachBlockStatistics(String pathName,
+		BlockStatisticsConsumer consumer) throws IOException
+	{
+		PersistedStatistics persisted = getStatistics(pathName, false);
+		if (persisted == null) {
+			return;
+		}
+		boolean verify = persisted.getValidity() == Validity.CHANGING_ELSEWHERE;
+		persisted.forEach((gridPosition, version, statistics) -> {
+			if (!verify || version.equals(super.getBlockVersion(pathName,
+				gridPosition)))
+			{
+				consumer.accept(gridPosition, statistics);
+			}
+		});
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		PersistedStatistics persisted = getStatistics(pathName, true);
+		if (persisted == null) {
+			super.writeBlock(pathName, datasetAttributes, dataBlock);
+			return;
+		}
+		BlockStatistics statistics = BlockStatistics.compute(dataBlock,
+			datasetAttributes.getDataType());
+		long[] gridPosition = dataBlock.getGridPosition();
+		changeBlock(persisted, pathName, () -> {
+			super.writeBlock(pathName, datasetAttributes, dataBlock);
+			persisted.put(gridPosition, super.getBlockVersion(pathName,
+				gridPosition), statistics);
+		});
+	}
+
+	/**
+	 * Stored block is not decoded, so its statistics become unknown.
+	 */
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		PersistedStatistics persisted = getStatistics(pathName, true);
+		if (persisted == null) {
+			super.writeRawBlock(pathName, gridPosition, data);
+			return;
+		}
+		changeBlock(persisted, pathName, () -> {
+			super.writeRawBlock(pathName, gridPosition, data);
+			persisted.remove(gridPosition);
+		});
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		PersistedStatistics persisted = getStatistics(pathName, true);
+		if (persisted == null) {
+			return super.deleteBlock(pathName, gridPosition);
+		}
+		boolean[] result = { false };
+		changeBlock(persisted, pathName, () -> {
+			result[0] = super.deleteBlock(pathName, gridPosition);
+			persisted.remove(gridPosition);
+		});
+		return result[0];
+	}
+
+	private interface BlockChange {
+
+		void run() throws IOException;
+	}
+
+	private void changeBlock(PersistedStatistics persisted, String pathName,
+		BlockChange change) throws IOException
+	{
+		persisted.beginChange();
+		boolean success = false;
+		try {
+			change.run();
+			success = true;
+		}
+		finally {
+			persisted.endChange();
+			if (!success) {
+				// dirty marker stays stored so the statistics are verified
+				STATISTICS.invalidate(getKey(pathName));
+			}
+		}
+	}
+
+	/**
+	 * @param forChange statistics are going to be changed
+	 * @return statistics or null if they are not kept for the dataset
+	 */
+	private PersistedStatistics getStatistics(String pathName,
+		boolean forChange)
+	{
+		String key = getKey(pathName);
+		try {
+			while (true) {
+				Optional<PersistedStatistics> result = STATISTICS.get(key,
+					() -> Optional.ofNullable(load(pathName)));
+				if (!result.isPresent() || forChange || result.get()
+					.revalidate() != Validity.PERSISTED_ELSEWHERE)
+				{
+					return result.orElse(null);
+				}
+				STATISTICS.asMap().remove(key, result);
+			}
+		}
+		catch (ExecutionException | UncheckedExecutionException exc) {
+			log.warn("Loading of block statistics for " + pathName, exc.getCause());
+			return null;
+		}
+		catch (IOException exc) {
+			log.warn("Revalidation of block statistics for " + pathName, exc);
+			return null;
+		}
+	}
+
+	private PersistedStatistics load(String pathName) throws IOException {
+		DatasetAttributes attributes = super.getDatasetAttributes(pathName);
+		if (attributes == null) {
+			return null;
+		}
+		PersistedStatistics result = new PersistedStatistics(this, pathName,
+			getKey(pathName), attributes.getDataType());
+		// version is obtained before reading, so a concurrent write is noticed
+		result.version = getSidecarVersion(pathName, STATISTICS_SIDECAR);
+		byte[] data = readSidecar(pathName, STATISTICS_SIDECAR);
+		if (data != null && !result.read(data)) {
+			log.warn("Block statistics for {} are not valid", pathName);
+			result.dirty = true;
+		}
+		if (readSidecar(pathName, DIRTY_SIDECAR) != null) {
+			for (Iterator<Map.Entry<List<Long>, VersionedStatistics>> iter =
+				result.entries.entrySet().iterator(); iter.hasNext();)
+			{
+				Map.Entry<List<Long>, VersionedStatistics> entry = iter.next();
+				long[] gridPosition = entry.getKey().stream().mapToLong(Long::longValue)
+					.toArray();
+				if (!entry.getValue().version.equals(super.getBlockVersion(pathName,
+					gridPosition)))
+				{
+					iter.remove();
+				}
+			}
+			result.dirty = true;
+		}
+		result.flush();
+		return result;
+	}
+
+	private String getKey(String pathName) {
+		return getBasePath() + ":" + (pathName.startsWith("/") ? pathName
+			.substring(1) : pathName);
+	}
+
+	private static void flushAll() {
+		STATISTICS.cleanUp();
+		for (Optional<PersistedStatistics> persisted : STATISTICS.asMap()
+			.values())
+		{
+			persisted.ifPresent(PersistedStatistics::flush);
+		}
+	}
+
+	private static void onRemoval(
+		RemovalNotification<String, Optional<PersistedStatistics>> notification)
+	{
+		if (notification.getCause() == RemovalCause.EXPLICIT) {
+			return;
+		}
+		notification.getValue().ifPresent(PersistedStatistics::flush);
+	}
+
+	private static List<Long> asKey(long[] gridPosition) {
+		return LongStream.of(gridPosition).boxed().collect(Collectors.toList());
+	}
+
+	private interface VersionedStatisticsConsumer {
+
+		void accept(long[] gridPosition, String version, BlockStatistics statistics)
+			throws IOException;
+	}
+
+	private enum Validity {
+		CURRENT, CHANGING_ELSEWHERE, PERSISTED_ELSEWHERE
+	}
+
+	@AllArgsConstructor
+	private static class VersionedStatistics {
+
+		private final String version;
+
+		private final BlockStatistics statistics;
+	}
+
+	@RequiredArgsConstructor
+	private static class PersistedStatistics {
+
+		private final SidecarAccess storage;
+
+		private final String pathName;
+
+		private final String key;
+
+		private final DataType dataType;
+
+		private final Map<List<Long>, VersionedStatistics> entries =
+			new HashMap<>();
+
+		/**
+		 * Version of the statistics sidecar that these statistics correspond to
+		 */
+		private String version;
+
+		private boolean dirty;
+
+		private int pendingChanges;
+
+		private long validatedAt = System.currentTimeMillis();
+
+		private Validity validity = Validity.CURRENT;
+
+		synchronized Validity getValidity() {
+			return validity;
+		}
+
+		/**
+		 * Changes of other processes are not checked while these statistics have
+		 * unpersisted changes, they are detected when they are persisted.
+		 */
+		synchronized Validity revalidate() throws IOException {
+			long now = System.currentTimeMillis();
+			if (dirty || now - validatedAt < REVALIDATION_INTERVAL_MILLIS) {
+				return validity;
+			}
+			validatedAt = now;
+			if (storage.getSidecarVersion(pathName, DIRTY_SIDECAR) != null) {
+				validity = Validity.CHANGING_ELSEWHERE;
+			}
+			else if (!Objects.equals(version, storage.getSidecarVersion(pathName,
+				STATISTICS_SIDECAR)))
+			{
+				validity = Validity.PERSISTED_ELSEWHERE;
+			}
+			else {
+				validity = Validity.CURRENT;
+			}
+			return validity;
+		}
+
+		synchronized BlockStatistics get(long[] gridPosition) {
+			VersionedStatistics result = entries.get(asKey(gridPosition));
+			return result != null ? result.statistics : null;
+		}
+
+		/**
+		 * @return statistics if they were computed for the block version
+		 */
+		synchronized BlockStatistics get(long[] gridPosition,
+			String blockVersion)
+		{
+			VersionedStatistics result = entries.get(asKey(gridPosition));
+			return result != null && result.version.equals(blockVersion)
+				? result.statistics : null;
+		}
+
+		synchronized void put(long[] gridPosition, String version,
+			BlockStatistics statistics)
+		{
+			if (version == null) {
+				entries.remove(asKey(gridPosition));
+				return;
+			}
+			entries.put(asKey(gridPosition), new VersionedStatistics(version,
+				statistics));
+		}
+
+		synchronized void remove(long[] gridPosition) {
+			entries.remove(asKey(gridPosition));
+		}
+
+		synchronized void forEach(VersionedStatisticsConsumer consumer)
+			throws IOException
+		{
+			for (Map.Entry<List<Long>, VersionedStatistics> entry : entries
+				.entrySet())
+			{
+				consumer.accept(entry.getKey().stream().mapToLong(Long::longValue)
+					.toArray(), entry.getValue().version, entry.getValue().statistics);
+			}
+		}
+
+		synchronized void beginChange() throws IOException {
+			if (!dirty) {
+				storage.writeSidecar(pathName, DIRTY_SIDECAR, new byte[0]);
+				dirty = true;
+			}
+			pendingChanges++;
+		}
+
+		synchronized void endChange() {
+			pendingChanges--;
+		}
+
+		synchronized void flush() {
+			if (!dirty || pendingChanges > 0) {
+				return;
+			}
+			try {
+				if (!Objects.equals(version, storage.getSidecarVersion(pathName,
+					STATISTICS_SIDECAR)))
+				{
+					// other process persisted its statistics meanwhile and could delete
+					// the marker, entries are verified when they are loaded next time
+					storage.writeSidecar(pathName, DIRTY_SIDECAR, new byte[0]);
+					STATISTICS.asMap().remove(key, Optional.of(this));
+					return;
+				}
+				storage.writeSidecar(pathName, STATISTICS_SIDECAR, toByteArray());
+				version = storage.getSidecarVersion(pathName, STATISTICS_SIDECAR);
+				storage.deleteSidecar(pathName, DIRTY_SIDECAR);
+				dirty = false;
+				validatedAt = System.currentTimeMillis();
+				validity = Validity.CURRENT;
+			}
+			catch (IOException exc) {
+				log.warn("Persisting of block statistics for " + pathName, exc);
+			}
+		}
+
+		/**
+		 * @return false if the data are not valid
+		 */
+		boolean read(byte[] data) {
+			try (DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(data)))
+			{
+				if (input.readInt() != MAGIC || input
+					.readInt() != BlockStatistics.HISTOGRAM_BINS)
+				{
+					return false;
+				}
+				for (int i = input.readInt(); i > 0; i--) {
+					long[] gridPosition = new long[input.readInt()];
+					for (int j = 0; j < gridPosition.length; j++) {
+						gridPosition[j] = input.readLong();
+					}
+					String version = input.readUTF();
+					entries.put(asKey(gridPosition), new VersionedStatistics(version,
+						BlockStatistics.read(input, dataType)));
+				}
+				return true;
+			}
+			catch (IOException exc) {
+				entries.clear();
+				return false;
+			}
+		}
+
+		private byte[] toByteArray() throws IOException {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			try (DataOutputStream output = new DataOutputStream(result)) {
+				output.writeInt(MAGIC);
+				output.writeInt(BlockStatistics.HISTOGRAM_BINS);
+				output.writeInt(entries.size());
+				for (Map.Entry<List<Long>, VersionedStatistics> entry : entries
+					.entrySet())
+				{
+					output.writeInt(entry.getKey().size());
+					for (Long coordinate : entry.getKey()) {
+						output.writeLong(coordinate);
+					}
+					output.writeUTF(entry.getValue().version);
+					entry.getValue().statistics.write(output);
+				}
+			}
+			return result.toByteArray();
+		}
+	}
+}
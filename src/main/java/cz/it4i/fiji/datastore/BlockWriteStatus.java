@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Result of writing of one block of a multi-block write request.
+ */
+@Getter
+@AllArgsConstructor
+public final class BlockWriteStatus {
+
+	public enum Status {
+			/**
+			 * Block was stored.
+			 */
+			WRITTEN,
+
+			/**
+			 * Block was not stored, see {@link BlockWriteStatus#getMessage()}.
+			 */
+			FAILED,
+
+			/**
+			 * Block was not read from the request because an earlier block of the
+			 * request could not be read.
+			 */
+			SKIPPED
+	}
+
+	private final long[] gridPosition;
+
+	private final int time;
+
+	private final int channel;
+
+	private final int angle;
+
+	private final Status status;
+
+	private final String message;
+}
@@ -0,0 +1,532 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Keeps blocks whose voxels all have the same value in a map persisted as
+ * sidecar files instead of block files, so uniform background takes neither a
+ * file nor its compressed voxels. The map of a dataset is split into shards of
+ * neighbouring blocks, a change rewrites only its shard. A shard is replaced
+ * only if no other process replaced it since it was read, otherwise the change
+ * is applied to the shard read again. A block file takes precedence over the
+ * map - an entry is stored before the block file is deleted and removed after
+ * the block file is written, so an interrupted write leaves the previous block
+ * readable.
+ */
+public class ConstantBlockN5Writer extends N5WriterDecorator {
+
+	static final String SHARD_PREFIX = "constant-blocks-";
+
+	/**
+	 * Number of blocks in every dimension of a shard.
+	 */
+	private static final int SHARD_SIZE = 8;
+
+	private static final long EXPIRATION_MINUTES = 10;
+
+	private static final long REVALIDATION_INTERVAL_MILLIS = 1000;
+
+	private static final Cache<String, ConstantBlocks> MAPS = CacheBuilder
+		.newBuilder().expireAfterAccess(EXPIRATION_MINUTES, TimeUnit.MINUTES)
+		.build();
+
+	public static N5Writer decorate(N5Writer writer) {
+		if (!ApplicationConfiguration.isConstantBlocksEnabled()) {
+			return writer;
+		}
+		return new ConstantBlockN5Writer(writer);
+	}
+
+	/**
+	 * Drops maps of all versions stored under the base path. It is used when
+	 * versions are moved or deleted.
+	 */
+	public static void invalidate(String basePathPrefix) {
+		MAPS.asMap().keySet().removeIf(key -> key.startsWith(basePathPrefix));
+	}
+
+	/**
+	 * @return value of all voxels of the block as big endian bytes or null if
+	 *         voxels differ
+	 */
+	static byte[] getConstantValue(DataBlock<?> block) {
+		int numElements = block.getNumElements();
+		ByteBuffer data = block.toByteBuffer();
+		int length = data.remaining();
+		if (numElements <= 0 || length == 0 || length % numElements != 0) {
+			return null;
+		}
+		int elementSize = length / numElements;
+		int offset = data.position();
+		for (int i = elementSize; i < length; i++) {
+			if (data.get(offset + i) != data.get(offset + i % elementSize)) {
+				return null;
+			}
+		}
+		byte[] result = new byte[elementSize];
+		data.get(result);
+		return result;
+	}
+
+	/**
+	 * @param value value of every voxel as big endian bytes
+	 */
+	static DataBlock<?> createBlock(DataType dataType, int[] size,
+		long[] gridPosition, byte[] value)
+	{
+		int numElements = DataBlock.getNumElements(size);
+		DataBlock<?> result = dataType.createDataBlock(size, gridPosition,
+			numElements);
+		ByteBuffer data = ByteBuffer.allocate(numElements * value.length);
+		while (data.hasRemaining()) {
+			data.put(value);
+		}
+		data.flip();
+		result.readData(data);
+		return result;
+	}
+
+	private static <T> ConstantDataBlock<T> toConstantDataBlock(
+		DataBlock<T> block, byte[] value)
+	{
+		return new ConstantDataBlock<>(block, value);
+	}
+
+	private ConstantBlockN5Writer(N5Writer writer) {
+		super(writer);
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		long[] gridPosition = dataBlock.getGridPosition();
+		byte[] value = getConstantValue(dataBlock);
+		if (value != null) {
+			String previous = super.getBlockVersion(pathName, gridPosition);
+			getConstantBlocks(pathName).put(gridPosition, dataBlock.getSize(),
+				value);
+			// block file written by other process meanwhile takes precedence
+			if (previous != null && previous.equals(super.getBlockVersion(pathName,
+				gridPosition)))
+			{
+				super.deleteBlock(pathName, gridPosition);
+			}
+			return;
+		}
+		super.writeBlock(pathName, datasetAttributes, dataBlock);
+		getConstantBlocks(pathName).remove(gridPosition);
+	}
+
+	/**
+	 * Stored blocks are not decompressed, so they are always written as block
+	 * files.
+	 */
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		super.writeRawBlock(pathName, gridPosition, data);
+		getConstantBlocks(pathName).remove(gridPosition);
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		boolean removed = getConstantBlocks(pathName).remove(gridPosition);
+		return super.deleteBlock(pathName, gridPosition) || removed;
+	}
+
+	@Override
+	public DataBlock<?> readBlock(String pathName,
+		DatasetAttributes datasetAttributes, long[] gridPosition) throws IOException
+	{
+		DataBlock<?> result = super.readBlock(pathName, datasetAttributes,
+			gridPosition);
+		if (result != null) {
+			return result;
+		}
+		Entry entry = getConstantBlocks(pathName).get(gridPosition);
+		return entry != null ? toConstantDataBlock(createBlock(datasetAttributes
+			.getDataType(), entry.size, gridPosition, entry.value), entry.value)
+			: null;
+	}
+
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		byte[] result = super.readRawBlock(pathName, gridPosition);
+		if (result != null) {
+			return result;
+		}
+		Entry entry = getConstantBlocks(pathName).get(gridPosition);
+		if (entry == null) {
+			return null;
+		}
+		DatasetAttributes attributes = getDatasetAttributes(pathName);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(output, attributes, createBlock(attributes
+			.getDataType(), entry.size, gridPosition, entry.value));
+		return output.toByteArray();
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		String result = super.getBlockVersion(pathName, gridPosition);
+		if (result != null) {
+			return result;
+		}
+		Entry entry = getConstantBlocks(pathName).get(gridPosition);
+		return entry != null ? "constant:" + Arrays.toString(entry.size) + ":" +
+			BaseEncoding.base16().encode(entry.value) : null;
+	}
+
+	/**
+	 * Size of the map entry is reported for constant blocks.
+	 */
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		long result = super.getStoredBlockSize(pathName, gridPosition);
+		if (result >= 0) {
+			return result;
+		}
+		Entry entry = getConstantBlocks(pathName).get(gridPosition);
+		return entry != null ? entry.getStoredSize() : -1;
+	}
+
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		Map<List<Long>, Long> constants = new HashMap<>();
+		getConstantBlocks(pathName).forEach((gridPosition, storedSize) -> constants
+			.put(ConstantBlocks.asKey(gridPosition), storedSize));
+		super.listBlocks(pathName, (gridPosition, storedSize) -> {
+			if (!constants.containsKey(ConstantBlocks.asKey(gridPosition))) {
+				consumer.accept(gridPosition, storedSize);
+			}
+		});
+		for (Map.Entry<List<Long>, Long> entry : constants.entrySet()) {
+			consumer.accept(entry.getKey().stream().mapToLong(Long::longValue)
+				.toArray(), entry.getValue());
+		}
+	}
+
+	private ConstantBlocks getConstantBlocks(String pathName)
+		throws IOException
+	{
+		String normalized = pathName.startsWith("/") ? pathName.substring(1)
+			: pathName;
+		try {
+			return MAPS.get(getBasePath() + ":" + normalized,
+				() -> new ConstantBlocks(this, normalized));
+		}
+		catch (ExecutionException | UncheckedExecutionException exc) {
+			throw new IOException(exc.getCause());
+		}
+	}
+
+	/**
+	 * Block read from the map. It carries the value of its voxels, so it can be
+	 * sent as that value without scanning the voxels again.
+	 */
+	@AllArgsConstructor
+	static class ConstantDataBlock<T> implements DataBlock<T> {
+
+		private final DataBlock<T> block;
+
+		private final byte[] value;
+
+		/**
+		 * @return value of every voxel as big endian bytes
+		 */
+		byte[] getValue() {
+			return value.clone();
+		}
+
+		@Override
+		public int[] getSize() {
+			return block.getSize();
+		}
+
+		@Override
+		public long[] getGridPosition() {
+			return block.getGridPosition();
+		}
+
+		@Override
+		public T getData() {
+			return block.getData();
+		}
+
+		@Override
+		public ByteBuffer toByteBuffer() {
+			return block.toByteBuffer();
+		}
+
+		@Override
+		public void readData(ByteBuffer buffer) {
+			block.readData(buffer);
+		}
+
+		@Override
+		public int getNumElements() {
+			return block.getNumElements();
+		}
+	}
+
+	private static class Shard {
+
+		private final Map<List<Long>, Entry> entries;
+
+		/**
+		 * Version of the shard sidecar that the entries correspond to
+		 */
+		private String version;
+
+		private long validatedAt;
+
+		Shard(Map<List<Long>, Entry> entries, String version) {
+			this.entries = entries;
+			this.version = version;
+		}
+	}
+
+	@AllArgsConstructor
+	private static class Entry {
+
+		private final int[] size;
+
+		private final byte[] value;
+
+		int getStoredSize() {
+			return Byte.BYTES + size.length * (Long.BYTES + Integer.BYTES) +
+				Byte.BYTES + value.length;
+		}
+
+		boolean sameAs(int[] otherSize, byte[] otherValue) {
+			return Arrays.equals(size, otherSize) && Arrays.equals(value,
+				otherValue);
+		}
+	}
+
+	/**
+	 * Map of constant blocks of one dataset. Shards are found by listing of
+	 * sidecar files and loaded when they are used first. Other processes may
+	 * change shards too, so a shard is read again if its sidecar changed before
+	 * it is changed and at most once per {@link #REVALIDATION_INTERVAL_MILLIS}
+	 * before it is read. A shard without entries is stored empty, so also its
+	 * removal is conditional.
+	 */
+	@RequiredArgsConstructor
+	private static class ConstantBlocks {
+
+		private final SidecarAccess storage;
+
+		private final String pathName;
+
+		private final Map<String, Shard> shards = new HashMap<>();
+
+		synchronized Entry get(long[] gridPosition) throws IOException {
+			return getShard(getShardKey(gridPosition), false).entries.get(asKey(
+				gridPosition));
+		}
+
+		/**
+		 * Returns after the shard with the entry is stored.
+		 */
+		synchronized void put(long[] gridPosition, int[] size, byte[] value)
+			throws IOException
+		{
+			String shardKey = getShardKey(gridPosition);
+			do {
+				Shard shard = getShard(shardKey, true);
+				Entry previous = shard.entries.get(asKey(gridPosition));
+				if (previous != null && previous.sameAs(size, value)) {
+					return;
+				}
+			}
+			while (!store(shardKey, entries -> entries.put(asKey(gridPosition),
+				new Entry(size.clone(), value))));
+		}
+
+		/**
+		 * @return true if the block was in the map
+		 */
+		synchronized boolean remove(long[] gridPosition) throws IOException {
+			String shardKey = getShardKey(gridPosition);
+			do {
+				if (!getShard(shardKey, true).entries.containsKey(asKey(
+					gridPosition)))
+				{
+					return false;
+				}
+			}
+			while (!store(shardKey, entries -> entries.remove(asKey(gridPosition))));
+			return true;
+		}
+
+		synchronized void forEach(RawBlockAccess.StoredBlockConsumer consumer)
+			throws IOException
+		{
+			for (String sidecar : storage.listSidecars(pathName, SHARD_PREFIX)) {
+				String shardKey = sidecar.substring(SHARD_PREFIX.length());
+				for (Map.Entry<List<Long>, Entry> entry : getShard(shardKey,
+					false).entries.entrySet())
+				{
+					consumer.accept(entry.getKey().stream().mapToLong(Long::longValue)
+						.toArray(), entry.getValue().getStoredSize());
+				}
+			}
+		}
+
+		/**
+		 * Stores the shard changed in a copy of its entries.
+		 * 
+		 * @return false if other process replaced the shard since it was read,
+		 *         the shard is read again then
+		 */
+		private boolean store(String shardKey,
+			Consumer<Map<List<Long>, Entry>> change) throws IOException
+		{
+			String sidecar = SHARD_PREFIX + shardKey;
+			Shard shard = shards.get(shardKey);
+			Map<List<Long>, Entry> entries = new HashMap<>(shard.entries);
+			change.accept(entries);
+			String version = storage.writeSidecar(pathName, sidecar, writeShard(
+				entries), shard.version);
+			if (version == null) {
+				shards.remove(shardKey);
+				return false;
+			}
+			shards.put(shardKey, new Shard(entries, version));
+			return true;
+		}
+
+		/**
+		 * @param forChange the shard is going to be changed, so it is always
+		 *          checked for changes of other processes
+		 */
+		private Shard getShard(String shardKey, boolean forChange)
+			throws IOException
+		{
+			Shard result = shards.get(shardKey);
+			long now = System.currentTimeMillis();
+			if (result != null && !forChange && now -
+				result.validatedAt < REVALIDATION_INTERVAL_MILLIS)
+			{
+				return result;
+			}
+			String sidecar = SHARD_PREFIX + shardKey;
+			String version = storage.getSidecarVersion(pathName, sidecar);
+			if (result == null || !Objects.equals(version, result.version)) {
+				byte[] data = version != null ? storage.readSidecar(pathName,
+					sidecar) : null;
+				result = new Shard(data != null ? readShard(data) : new HashMap<>(),
+					version);
+				shards.put(shardKey, result);
+			}
+			result.validatedAt = now;
+			return result;
+		}
+
+		private static String getShardKey(long[] gridPosition) {
+			return LongStream.of(gridPosition).map(coordinate -> coordinate /
+				SHARD_SIZE).mapToObj(Long::toString).collect(Collectors.joining("_"));
+		}
+
+		private static List<Long> asKey(long[] gridPosition) {
+			return LongStream.of(gridPosition).boxed().collect(Collectors
+				.toList());
+		}
+
+		private static byte[] writeShard(Map<List<Long>, Entry> shard)
+			throws IOException
+		{
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			try (DataOutputStream output = new DataOutputStream(result)) {
+				output.writeInt(shard.size());
+				for (Map.Entry<List<Long>, Entry> entry : shard.entrySet()) {
+					output.writeByte(entry.getKey().size());
+					for (Long coordinate : entry.getKey()) {
+						output.writeLong(coordinate);
+					}
+					for (int size : entry.getValue().size) {
+						output.writeInt(size);
+					}
+					output.writeByte(entry.getValue().value.length);
+					output.write(entry.getValue().value);
+				}
+			}
+			return result.toByteArray();
+		}
+
+		private static Map<List<Long>, Entry> readShard(byte[] data)
+			throws IOException
+		{
+			try (DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(data)))
+			{
+				int count = input.readInt();
+				Map<List<Long>, Entry> result = new HashMap<>();
+				for (int i = 0; i < count; i++) {
+					long[] gridPosition = new long[input.readUnsignedByte()];
+					for (int j = 0; j < gridPosition.length; j++) {
+						gridPosition[j] = input.readLong();
+					}
+					int[] size = new int[gridPosition.length];
+					for (int j = 0; j < size.length; j++) {
+						size[j] = input.readInt();
+					}
+					byte[] value = new byte[input.readUnsignedByte()];
+					input.readFully(value);
+					result.put(asKey(gridPosition), new Entry(size, value));
+				}
+				return result;
+			}
+		}
+	}
+}
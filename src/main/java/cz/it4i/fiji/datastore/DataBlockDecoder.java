@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Decodes blocks sent by clients - three big endian integers with size of the
+ * block followed by big endian voxels. Voxels are read through a small buffer
+ * owned by the decoding thread directly into the array of the created block,
+ * so the only allocation per block is the block itself. Blocks of bytes are
+ * read into their array without the buffer.
+ */
+final class DataBlockDecoder {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<DataBlockDecoder> DECODERS = ThreadLocal
+		.withInitial(DataBlockDecoder::new);
+
+	static DataBlock<?> decode(long[] gridPosition, InputStream inputStream,
+		DataType dataType) throws IOException
+	{
+		return DECODERS.get().decodeBlock(gridPosition, inputStream, dataType);
+	}
+
+	private final byte[] array = new byte[BUFFER_SIZE];
+
+	private final ByteBuffer buffer = ByteBuffer.wrap(array);
+
+	// views are created once and cleared before every bulk get
+	private final ShortBuffer shorts = buffer.asShortBuffer();
+
+	private final IntBuffer ints = buffer.asIntBuffer();
+
+	private final LongBuffer longs = buffer.asLongBuffer();
+
+	private final FloatBuffer floats = buffer.asFloatBuffer();
+
+	private final DoubleBuffer doubles = buffer.asDoubleBuffer();
+
+	private DataBlockDecoder() {}
+
+	private DataBlock<?> decodeBlock(long[] gridPosition,
+		InputStream inputStream, DataType dataType) throws IOException
+	{
+		int[] size = new int[3];
+		if (readFully(inputStream, array, 0, size.length *
+			Integer.BYTES) < size.length * Integer.BYTES)
+		{
+			throw new EOFException("Block header is not complete");
+		}
+		for (int i = 0; i < size.length; i++) {
+			size[i] = buffer.getInt(i * Integer.BYTES);
+		}
+		DataBlock<?> block = dataType.createDataBlock(size, gridPosition);
+		Object data = block.getData();
+		int numElements = block.getNumElements();
+		if (data instanceof byte[]) {
+			// a shorter body leaves remaining voxels zero as before
+			readFully(inputStream, (byte[]) data, 0, numElements);
+			return block;
+		}
+		int elementSize = N5Access.getSizeOfElement(dataType);
+		int offset = 0;
+		int carry = 0;
+		while (offset < numElements) {
+			long needed = (long) (numElements - offset) * elementSize - carry;
+			int count = inputStream.read(array, carry, (int) Math.min(
+				BUFFER_SIZE - carry, needed));
+			if (count < 0) {
+				break;
+			}
+			int available = carry + count;
+			int elements = available / elementSize;
+			copy(data, offset, elements);
+			offset += elements;
+			carry = available - elements * elementSize;
+			System.arraycopy(array, elements * elementSize, array, 0, carry);
+		}
+		return block;
+	}
+
+	private void copy(Object data, int offset, int elements) {
+		if (elements == 0) {
+			return;
+		}
+		if (data instanceof short[]) {
+			shorts.clear();
+			shorts.get((short[]) data, offset, elements);
+		}
+		else if (data instanceof int[]) {
+			ints.clear();
+			ints.get((int[]) data, offset, elements);
+		}
+		else if (data instanceof long[]) {
+			longs.clear();
+			longs.get((long[]) data, offset, elements);
+		}
+		else if (data instanceof float[]) {
+			floats.clear();
+			floats.get((float[]) data, offset, elements);
+		}
+		else if (data instanceof double[]) {
+			doubles.clear();
+			doubles.get((double[]) data, offset, elements);
+		}
+		else {
+			throw new IllegalArgumentException("Data " + data.getClass() +
+				" not supported");
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len)
+		throws IOException
+	{
+		int n = 0;
+		while (n < len) {
+			int count = in.read(b, off + n, len - n);
+			if (count < 0) {
+				break;
+			}
+			n += count;
+		}
+		return n;
+	}
+}
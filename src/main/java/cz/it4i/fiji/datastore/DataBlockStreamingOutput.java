@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import cz.it4i.fiji.datastore.BaseBlockRequestHandler.BlockIdentification;
+
+/**
+ * Writes requested blocks straight into the response stream. Blocks are read
+ * one by one while the response is being written, each one is sent as its
+ * size header followed by its payload in bulk, so the whole response is never
+ * held in memory.
+ */
+class DataBlockStreamingOutput implements StreamingOutput {
+
+	private final DatasetServerImpl datasetServer;
+
+	private final List<BlockIdentification> blocks;
+
+	private final TransferEncoding encoding;
+
+	private final String session;
+
+	/**
+	 * First of blocks if it was read by {@link #open()} and not written yet
+	 */
+	private DataBlock<?> first;
+
+	DataBlockStreamingOutput(DatasetServerImpl datasetServer,
+		List<BlockIdentification> blocks)
+	{
+		this(datasetServer, blocks, TransferEncoding.NATIVE,
+			Readahead.ANONYMOUS_SESSION);
+	}
+
+	/**
+	 * @param session client session the blocks are read in, see
+	 *          {@link Readahead#getSession(String, String)}
+	 */
+	DataBlockStreamingOutput(DatasetServerImpl datasetServer,
+		List<BlockIdentification> blocks, TransferEncoding encoding,
+		String session)
+	{
+		this.datasetServer = datasetServer;
+		this.blocks = blocks;
+		this.encoding = encoding;
+		this.session = session;
+	}
+
+	/**
+	 * Reads the first block before the response is committed, so a failure of
+	 * the storage is still reported as an error response instead of a
+	 * truncated one.
+	 */
+	DataBlockStreamingOutput open() throws IOException {
+		first = read(blocks.get(0));
+		return this;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		for (BlockIdentification bi : blocks) {
+			DataBlock<?> block = first != null ? first : read(bi);
+			first = null;
+			writeBlock(output, block, datasetServer.getType(bi.time, bi.channel,
+				bi.angle), encoding);
+		}
+		output.flush();
+	}
+
+	private DataBlock<?> read(BlockIdentification bi) throws IOException {
+		DataBlock<?> block = datasetServer.read(bi.gridPosition, bi.time,
+			bi.channel, bi.angle, session);
+		// block do not exist - return empty block having size [-1, -1, -1]
+		if (block == null) {
+			block = datasetServer.getType(bi.time, bi.channel, bi.angle)
+				.createDataBlock(new int[] { -1, -1, -1 }, bi.gridPosition, 0);
+		}
+		return block;
+	}
+
+	static void writeBlock(OutputStream output, DataBlock<?> block)
+		throws IOException
+	{
+		writeBlock(output, block, null, TransferEncoding.NATIVE);
+	}
+
+	/**
+	 * @param dataType type of the block, it is needed only for other than
+	 *          native encoding
+	 */
+	static void writeBlock(OutputStream output, DataBlock<?> block,
+		DataType dataType, TransferEncoding encoding) throws IOException
+	{
+		int[] size = block.getSize();
+		ByteBuffer header = ByteBuffer.allocate(size.length * Integer.BYTES);
+		header.asIntBuffer().put(size);
+		write(output, header);
+		write(output, encoding.encode(block, dataType));
+	}
+
+	static void write(OutputStream output, ByteBuffer buffer)
+		throws IOException
+	{
+		if (buffer.hasArray()) {
+			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		WritableByteChannel channel = Channels.newChannel(output);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -8,6 +8,7 @@
 package cz.it4i.fiji.datastore;
 
 
+import static cz.it4i.fiji.datastore.DatasetPathRoutines.getContentsDirectory;
 import static cz.it4i.fiji.datastore.DatasetPathRoutines.getDataDirectory;
 import static cz.it4i.fiji.datastore.DatasetPathRoutines.getDatasetVersionDirectory;
 import static cz.it4i.fiji.datastore.DatasetPathRoutines.getXMLFile;
@@ -15,6 +16,7 @@ import static cz.it4i.fiji.datastore.DatasetPathRoutines.getXMLFile;
 import com.google.common.base.Strings;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -31,7 +33,6 @@ import java.util.Objects;
 import javax.ws.rs.NotFoundException;
 
 import org.apache.commons.io.FileUtils;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 
@@ -112,8 +113,33 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 
 	@Override
 	public N5Writer getWriter(int versionNumber) throws IOException {
-		Path result = getDataPath(pathOfDataset, versionNumber);
-		return new N5FSWriter(result.toString());
+		return WriteBehindN5Writer.decorate(createWriter(pathOfDataset,
+			versionNumber));
+	}
+
+	/**
+	 * @return writer of blocks directly into the storage
+	 */
+	static N5Writer createWriter(Path pathOfDataset, int versionNumber)
+		throws IOException
+	{
+		String path = getDataPath(pathOfDataset, versionNumber).toString();
+		FilesystemN5Writer writer = ApplicationConfiguration
+			.isBlockDeduplicationEnabled() ? new DeduplicatingN5Writer(path,
+				getContentStore(pathOfDataset)) : new FilesystemN5Writer(path);
+		return BlockStatisticsN5Writer.decorate(BlockIndexN5Writer.decorate(
+			ConstantBlockN5Writer.decorate(writer)));
+	}
+
+	/**
+	 * @param dataPath data directory of a dataset version, see
+	 *          {@link DatasetPathRoutines#getDataDirectory(Path)}
+	 * @return writer of blocks directly into the storage
+	 */
+	static N5Writer createWriter(Path dataPath) throws IOException {
+		Path versionPath = dataPath.getParent();
+		return createWriter(versionPath.getParent(), Integer.parseInt(versionPath
+			.getFileName().toString()));
 	}
 
 	@Override
@@ -126,7 +152,9 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 		Path versionPath = getDatasetVersionDirectory(pathOfDataset, version);
 		Path initialVersionPath = getDatasetVersionDirectory(pathOfDataset,
 			INITIAL_VERSION);
+		flushJournal();
 		Files.move(versionPath, initialVersionPath, StandardCopyOption.ATOMIC_MOVE);
+		invalidateBlockSidecars();
 	}
 
 	@Override
@@ -141,9 +169,24 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 			throw new IllegalStateException("Version " + version +
 				" is the last version in dataset " + uuid);
 		}
+		flushJournal();
 		FileUtils.deleteDirectory(versionPath.toFile());
+		invalidateBlockSidecars();
+		if (ApplicationConfiguration.isBlockDeduplicationEnabled()) {
+			getContentStore(pathOfDataset).collect();
+		}
 	}
 	
+	/**
+	 * Blocks are not journaled while the dataset is shared, see
+	 * {@link WriteBehindN5Writer#writeThrough(String)}.
+	 */
+	@Override
+	public Closeable shareWithOtherProcess() throws IOException {
+		return WriteBehindN5Writer.writeThrough(pathOfDataset.toString() +
+			File.separator);
+	}
+
 	@Override
 	public String getUUID() {
 		return uuid;
@@ -152,11 +195,15 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 	@Override
 	public void deleteDataset() {
 		try {
+			flushJournal();
 			FileUtils.deleteDirectory(pathOfDataset.toFile());
 		}
 		catch (IOException exc) {
 			throw new UncheckedExecutionException(exc);
 		}
+		finally {
+			invalidateBlockSidecars();
+		}
 	}
 
 	@Override
@@ -215,11 +262,26 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 			dataDirectory, seq), dataDirectory);
 	}
 
+	private void flushJournal() throws IOException {
+		WriteBehindN5Writer.flush(pathOfDataset.toString() + File.separator);
+	}
+
+	private void invalidateBlockSidecars() {
+		String prefix = pathOfDataset.toString() + File.separator;
+		BlockIndexN5Writer.invalidate(prefix);
+		BlockStatisticsN5Writer.invalidate(prefix);
+		ConstantBlockN5Writer.invalidate(prefix);
+	}
+
 	private void createNewVersion(Path src, Path dst) throws IOException {
 		FileUtils.copyDirectory(src.toFile(), dst.toFile(),
 			DatasetFilesystemHandler::isNotBlockFileOrDir);
 	}
 
+	private static BlockContentStore getContentStore(Path pathOfDataset) {
+		return new BlockContentStore(getContentsDirectory(pathOfDataset));
+	}
+
 	static private Path getDataPath(Path pathOfDataset, int latestVersion) {
 		return getDataDirectory(getDatasetVersionDirectory(pathOfDataset,
 			latestVersion));
@@ -230,7 +292,8 @@ public class DatasetFilesystemHandler implements DatasetHandler {
 	}
 
 	private static boolean isNotBlockFileOrDir(File file) {
-		return !isBlockFileDirOrVersion(file);
+		return !isBlockFileDirOrVersion(file) && !SidecarAccess.isSidecar(file
+			.getName()) && !FilesystemN5Writer.isSidecarLock(file.getName());
 	}
 
 	private static SpimData loadFromXML(Path path) throws SpimDataException {
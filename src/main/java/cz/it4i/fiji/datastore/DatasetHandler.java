@@ -1,5 +1,6 @@
 package cz.it4i.fiji.datastore;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,6 +54,14 @@ public interface DatasetHandler {
 
 	void deleteVersion(int version) throws IOException;
 
+	/**
+	 * Blocks written by this process are stored so that other process serving
+	 * the dataset reads them, until the returned handle is closed.
+	 */
+	default Closeable shareWithOtherProcess() throws IOException {
+		return () -> {};
+	}
+
 	default N5Writer constructChainOfWriters() throws IOException {
 
 		N5WriterItemOfChain result = null;
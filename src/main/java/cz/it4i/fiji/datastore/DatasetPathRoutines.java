@@ -26,6 +26,14 @@ public final class DatasetPathRoutines {
 		return datasetVersionDirectory.resolve(BASE_NAME + ".n5");
 	}
 
+	/**
+	 * @return directory of {@link BlockContentStore} shared by all versions of
+	 *         the dataset
+	 */
+	public static Path getContentsDirectory(Path baseDirectory) {
+		return baseDirectory.resolve("contents");
+	}
+
 	public static Path getXMLFile(Path datasetVersionDirectory)
 	{
 		return datasetVersionDirectory.resolve(BASE_NAME + ".xml");
@@ -16,16 +16,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -55,6 +64,58 @@ public class DatasetServerEndpoint implements Serializable {
 
 	public static final String BLOCKS_PARAM = "BLOCKS";
 
+	public static final String SIZE_X_PARAM = "SIZE_X";
+
+	public static final String SIZE_Y_PARAM = "SIZE_Y";
+
+	public static final String SIZE_Z_PARAM = "SIZE_Z";
+
+	public static final String SIZES_PARAM = "sizes";
+
+	public static final String FORMAT_PARAM = "format";
+
+	public static final String FORMAT_HEADER = "X-Datastore-Format";
+
+	public static final String COMPRESSION_HEADER = "X-Datastore-Compression";
+
+	public static final String OPERATION_PARAM = "operation";
+
+	public static final String AXIS_PARAM = "axis";
+
+	public static final String DATA_TYPE_HEADER = "X-Datastore-Data-Type";
+
+	public static final String ENCODING_PARAM = "encoding";
+
+	public static final String WINDOW_MIN_PARAM = "windowMin";
+
+	public static final String WINDOW_MAX_PARAM = "windowMax";
+
+	public static final String BYTE_ORDER_PARAM = "byteOrder";
+
+	public static final String BYTE_ORDER_HEADER = "X-Datastore-Byte-Order";
+
+	public static final String MIN_ABOVE_PARAM = "minAbove";
+
+	public static final String MIN_BELOW_PARAM = "minBelow";
+
+	public static final String MAX_ABOVE_PARAM = "maxAbove";
+
+	public static final String MAX_BELOW_PARAM = "maxBelow";
+
+	public static final String SESSION_PARAM = "SESSION";
+
+	public static final String PART_PARAM = "PART";
+
+	public static final String CHECKSUM_HEADER = "X-Datastore-CRC32C";
+
+	/**
+	 * Identifies a client session, blocks read in one session are prefetched
+	 * in their own readahead streams.
+	 */
+	public static final String SESSION_HEADER = "X-Datastore-Session";
+
+	public static final String HASH_PARAM = "HASH";
+
 	@Inject
 	TimeoutTimer timer;
 
@@ -79,7 +140,8 @@ public class DatasetServerEndpoint implements Serializable {
 			.getUUID()).mode(
 			dataServerManager.getMode()).version(dataServerManager.getVersion())
 			.resolutionLevels(dataServerManager.getResolutionLevels()).serverTimeout(
-				dataServerManager.getServerTimeout()).build();
+				dataServerManager.getServerTimeout()).blockCache(BlockCache
+					.getInstance().getStatistics()).build();
 		ResponseBuilder responseBuilder = Response.ok();
 		if (result.getUuid() != null) {
 			responseBuilder.entity(result).type(MediaType.APPLICATION_JSON_TYPE)
@@ -104,13 +166,25 @@ public class DatasetServerEndpoint implements Serializable {
 			+ "{" + BLOCKS_PARAM + ":/?.*}")
 	// @formatter:on
 	@GET
-	public Response readBlock(@PathParam(X_PARAM) long x,
+	public CompletionStage<Response> readBlock(@PathParam(X_PARAM) long x,
 		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
 		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
-		@PathParam(ANGLE_PARAM) int angle, @PathParam(BLOCKS_PARAM) String blocks)
+		@PathParam(ANGLE_PARAM) int angle, @PathParam(BLOCKS_PARAM) String blocks,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+		@Context Request request)
 	{
-		return blockRequestHandler.readBlock(datasetServer, x, y, z, time, channel,
-			angle, blocks);
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler.readBlock(
+			datasetServer, x, y, z, time, channel, angle, blocks, BlockFormat.of(
+				format, formatHeader), TransferEncoding.of(encoding, windowMin,
+					windowMax, byteOrder), request, Readahead.getSession(session,
+						authorization)));
 
 	}
 
@@ -127,14 +201,410 @@ public class DatasetServerEndpoint implements Serializable {
 	// @formatter:on
 	@POST
 	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
-	public Response writeBlock(@PathParam(X_PARAM) long x,
+	public CompletionStage<Response> writeBlock(@PathParam(X_PARAM) long x,
 		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
 		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
 		@PathParam(ANGLE_PARAM) int angle,
-		@PathParam(BLOCKS_PARAM) String blocks, InputStream inputStream)
+		@PathParam(BLOCKS_PARAM) String blocks,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, InputStream inputStream)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeBlock(datasetServer, x, y, z, time, channel, angle, blocks,
+				BlockFormat.of(format, formatHeader), ifMatch, inputStream));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/batch/read")
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> readBlocks(
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+		InputStream inputStream)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.readBlocks(datasetServer, inputStream, BlockFormat.of(format,
+				formatHeader), TransferEncoding.of(encoding, windowMin, windowMax,
+					byteOrder), Readahead.getSession(session, authorization)));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/batch/write")
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeBlocks(
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader, InputStream inputStream)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeBlocks(datasetServer, inputStream, BlockFormat.of(format,
+				formatHeader)));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/region"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + SIZE_X_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Y_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response readRegion(@PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(SIZE_X_PARAM) int sizeX, @PathParam(SIZE_Y_PARAM) int sizeY,
+		@PathParam(SIZE_Z_PARAM) int sizeZ, @PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder)
+	{
+		return blockRequestHandler.readRegion(datasetServer, new long[] { x, y,
+			z }, new int[] { sizeX, sizeY, sizeZ }, time, channel, angle,
+			TransferEncoding.of(encoding, windowMin, windowMax, byteOrder));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/region"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + SIZE_X_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Y_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeRegion(@PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(SIZE_X_PARAM) int sizeX, @PathParam(SIZE_Y_PARAM) int sizeY,
+		@PathParam(SIZE_Z_PARAM) int sizeZ, @PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		InputStream inputStream)
 	{
-		return blockRequestHandler.writeBlock(datasetServer, x, y, z, time, channel,
-			angle, blocks, inputStream);
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeRegion(datasetServer, new long[] { x, y, z }, new int[] { sizeX,
+				sizeY, sizeZ }, time, channel, angle, inputStream));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/projection"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + SIZE_X_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Y_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response readProjection(@PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(SIZE_X_PARAM) int sizeX, @PathParam(SIZE_Y_PARAM) int sizeY,
+		@PathParam(SIZE_Z_PARAM) int sizeZ, @PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(OPERATION_PARAM) String operation,
+		@QueryParam(AXIS_PARAM) String axis)
+	{
+		return blockRequestHandler.readProjection(datasetServer, new long[] { x, y,
+			z }, new int[] { sizeX, sizeY, sizeZ }, time, channel, angle, operation,
+			axis);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/statistics"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response readStatistics(@PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle)
+	{
+		return blockRequestHandler.readStatistics(datasetServer, null, null, time,
+			channel, angle);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/statistics"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + SIZE_X_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Y_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response readStatistics(@PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(SIZE_X_PARAM) int sizeX, @PathParam(SIZE_Y_PARAM) int sizeY,
+		@PathParam(SIZE_Z_PARAM) int sizeZ, @PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle)
+	{
+		return blockRequestHandler.readStatistics(datasetServer, new long[] { x, y,
+			z }, new int[] { sizeX, sizeY, sizeZ }, time, channel, angle);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/statistics/blocks"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response findBlocks(@PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(MIN_ABOVE_PARAM) Double minAbove,
+		@QueryParam(MIN_BELOW_PARAM) Double minBelow,
+		@QueryParam(MAX_ABOVE_PARAM) Double maxAbove,
+		@QueryParam(MAX_BELOW_PARAM) Double maxBelow)
+	{
+		return blockRequestHandler.findBlocks(datasetServer, time, channel, angle,
+			minAbove, minBelow, maxAbove, maxBelow);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+//@formatter:off
+	@Path("/occupancy"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@GET
+	public Response readOccupancy(@PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(SIZES_PARAM) boolean withSizes)
+	{
+		return blockRequestHandler.readOccupancy(datasetServer, time, channel,
+			angle, withSizes);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("/readahead"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + SIZE_X_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Y_PARAM + ":\\d+}"
+			+ "/{" + SIZE_Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@POST
+	public Response hintReadahead(@PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(SIZE_X_PARAM) long sizeX, @PathParam(SIZE_Y_PARAM) long sizeY,
+		@PathParam(SIZE_Z_PARAM) long sizeZ, @PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(AXIS_PARAM) String axis,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization)
+	{
+		return blockRequestHandler.hintReadahead(datasetServer, new long[] { x, y,
+			z }, new long[] { sizeX, sizeY, sizeZ }, time, channel, angle, axis,
+			Readahead.getSession(session, authorization));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("/readahead"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@DELETE
+	public Response cancelReadahead(@PathParam(TIME_PARAM) int time,
+		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization)
+	{
+		return blockRequestHandler.cancelReadahead(datasetServer, time, channel,
+			angle, Readahead.getSession(session, authorization));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/uploads")
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public Response createUploadSession(InputStream inputStream) {
+		return blockRequestHandler.createUploadSession(datasetServer, inputStream);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/uploads/{" + SESSION_PARAM + "}")
+	@GET
+	public Response getUploadSession(@PathParam(SESSION_PARAM) String session) {
+		return blockRequestHandler.getUploadSession(datasetServer, session);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/uploads/{" + SESSION_PARAM + "}")
+	@DELETE
+	public Response deleteUploadSession(
+		@PathParam(SESSION_PARAM) String session)
+	{
+		return blockRequestHandler.deleteUploadSession(datasetServer, session);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	// @formatter:off
+	@Path("/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeSessionBlock(
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(CHECKSUM_HEADER) String checksum, InputStream inputStream)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeSessionBlock(datasetServer, session, x, y, z, time, channel,
+				angle, BlockFormat.of(format, formatHeader), checksum, inputStream));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	// @formatter:off
+	@Path("/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}"
+			+ "/parts/{" + PART_PARAM + ":\\d+}")
+	// @formatter:on
+	@PUT
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeSessionBlockPart(
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle, @PathParam(PART_PARAM) int part,
+		@HeaderParam(CHECKSUM_HEADER) String checksum, InputStream inputStream)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeSessionBlockPart(datasetServer, session, x, y, z, time, channel,
+				angle, part, checksum, inputStream));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	// @formatter:off
+	@Path("/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}"
+			+ "/parts")
+	// @formatter:on
+	@POST
+	public CompletionStage<Response> completeSessionBlock(
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(CHECKSUM_HEADER) String checksum)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.completeSessionBlock(datasetServer, session, x, y, z, time, channel,
+				angle, BlockFormat.of(format, formatHeader), checksum));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/contents")
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response findBlockContents(List<String> hashes) {
+		return blockRequestHandler.findBlockContents(datasetServer, hashes);
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	// @formatter:off
+	@Path("/contents/{" + HASH_PARAM + "}"
+			+ "/{" + X_PARAM + ":\\d+}"
+			+ "/{" + Y_PARAM + ":\\d+}"
+			+ "/{" + Z_PARAM + ":\\d+}"
+			+ "/{" + TIME_PARAM + ":\\d+}"
+			+ "/{" + CHANNEL_PARAM + ":\\d+}"
+			+ "/{" + ANGLE_PARAM + ":\\d+}")
+	// @formatter:on
+	@POST
+	public CompletionStage<Response> writeContentBlock(
+		@PathParam(HASH_PARAM) String hash, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle)
+	{
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.writeContentBlock(datasetServer, hash, x, y, z, time, channel, angle));
+	}
+
+	@Authorization
+	@TimeoutingRequest
+	@Path("/pyramid/wait")
+	@POST
+	public CompletionStage<Response> awaitOtherResolutions() {
+		return blockRequestHandler.handleAsync(() -> blockRequestHandler
+			.awaitOtherResolutions(datasetServer));
 	}
 
 	@Authorization
@@ -172,6 +642,22 @@ public class DatasetServerEndpoint implements Serializable {
 
 
 
+	/**
+	 * Coarser resolution levels are completed before the server stops.
+	 */
+	@PreDestroy
+	void destroy() {
+		if (datasetServer == null) {
+			return;
+		}
+		try {
+			datasetServer.awaitOtherResolutions();
+		}
+		catch (IOException exc) {
+			log.error("destroy", exc);
+		}
+	}
+
 	private void getResponseAsHTML(ResponseBuilder responseBuilder)
 	{
 		StringBuilder sb = new StringBuilder();
@@ -12,16 +12,23 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import javax.ws.rs.NotFoundException;
 
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.N5Writer;
 
+import cz.it4i.fiji.datastore.core.Version;
 import cz.it4i.fiji.datastore.register_service.OperationMode;
 import mpicbg.spim.data.SpimDataException;
 
@@ -34,7 +41,8 @@ public class DatasetServerImpl implements Closeable, Serializable {
 		OperationMode.READ, OperationMode.READ_WRITE);
 
 	private static final Set<OperationMode> WRITING_MODES = EnumSet.of(
-		OperationMode.WRITE, OperationMode.READ_WRITE);
+		OperationMode.WRITE, OperationMode.READ_WRITE,
+		OperationMode.WRITE_TO_OTHER_RESOLUTIONS);
 
 	private N5Access n5Access;
 
@@ -67,13 +75,133 @@ public class DatasetServerImpl implements Closeable, Serializable {
 
 	}
 
+	/**
+	 * @param session client session the read belongs to, see
+	 *          {@link Readahead#getSession(String, String)}
+	 */
 	public DataBlock<?> read(long[] gridPosition, int time, int channel,
+		int angle, String session) throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		Readahead readahead = Readahead.getInstance();
+		if (!readahead.isEnabled()) {
+			return n5Access.read(gridPosition, time, channel, angle);
+		}
+		Readahead.Stream stream = readahead.getStream(getReadaheadKey(time,
+			channel, angle, session));
+		DataBlock<?> result = stream.take(gridPosition, () -> n5Access
+			.getBlockVersion(gridPosition, time, channel, angle));
+		if (result == null) {
+			result = n5Access.read(gridPosition, time, channel, angle);
+		}
+		long[] gridDimensions = n5Access.getGridDimensions(time, channel, angle);
+		if (gridDimensions != null) {
+			stream.accessed(gridPosition, gridDimensions, position -> prefetch(
+				position, time, channel, angle));
+		}
+		return result;
+	}
+
+	/**
+	 * Announces that the blocks of the box are going to be read in order of
+	 * the hint.
+	 */
+	void hintReadahead(Readahead.Hint hint, int time, int channel, int angle,
+		String session)
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		Readahead readahead = Readahead.getInstance();
+		if (readahead.isEnabled()) {
+			readahead.getStream(getReadaheadKey(time, channel, angle, session)).hint(
+				hint, position -> prefetch(position, time, channel, angle));
+		}
+	}
+
+	void cancelReadahead(int time, int channel, int angle, String session) {
+		Readahead readahead = Readahead.getInstance();
+		if (readahead.isEnabled()) {
+			readahead.getStream(getReadaheadKey(time, channel, angle, session))
+				.cancel();
+		}
+	}
+
+	public byte[] readRaw(long[] gridPosition, int time, int channel,
+		int angle) throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		return n5Access.readRaw(gridPosition, time, channel, angle);
+	}
+
+	public String getBlockVersion(long[] gridPosition, int time, int channel,
 		int angle) throws IOException
+	{
+		return n5Access.getBlockVersion(gridPosition, time, channel, angle);
+	}
+
+	BlockIndex getOccupancy(int time, int channel, int angle)
+		throws IOException
 	{
 		if (!READING_MODES.contains(mode)) {
 			throw new IllegalStateException("Cannot read in mode: " + mode);
 		}
-		return n5Access.read(gridPosition, time, channel, angle);
+		return n5Access.getOccupancy(time, channel, angle);
+	}
+
+	public DataBlock<?> readRegion(long[] min, int[] size, int time,
+		int channel, int angle) throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		return n5Access.readRegion(min, size, time, channel, angle);
+	}
+
+	/**
+	 * @see N5Access#writeRegion(long[], DataBlock, int, int, int, Executor)
+	 */
+	public void writeRegion(long[] min, int[] size, int time, int channel,
+		int angle, InputStream inputStream, Executor executor) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		n5Access.writeRegion(min, n5Access.parseRegion(min, size, time, channel,
+			angle, inputStream), time, channel, angle, executor);
+	}
+
+	BlockStatistics getStatistics(long[] min, int[] size, int time, int channel,
+		int angle) throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		return n5Access.getStatistics(min, size, time, channel, angle);
+	}
+
+	List<BlockStatistics.Entry> findBlocks(int time, int channel, int angle,
+		Predicate<BlockStatistics> filter) throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		return n5Access.findBlocks(time, channel, angle, filter);
+	}
+
+	DataBlock<?> project(long[] min, int[] size, int time, int channel,
+		int angle, Projection.Operation operation, int axis, ForkJoinPool pool)
+		throws IOException
+	{
+		if (!READING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot read in mode: " + mode);
+		}
+		return n5Access.project(min, size, time, channel, angle, operation, axis,
+			pool);
 	}
 
 	public void write(long[] gridPosition, int time, int channel, int angle,
@@ -85,14 +213,166 @@ public class DatasetServerImpl implements Closeable, Serializable {
 		n5Access.write(gridPosition, time, channel, angle, inputStream);
 	}
 
+	/**
+	 * @see N5Access#parse(long[], int, int, int, InputStream)
+	 */
+	public DataBlock<?> parse(long[] gridPosition, int time, int channel,
+		int angle, InputStream inputStream) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return n5Access.parse(gridPosition, time, channel, angle, inputStream);
+	}
+
+	/**
+	 * @see N5Access#store(DataBlock, int, int, int)
+	 */
+	public void store(DataBlock<?> block, int time, int channel, int angle)
+		throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		n5Access.store(block, time, channel, angle);
+	}
+
+	/**
+	 * @see N5Access#store(DataBlock, int, int, int, Predicate)
+	 */
+	public String store(DataBlock<?> block, int time, int channel, int angle,
+		Predicate<String> condition) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return n5Access.store(block, time, channel, angle, condition);
+	}
+
+	/**
+	 * @see N5Access#parseStored(long[], int, int, int, InputStream)
+	 */
+	public N5Access.StoredBlock parseStored(long[] gridPosition, int time,
+		int channel, int angle, InputStream inputStream) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return n5Access.parseStored(gridPosition, time, channel, angle,
+			inputStream);
+	}
+
+	/**
+	 * @see N5Access#getStoredContent(long[], int, int, int, String)
+	 */
+	public N5Access.StoredBlock getStoredContent(long[] gridPosition, int time,
+		int channel, int angle, String hash) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return n5Access.getStoredContent(gridPosition, time, channel, angle,
+			hash);
+	}
+
+	/**
+	 * @see N5Access#findBlockContents(List)
+	 */
+	public List<String> findBlockContents(List<String> hashes)
+		throws IOException
+	{
+		return n5Access.findBlockContents(hashes);
+	}
+
+	/**
+	 * @see N5Access#storeStored(N5Access.StoredBlock, int, int, int)
+	 */
+	public void storeStored(N5Access.StoredBlock block, int time, int channel,
+		int angle) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		n5Access.storeStored(block, time, channel, angle);
+	}
+
+	/**
+	 * @see N5Access#storeStored(N5Access.StoredBlock, int, int, int, Predicate)
+	 */
+	public String storeStored(N5Access.StoredBlock block, int time,
+		int channel, int angle, Predicate<String> condition) throws IOException
+	{
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return n5Access.storeStored(block, time, channel, angle, condition);
+	}
+
+	/**
+	 * @see N5Access#awaitOtherResolutions()
+	 */
+	public void awaitOtherResolutions() throws IOException {
+		n5Access.awaitOtherResolutions();
+	}
 
 	public DataType getType(int time, int channel, int angle) {
 		return n5Access.getType(time, channel, angle);
 	}
 
+	public Compression getCompression(int time, int channel, int angle)
+		throws IOException
+	{
+		return n5Access.getViewSetupTimepoint(time, channel, angle)
+			.getCompression();
+	}
+
 	private void initN5Access() throws SpimDataException, IOException {
 		n5Access = new N5Access(datasetHandler.getSpimData(), createN5Writer(),
-			resolutionLevels, mode);
+			resolutionLevels, mode, getVersionKey());
+	}
+
+	/**
+	 * @return key of dataset version and resolution levels written by the
+	 *         server, upload sessions are bound to it
+	 */
+	String getUploadSessionKey() {
+		if (!WRITING_MODES.contains(mode)) {
+			throw new IllegalStateException("Cannot write in mode: " + mode);
+		}
+		return getVersionKey() + ":" + resolutionLevels.stream().map(
+			Arrays::toString).collect(Collectors.joining());
+	}
+
+	private String getVersionKey() {
+		return datasetHandler.getUUID() + ":" + (mixedVersion
+			? Version.MIXED_LATEST_VERSION_NAME : "" + version);
+	}
+
+	/**
+	 * Session is the last, so it cannot be confused with other parts.
+	 */
+	private String getReadaheadKey(int time, int channel, int angle,
+		String session)
+	{
+		return getVersionKey() + ":" + resolutionLevels.stream().map(
+			Arrays::toString).collect(Collectors.joining()) + ":" + time + ":" +
+			channel + ":" + angle + ":" + session;
+	}
+
+	private Readahead.Prefetched prefetch(long[] gridPosition, int time,
+		int channel, int angle) throws IOException
+	{
+		String blockVersion = n5Access.getBlockVersion(gridPosition, time, channel,
+			angle);
+		if (blockVersion == null) {
+			return null;
+		}
+		DataBlock<?> block = n5Access.readUncached(gridPosition, time, channel,
+			angle);
+		if (block == null) {
+			return null;
+		}
+		return new Readahead.Prefetched(block, blockVersion);
 	}
 
 	private N5Writer createN5Writer() throws IOException {
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import static cz.it4i.fiji.datastore.core.Version.stringToIntVersion;
+import static cz.it4i.fiji.datastore.register_service.OperationMode.READ;
+import static cz.it4i.fiji.datastore.register_service.OperationMode.READ_WRITE;
+import static java.util.Collections.singletonList;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.InternalServerErrorException;
+
+import cz.it4i.fiji.datastore.core.Version;
+import cz.it4i.fiji.datastore.register_service.OperationMode;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import mpicbg.spim.data.SpimDataException;
+
+/**
+ * Dataset servers shared by requests of {@link SharedDatasetServerEndpoint},
+ * so metadata of a dataset are parsed and its writers are constructed once
+ * instead of for every request. Servers not used for a while are evicted,
+ * servers of a dataset are dropped when its versions or metadata change.
+ */
+@Log4j2
+@ApplicationScoped
+public class DatasetServerRegistry {
+
+	@Inject
+	ApplicationConfiguration configuration;
+
+	private Cache<String, Registered> servers;
+
+	/**
+	 * Counts changes of datasets, a server created before the last change of
+	 * its dataset is not used even if it was registered after the change.
+	 */
+	private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	void init() {
+		servers = CacheBuilder.newBuilder().maximumSize(ApplicationConfiguration
+			.getServerCacheSize()).expireAfterAccess(ApplicationConfiguration
+				.getServerCacheIdleTime(), TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * @param version number of version or
+	 *          {@link Version#MIXED_LATEST_VERSION_NAME}
+	 */
+	public DatasetServerImpl get(String uuid, int[] resolution, String version) {
+		String key = uuid + ":" + version + ":" + Arrays.toString(resolution);
+		while (true) {
+			long generation = getGeneration(uuid);
+			Registered result;
+			try {
+				result = servers.get(key, () -> new Registered(create(uuid, resolution,
+					version), generation));
+			}
+			catch (ExecutionException exc) {
+				log.error("getDatasetServer", exc.getCause());
+				throw new InternalServerErrorException(exc.getCause());
+			}
+			catch (UncheckedExecutionException exc) {
+				// mapped to a response by exception mappers
+				throw (RuntimeException) exc.getCause();
+			}
+			if (result.generation == getGeneration(uuid)) {
+				return result.server;
+			}
+			servers.asMap().remove(key, result);
+		}
+	}
+
+	/**
+	 * Drops all servers of the dataset. It is called whenever versions or
+	 * metadata of the dataset change.
+	 */
+	public void invalidate(String uuid) {
+		generations.merge(uuid, 1L, Long::sum);
+		servers.asMap().keySet().removeIf(key -> key.startsWith(uuid + ":"));
+	}
+
+	private long getGeneration(String uuid) {
+		return generations.getOrDefault(uuid, 0L);
+	}
+
+	private DatasetServerImpl create(String uuid, int[] resolution,
+		String version) throws SpimDataException, IOException
+	{
+		final boolean mixedVersion = Version.MIXED_LATEST_VERSION_NAME.equals(
+			version);
+		DatasetHandler handler = configuration.getDatasetHandler(uuid);
+		int versionInt = mixedVersion ? handler.getLatestVersion()
+			: stringToIntVersion(version);
+		OperationMode mode = mixedVersion ? READ : READ_WRITE;
+		return new DatasetServerImpl(handler, singletonList(resolution),
+			versionInt, mixedVersion, mode);
+	}
+
+	@AllArgsConstructor
+	private static class Registered {
+
+		private final DatasetServerImpl server;
+
+		private final long generation;
+	}
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+
+/**
+ * {@link FilesystemN5Writer} storing blocks in {@link BlockContentStore}, a
+ * block file of the version is a hard link to its content.
+ */
+public class DeduplicatingN5Writer extends FilesystemN5Writer {
+
+	private final BlockContentStore contents;
+
+	DeduplicatingN5Writer(String basePath, BlockContentStore contents)
+		throws IOException
+	{
+		super(basePath);
+		this.contents = contents;
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(data, datasetAttributes, dataBlock);
+		writeRawBlock(pathName, dataBlock.getGridPosition(), data.toByteArray());
+	}
+
+	/**
+	 * Block whose hash collides with a different held content is written as a
+	 * plain file.
+	 */
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		if (!contents.link(data, getBlockPath(pathName, gridPosition))) {
+			super.writeRawBlock(pathName, gridPosition, data);
+		}
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		return contents.delete(getBlockPath(pathName, gridPosition));
+	}
+
+	@Override
+	public boolean containsBlockContent(String hash) {
+		return contents.contains(hash);
+	}
+
+	@Override
+	public byte[] readBlockContent(String hash) throws IOException {
+		return contents.read(hash);
+	}
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Computes voxels of a coarser resolution level as mean of voxels of a finer
+ * level, the same way as scale pyramid is built when a dataset is rebuilt.
+ */
+final class Downsampling {
+
+	private Downsampling() {}
+
+	/**
+	 * @param source region of the finer level covering the block, it may be
+	 *          clipped by border of the dataset
+	 * @param factors ratio between resolutions of the coarser and the finer
+	 *          level
+	 * @param size size of the computed block
+	 */
+	static DataBlock<?> downsample(DataBlock<?> source, DataType dataType,
+		int[] factors, int[] size, long[] gridPosition)
+	{
+		DataBlock<?> result = dataType.createDataBlock(size, gridPosition);
+		int[] sourceSize = source.getSize();
+		double[] sums = new double[result.getNumElements()];
+		int[] counts = new int[sums.length];
+		Object sourceData = source.getData();
+		int index = 0;
+		for (int z = 0; z < sourceSize[2]; z++) {
+			int offsetZ = z / factors[2] * size[1];
+			for (int y = 0; y < sourceSize[1]; y++) {
+				int offsetY = (offsetZ + y / factors[1]) * size[0];
+				for (int x = 0; x < sourceSize[0]; x++) {
+					int target = offsetY + x / factors[0];
+					sums[target] += VoxelArrays.get(sourceData, dataType, index++);
+					counts[target]++;
+				}
+			}
+		}
+		Object resultData = result.getData();
+		for (int i = 0; i < sums.length; i++) {
+			if (counts[i] > 0) {
+				VoxelArrays.set(resultData, dataType, i, sums[i] / counts[i]);
+			}
+		}
+		return result;
+	}
+}
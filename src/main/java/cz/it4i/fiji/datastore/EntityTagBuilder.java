@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import javax.ws.rs.core.EntityTag;
+
+/**
+ * Builds strong entity tags of responses from versions of blocks they are
+ * composed of, see {@link RawBlockAccess#getBlockVersion(String, long[])}.
+ */
+public final class EntityTagBuilder {
+
+	private static final String MISSING_BLOCK = "-";
+
+	private final Hasher hasher = Hashing.murmur3_128().newHasher();
+
+	/**
+	 * @param representation distinguishes responses composed of the same blocks
+	 *          but encoded differently
+	 */
+	public EntityTagBuilder(String representation) {
+		put(representation);
+	}
+
+	/**
+	 * @param blockId identification of block in the response
+	 * @param blockVersion version of the block or null if the block is missing
+	 */
+	public EntityTagBuilder add(String blockId, String blockVersion) {
+		put(blockId);
+		put(blockVersion != null ? blockVersion : MISSING_BLOCK);
+		return this;
+	}
+
+	public EntityTag build() {
+		return new EntityTag(hasher.hash().toString());
+	}
+
+	private void put(String value) {
+		// terminated so that concatenation of values is not ambiguous
+		hasher.putString(value, UTF_8).putByte((byte) 0);
+	}
+}
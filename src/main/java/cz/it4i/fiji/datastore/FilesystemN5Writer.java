@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+/**
+ * {@link N5FSWriter} providing also access to stored blocks and sidecar files.
+ */
+public class FilesystemN5Writer extends N5FSWriter implements RawBlockAccess,
+	SidecarAccess
+{
+
+	static final String SIDECAR_LOCK_EXTENSION = ".lock";
+
+	private static final long LOCK_RETRY_INTERVAL = 100;
+
+	private static final int BLOCK_PATH_DEPTH = 3;
+
+	private final Path root;
+
+	public FilesystemN5Writer(String basePath) throws IOException {
+		super(basePath);
+		root = Paths.get(basePath);
+	}
+
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(getBlockPath(pathName,
+			gridPosition), StandardOpenOption.READ);
+				FileLock lock = lock(channel, true))
+		{
+			ByteBuffer result = ByteBuffer.allocate((int) channel.size());
+			while (result.hasRemaining() && channel.read(result) >= 0) {
+				// read until the whole file is in buffer
+			}
+			return result.array();
+		}
+		catch (NoSuchFileException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Block is written into a temporary file which then replaces the block file
+	 * atomically, so readers never see a partially written block.
+	 */
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		replaceBlock(pathName, dataBlock.getGridPosition(),
+			output -> DefaultBlockWriter.writeBlock(output, datasetAttributes,
+				dataBlock));
+	}
+
+	/**
+	 * @see #writeBlock(String, DatasetAttributes, DataBlock)
+	 */
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		replaceBlock(pathName, gridPosition, output -> output.write(data));
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		return getVersion(getBlockPath(pathName, gridPosition));
+	}
+
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		try {
+			return Files.size(getBlockPath(pathName, gridPosition));
+		}
+		catch (NoSuchFileException exc) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		Path datasetPath = getBlockPath(pathName, new long[0]);
+		if (!Files.isDirectory(datasetPath)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(datasetPath, BLOCK_PATH_DEPTH)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				Path relative = datasetPath.relativize(path);
+				if (relative.getNameCount() != BLOCK_PATH_DEPTH || !Files
+					.isRegularFile(path))
+				{
+					continue;
+				}
+				long[] gridPosition = new long[BLOCK_PATH_DEPTH];
+				boolean isBlock = true;
+				for (int i = 0; i < BLOCK_PATH_DEPTH && isBlock; i++) {
+					String name = relative.getName(i).toString();
+					isBlock = DatasetHandler.WHOLE_NUMBER_PATTERN.matcher(name).matches();
+					gridPosition[i] = isBlock ? Long.parseLong(name) : -1;
+				}
+				if (isBlock) {
+					consumer.accept(gridPosition, Files.size(path));
+				}
+			}
+		}
+	}
+
+	@Override
+	public byte[] readSidecar(String pathName, String name) throws IOException {
+		try {
+			return Files.readAllBytes(getSidecarPath(pathName, name));
+		}
+		catch (NoSuchFileException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sidecar file is replaced by a new file, so its file key changes even if
+	 * modification time has coarse resolution.
+	 */
+	@Override
+	public String getSidecarVersion(String pathName, String name)
+		throws IOException
+	{
+		return getVersion(getSidecarPath(pathName, name));
+	}
+
+	@Override
+	public void writeSidecar(String pathName, String name, byte[] data)
+		throws IOException
+	{
+		Path sidecar = getSidecarPath(pathName, name);
+		Path temp = createTempFile(sidecar.getParent(), name);
+		try {
+			Files.write(temp, data);
+			Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Other writers of the sidecar file wait for a lock of an auxiliary lock
+	 * file while its version is compared and it is replaced.
+	 */
+	@Override
+	public String writeSidecar(String pathName, String name, byte[] data,
+		String version) throws IOException
+	{
+		Path sidecar = getSidecarPath(pathName, name);
+		try (FileChannel channel = FileChannel.open(sidecar.resolveSibling(sidecar
+			.getFileName() + SIDECAR_LOCK_EXTENSION), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE); FileLock lock = lock(channel, false))
+		{
+			if (!Objects.equals(version, getVersion(sidecar))) {
+				return null;
+			}
+			writeSidecar(pathName, name, data);
+			return getVersion(sidecar);
+		}
+	}
+
+	static boolean isSidecarLock(String fileName) {
+		return fileName.endsWith(SIDECAR_EXTENSION + SIDECAR_LOCK_EXTENSION);
+	}
+
+	@Override
+	public void deleteSidecar(String pathName, String name) throws IOException {
+		Files.deleteIfExists(getSidecarPath(pathName, name));
+	}
+
+	@Override
+	public List<String> listSidecars(String pathName, String prefix)
+		throws IOException
+	{
+		List<String> result = new ArrayList<>();
+		Path datasetPath = getBlockPath(pathName, new long[0]);
+		if (!Files.isDirectory(datasetPath)) {
+			return result;
+		}
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(datasetPath,
+			path -> isSidecarName(path.getFileName().toString(), prefix)))
+		{
+			for (Path path : paths) {
+				String fileName = path.getFileName().toString();
+				result.add(fileName.substring(0, fileName.length() -
+					SIDECAR_EXTENSION.length()));
+			}
+		}
+		return result;
+	}
+
+	private static boolean isSidecarName(String fileName, String prefix) {
+		return fileName.startsWith(prefix) && SidecarAccess.isSidecar(fileName);
+	}
+
+	private static String getVersion(Path path) throws IOException {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path,
+				BasicFileAttributes.class);
+			return attributes.fileKey() + ":" + attributes.lastModifiedTime().to(
+				TimeUnit.NANOSECONDS) + ":" + attributes.size();
+		}
+		catch (NoSuchFileException exc) {
+			return null;
+		}
+	}
+
+	private Path getSidecarPath(String pathName, String name) {
+		return getBlockPath(pathName, new long[0]).resolve(name +
+			SIDECAR_EXTENSION);
+	}
+
+	protected Path getBlockPath(String pathName, long[] gridPosition) {
+		Path result = root.resolve(pathName.startsWith("/") ? pathName.substring(
+			1) : pathName);
+		for (long coordinate : gridPosition) {
+			result = result.resolve(Long.toString(coordinate));
+		}
+		return result;
+	}
+
+	private void replaceBlock(String pathName, long[] gridPosition,
+		BlockContent content) throws IOException
+	{
+		Path path = getBlockPath(pathName, gridPosition);
+		Files.createDirectories(path.getParent());
+		// name of the temporary file is not a number, so it is not listed
+		Path temp = createTempFile(path.getParent(), path.getFileName()
+			.toString() + "-");
+		try {
+			try (OutputStream output = Files.newOutputStream(temp)) {
+				content.writeTo(output);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Creates an empty temporary file with permissions given by umask, so a
+	 * file moved over it is readable as files written by {@link N5FSWriter}.
+	 * {@link Files#createTempFile(Path, String, String)} creates files readable
+	 * only by the owner.
+	 */
+	static Path createTempFile(Path directory, String prefix)
+		throws IOException
+	{
+		while (true) {
+			Path result = directory.resolve(prefix + Long.toUnsignedString(
+				ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try {
+				Files.newOutputStream(result, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE).close();
+				return result;
+			}
+			catch (FileAlreadyExistsException exc) {
+				// another name is tried
+			}
+		}
+	}
+
+	private interface BlockContent {
+
+		void writeTo(OutputStream output) throws IOException;
+	}
+
+	private static FileLock lock(FileChannel channel, boolean shared)
+		throws IOException
+	{
+		while (true) {
+			try {
+				return channel.lock(0L, Long.MAX_VALUE, shared);
+			}
+			catch (OverlappingFileLockException exc) {
+				// the block is locked by other thread of this JVM
+				try {
+					Thread.sleep(LOCK_RETRY_INTERVAL);
+				}
+				catch (InterruptedException exc1) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Waiting for lock was interrupted");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import cz.it4i.fiji.datastore.BaseBlockRequestHandler.BlockIdentification;
+import lombok.AllArgsConstructor;
+
+/**
+ * Fetches requested blocks concurrently and writes every block as a frame as
+ * soon as it is read, so the order of frames does not follow the order of
+ * request. Frame consists of
+ * <ul>
+ * <li>kind of the frame ({@link #BLOCK_FRAME}, {@link #MISSING_FRAME} or
+ * {@link #CONSTANT_FRAME}),</li>
+ * <li>grid position (3 longs), time, channel and angle,</li>
+ * <li>size of the block (3 ints, -1 for a missing block),</li>
+ * <li>data of the block, a block kept in the map of constant blocks (see
+ * {@link ConstantBlockN5Writer}) is sent as the one value of its voxels.</li>
+ * </ul>
+ * All values except voxels are big endian, voxels are encoded by the requested
+ * {@link TransferEncoding}.
+ */
+@AllArgsConstructor
+class FramedBlockStreamingOutput implements StreamingOutput {
+
+	static final int BLOCK_FRAME = 0;
+
+	static final int MISSING_FRAME = 1;
+
+	static final int CONSTANT_FRAME = 2;
+
+	private static final int FRAME_HEADER_SIZE = 4 * Integer.BYTES + 3 *
+		Long.BYTES + 3 * Integer.BYTES;
+
+	private final DatasetServerImpl datasetServer;
+
+	private final List<BlockIdentification> blocks;
+
+	private final ExecutorService executorService;
+
+	private final int parallelism;
+
+	private final TransferEncoding encoding;
+
+	/**
+	 * Client session the blocks are read in, see
+	 * {@link Readahead#getSession(String, String)}
+	 */
+	private final String session;
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		CompletionService<Frame> completionService =
+			new ExecutorCompletionService<>(executorService);
+		List<Future<Frame>> submitted = new LinkedList<>();
+		Iterator<BlockIdentification> iterator = blocks.iterator();
+		int inProgress = 0;
+		try {
+			while (inProgress < parallelism && iterator.hasNext()) {
+				submitted.add(submit(completionService, iterator.next()));
+				inProgress++;
+			}
+			while (inProgress > 0) {
+				Future<Frame> done = completionService.poll();
+				if (done == null) {
+					// nothing else is ready, send what is already written
+					output.flush();
+					done = take(completionService);
+				}
+				inProgress--;
+				if (iterator.hasNext()) {
+					submitted.add(submit(completionService, iterator.next()));
+					inProgress++;
+				}
+				writeFrame(output, get(done));
+			}
+		}
+		finally {
+			for (Future<Frame> future : submitted) {
+				future.cancel(true);
+			}
+		}
+		output.flush();
+	}
+
+	private Future<Frame> submit(CompletionService<Frame> completionService,
+		BlockIdentification bi)
+	{
+		return completionService.submit(() -> new Frame(bi, datasetServer.read(
+			bi.gridPosition, bi.time, bi.channel, bi.angle, session), datasetServer
+				.getType(bi.time, bi.channel, bi.angle)));
+	}
+
+	private void writeFrame(OutputStream output, Frame frame)
+		throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		BlockIdentification bi = frame.blockId;
+		// constant blocks are produced only if they are enabled
+		byte[] constantValue =
+			frame.block instanceof ConstantBlockN5Writer.ConstantDataBlock
+				? ((ConstantBlockN5Writer.ConstantDataBlock<?>) frame.block).getValue()
+				: null;
+		header.putInt(frame.block == null ? MISSING_FRAME : constantValue != null
+			? CONSTANT_FRAME : BLOCK_FRAME);
+		for (long coordinate : bi.gridPosition) {
+			header.putLong(coordinate);
+		}
+		header.putInt(bi.time).putInt(bi.channel).putInt(bi.angle);
+		if (frame.block == null) {
+			header.putInt(-1).putInt(-1).putInt(-1);
+		}
+		else {
+			for (int size : frame.block.getSize()) {
+				header.putInt(size);
+			}
+		}
+		header.flip();
+		DataBlockStreamingOutput.write(output, header);
+		if (constantValue != null) {
+			DataBlockStreamingOutput.write(output, encoding.encode(
+				ConstantBlockN5Writer.createBlock(frame.dataType, new int[] { 1, 1,
+					1 }, bi.gridPosition, constantValue), frame.dataType));
+		}
+		else if (frame.block != null) {
+			DataBlockStreamingOutput.write(output, encoding.encode(frame.block,
+				frame.dataType));
+		}
+	}
+
+	private static Future<Frame> take(CompletionService<Frame> completionService)
+		throws InterruptedIOException
+	{
+		try {
+			return completionService.take();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading of blocks was interrupted");
+		}
+	}
+
+	private static Frame get(Future<Frame> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading of blocks was interrupted");
+		}
+		catch (ExecutionException exc) {
+			Throwable cause = exc.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	@AllArgsConstructor
+	private static class Frame {
+
+		private final BlockIdentification blockId;
+
+		private final DataBlock<?> block;
+
+		private final DataType dataType;
+	}
+}
@@ -7,21 +7,41 @@
  ******************************************************************************/
 package cz.it4i.fiji.datastore;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
 
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -32,8 +52,8 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import bdv.img.n5.BdvN5Format;
 import cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceImpl;
 import cz.it4i.fiji.datastore.register_service.OperationMode;
-import cz.it4i.fiji.datastore.register_service.ResolutionLevel;
 import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
@@ -47,6 +67,18 @@ public class N5Access {
 
 	private static final String DOWNSAMPLING_FACTORS = "downsamplingFactors";
 
+	/**
+	 * Block sent by a client already encoded by compression of the dataset.
+	 */
+	@Getter
+	@AllArgsConstructor(access = AccessLevel.PRIVATE)
+	public static final class StoredBlock {
+
+		private final long[] gridPosition;
+
+		private final byte[] data;
+	}
+
 	@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 	public class ViewSetupTimepoint {
 
@@ -58,17 +90,27 @@ public class N5Access {
 
 		private Map<List<Integer>, Integer> levelIDsmap;
 
-		public synchronized int getLevelID(int[] resolutions) {
-			if (levelIDsmap == null) {
-				levelIDsmap = getLevelIdsMap(writer, viewSetup, timeID);
-			}
-			return levelIDsmap.get(asList(resolutions));
+		public synchronized Integer getLevelID(int[] resolutions) {
+			return getLevelIDsMap().get(asList(resolutions));
 		}
 
+		/**
+		 * @return level stored in the dataset or level computed from a finer
+		 *         level if downsampling is enabled, null if neither is available
+		 */
 		public PathIdentification getPathIdentification(int[] resolution)
 			throws IOException
 		{
-			return new PathIdentification(getPath(resolution));
+			String path = getPath(resolution);
+			if (path != null) {
+				return new PathIdentification(this, resolution, path, writer
+					.getDatasetAttributes(path));
+			}
+			PathIdentification source = getSource(resolution);
+			if (source == null) {
+				return null;
+			}
+			return new PathIdentification(this, resolution, source);
 		}
 
 		public String getPath(int[] resolution) {
@@ -77,6 +119,39 @@ public class N5Access {
 				.orElse(null);
 		}
 
+		/**
+		 * @return the coarsest stored level finer than the resolution that can be
+		 *         downsampled to it or null
+		 */
+		private PathIdentification getSource(int[] resolution) throws IOException {
+			if (!downsampling) {
+				return null;
+			}
+			List<Integer> coarsest = null;
+			long coarsestArea = 0;
+			synchronized (this) {
+				for (List<Integer> candidate : getLevelIDsMap().keySet()) {
+					long area = getArea(candidate);
+					if (isFinerLevel(candidate, resolution) && coarsestArea < area) {
+						coarsest = candidate;
+						coarsestArea = area;
+					}
+				}
+			}
+			if (coarsest == null) {
+				return null;
+			}
+			return getPathIdentification(coarsest.stream().mapToInt(Integer::intValue)
+				.toArray());
+		}
+
+		private Map<List<Integer>, Integer> getLevelIDsMap() {
+			if (levelIDsmap == null) {
+				levelIDsmap = getLevelIdsMap(writer, viewSetup, timeID);
+			}
+			return levelIDsmap;
+		}
+
 		public Compression getCompression() throws IOException {
 			Integer levelID = getAnyLevelId(writer, viewSetup, timeID);
 			String path = BdvN5Format.getPathName(viewSetup.getId(), timeID, levelID);
@@ -86,13 +161,52 @@ public class N5Access {
 
 	public class PathIdentification {
 
+		private final ViewSetupTimepoint viewSetupTimepoint;
+
+		private final int[] resolution;
+
+		/**
+		 * Null for a level that is not stored in the dataset.
+		 */
 		private final String path;
 
+		private final String cachePath;
+
 		private final DatasetAttributes datasetAttributes;
 
-		private PathIdentification(String path) throws IOException {
+		private PathIdentification source;
+
+		private boolean sourceResolved;
+
+		private PathIdentification(ViewSetupTimepoint viewSetupTimepoint,
+			int[] resolution, String path, DatasetAttributes datasetAttributes)
+		{
+			this.viewSetupTimepoint = viewSetupTimepoint;
+			this.resolution = resolution;
 			this.path = path;
-			this.datasetAttributes = writer.getDatasetAttributes(path);
+			this.cachePath = path;
+			this.datasetAttributes = datasetAttributes;
+		}
+
+		private PathIdentification(ViewSetupTimepoint viewSetupTimepoint,
+			int[] resolution, PathIdentification source)
+		{
+			this.viewSetupTimepoint = viewSetupTimepoint;
+			this.resolution = resolution;
+			this.path = null;
+			this.cachePath = BdvN5Format.getPathName(viewSetupTimepoint.getViewSetup()
+				.getId(), viewSetupTimepoint.getTimeID()) + "/" + Arrays.toString(
+					resolution);
+			int[] factors = getFactors(resolution, source.resolution);
+			long[] dimensions = source.getDimensions();
+			for (int i = 0; i < dimensions.length; i++) {
+				dimensions[i] = (dimensions[i] + factors[i] - 1) / factors[i];
+			}
+			this.datasetAttributes = new DatasetAttributes(dimensions, source
+				.getBlockSize(), source.getDataType(), source.datasetAttributes
+					.getCompression());
+			this.source = source;
+			this.sourceResolved = true;
 		}
 
 		public DataBlock<?> read(long[] gridPosition) throws IOException
@@ -101,7 +215,7 @@ public class N5Access {
 				throw new IllegalStateException("Mode " + mode +
 					" does not allow reading");
 			}
-			return writer.readBlock(path, datasetAttributes, gridPosition);
+			return load(gridPosition);
 		}
 
 		public void write(long[] gridPosition, InputStream inputStream)
@@ -115,11 +229,35 @@ public class N5Access {
 				datasetAttributes, inputStream);
 			checkBlockSize(dataBlock, datasetAttributes.getBlockSize());
 			writer.writeBlock(path, datasetAttributes, dataBlock);
-			writeBlockToOtherResolutions(dataBlock, gridPosition, path);
+			invalidateCachedBlock(path, gridPosition);
+			writeBlockToOtherResolutions(viewSetupTimepoint, gridPosition);
+		}
+
+		/**
+		 * Reads block without checking mode, callers check it.
+		 */
+		DataBlock<?> load(long[] gridPosition) throws IOException {
+			return readBlock(this, gridPosition);
 		}
 
 		public long[] getDimensions() {
-			return datasetAttributes.getDimensions();
+			return datasetAttributes.getDimensions().clone();
+		}
+
+		public int[] getBlockSize() {
+			return datasetAttributes.getBlockSize();
+		}
+
+		public DataType getDataType() {
+			return datasetAttributes.getDataType();
+		}
+
+		private synchronized PathIdentification getSource() throws IOException {
+			if (!sourceResolved) {
+				source = viewSetupTimepoint.getSource(resolution);
+				sourceResolved = true;
+			}
+			return source;
 		}
 	}
 
@@ -151,22 +289,17 @@ public class N5Access {
 	private List<int[]> downsamplingResolutionsLevels;
 	private final Map<List<Integer>, ViewSetupTimepoint> asViewSetupTimepointPerTimeChannelAngle =
 		new HashMap<>();
+	private static final Striped<Lock> BLOCK_LOCKS = Striped.lazyWeakLock(1024);
+
+	private final BlockCache blockCache = BlockCache.getInstance();
+	private String cacheNamespace;
+	private long cacheStaleness;
+	private boolean downsampling;
 
 	public static DataBlock<?> constructDataBlock(long[] gridPosition,
 		InputStream inputStream, DataType dataType) throws IOException
 	{
-		DataInputStream dis = new DataInputStream(inputStream);
-		int[] size = new int[3];
-		for (int i = 0; i < 3; i++) {
-			size[i] = dis.readInt();
-		}
-
-		DataBlock<?> block = dataType.createDataBlock(size, gridPosition);
-		byte[] buffer = new byte[block.getNumElements() * getSizeOfElement(
-			dataType)];
-		readFully(inputStream, buffer);
-		block.readData(ByteBuffer.wrap(buffer));
-		return block;
+		return DataBlockDecoder.decode(gridPosition, inputStream, dataType);
 	}
 
 
@@ -202,6 +335,26 @@ public class N5Access {
 			downsamplingResolutionsLevels = Collections.emptyList();
 		}
 		mode = aMode;
+		// shared servers read with READ_WRITE, so blocks missing in a read-write
+		// session are computed too, a write of the block replaces them
+		downsampling = ApplicationConfiguration.isDownsamplingEnabled() && aMode
+			.allowsRead();
+	}
+
+	/**
+	 * Decoded blocks are cached in {@link BlockCache}.
+	 * 
+	 * @param aCacheNamespace identifies the dataset version in cache
+	 */
+	public N5Access(AbstractSpimData<SequenceDescription> spimData,
+		N5Writer aWriter, List<int[]> aResolutionLevels, OperationMode aMode,
+		String aCacheNamespace)
+	{
+		this(spimData, aWriter, aResolutionLevels, aMode);
+		cacheNamespace = aCacheNamespace;
+		// only sessions that cannot write may read their blocks stale
+		cacheStaleness = aMode.allowsWrite() ? 0 : ApplicationConfiguration
+			.getBlockCacheStaleness();
 	}
 
 	/**
@@ -216,6 +369,62 @@ public class N5Access {
 	 */
 	public DataBlock<?> read(long[] gridPosition, int time, int channel,
 		int angle) throws IOException
+	{
+		if (!mode.allowsRead()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow reading");
+		}
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			return null;
+		}
+		return readBlock(level, gridPosition);
+	}
+
+	/**
+	 * Reads block without using or filling {@link BlockCache}.
+	 */
+	DataBlock<?> readUncached(long[] gridPosition, int time, int channel,
+		int angle) throws IOException
+	{
+		if (!mode.allowsRead()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow reading");
+		}
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			return null;
+		}
+		if (!downsampling) {
+			return writer.readBlock(level.path, level.datasetAttributes,
+				gridPosition);
+		}
+		return readOrDownsample(level, gridPosition);
+	}
+
+	/**
+	 * @return size of block grid of the resolution level or null if the level
+	 *         does not exist
+	 */
+	long[] getGridDimensions(int time, int channel, int angle)
+		throws IOException
+	{
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			return null;
+		}
+		return BlockIndex.getGridDimensions(level.datasetAttributes);
+	}
+
+	/**
+	 * @return block as it is stored - including N5 block header and compressed
+	 *         by compression of the dataset, or null if the block does not exist
+	 */
+	public byte[] readRaw(long[] gridPosition, int time, int channel, int angle)
+		throws IOException
 	{
 		if (!mode.allowsRead()) {
 			throw new IllegalStateException("Mode " + mode +
@@ -226,12 +435,156 @@ public class N5Access {
 		if (path == null) {
 			return null;
 		}
-		return writer.readBlock(path, writer.getDatasetAttributes(path),
-			gridPosition);
+		return RawBlockAccess.of(writer).readRawBlock(path, gridPosition);
+	}
+
+	/**
+	 * @param min first voxel of the region
+	 * @param size size of the region in voxels
+	 * @return region assembled from all blocks it intersects, voxels of missing
+	 *         blocks are zero
+	 */
+	public DataBlock<?> readRegion(long[] min, int[] size, int time,
+		int channel, int angle) throws IOException
+	{
+		if (!mode.allowsRead()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow reading");
+		}
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			throw new IllegalArgumentException("Resolution level " + Arrays.toString(
+				resolutionLevel) + " not found.");
+		}
+		return new RegionAccess(level).read(min, size);
+	}
+
+	/**
+	 * @see Projection#project(long[], int[], ForkJoinPool)
+	 */
+	DataBlock<?> project(long[] min, int[] size, int time, int channel,
+		int angle, Projection.Operation operation, int axis, ForkJoinPool pool)
+		throws IOException
+	{
+		if (!mode.allowsRead()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow reading");
+		}
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			throw new IllegalArgumentException("Resolution level " + Arrays.toString(
+				resolutionLevel) + " not found.");
+		}
+		return new Projection(level, operation, axis).project(min, size, pool);
+	}
+
+	/**
+	 * Aggregates statistics of blocks intersecting the region - whole blocks are
+	 * counted even if they are intersected only partially. Blocks without known
+	 * statistics are skipped.
+	 * 
+	 * @param min first voxel of the region or null for the whole level
+	 * @param size size of the region in voxels or null for the whole level
+	 */
+	BlockStatistics getStatistics(long[] min, int[] size, int time,
+		int channel, int angle) throws IOException
+	{
+		String path = getStoredPath(time, channel, angle);
+		DatasetAttributes attributes = writer.getDatasetAttributes(path);
+		long[] minGrid = new long[3];
+		long[] maxGrid = BlockIndex.getGridDimensions(attributes);
+		if (min != null) {
+			int[] blockSize = attributes.getBlockSize();
+			for (int i = 0; i < 3; i++) {
+				if (min[i] < 0 || size[i] <= 0) {
+					throw new IllegalArgumentException(String.format(
+						"Region [%d-%d] in dimension %d is not valid", min[i], min[i] +
+							size[i], i));
+				}
+				minGrid[i] = min[i] / blockSize[i];
+				maxGrid[i] = (min[i] + size[i] - 1) / blockSize[i] + 1;
+			}
+		}
+		BlockStatistics result = new BlockStatistics(attributes.getDataType());
+		BlockStatisticsAccess.of(writer).forEachBlockStatistics(path, (
+			gridPosition, statistics) -> {
+			for (int i = 0; i < 3; i++) {
+				if (gridPosition[i] < minGrid[i] || maxGrid[i] <= gridPosition[i]) {
+					return;
+				}
+			}
+			result.add(statistics);
+		});
+		return result;
+	}
+
+	/**
+	 * @return statistics of blocks accepted by the filter ordered by their
+	 *         position with x as the fastest varying coordinate
+	 */
+	List<BlockStatistics.Entry> findBlocks(int time, int channel, int angle,
+		Predicate<BlockStatistics> filter) throws IOException
+	{
+		List<BlockStatistics.Entry> result = new ArrayList<>();
+		BlockStatisticsAccess.of(writer).forEachBlockStatistics(getStoredPath(
+			time, channel, angle), (gridPosition, statistics) -> {
+				if (filter.test(statistics)) {
+					result.add(new BlockStatistics.Entry(gridPosition, statistics));
+				}
+			});
+		result.sort(Comparator.comparing(
+			(BlockStatistics.Entry entry) -> entry.getGridPosition()[2]).thenComparing(
+				entry -> entry.getGridPosition()[1]).thenComparing(entry -> entry
+					.getGridPosition()[0]));
+		return result;
+	}
+
+	/**
+	 * @return stored sizes of all blocks in grid of the resolution level
+	 */
+	BlockIndex getOccupancy(int time, int channel, int angle)
+		throws IOException
+	{
+		String path = getStoredPath(time, channel, angle);
+		BlockIndex result = new BlockIndex(BlockIndex.getGridDimensions(writer
+			.getDatasetAttributes(path)));
+		RawBlockAccess.of(writer).listBlocks(path, (gridPosition, size) -> {
+			if (result.contains(gridPosition)) {
+				result.setStoredSize(gridPosition, size);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @see RawBlockAccess#getBlockVersion(String, long[])
+	 */
+	public String getBlockVersion(long[] gridPosition, int time, int channel,
+		int angle) throws IOException
+	{
+		PathIdentification level = getViewSetupTimepoint(time, channel, angle)
+			.getPathIdentification(resolutionLevel);
+		if (level == null) {
+			return null;
+		}
+		return getBlockVersion(level, gridPosition);
 	}
 
 	public void write(long[] gridPosition, int time, int channel, int angle,
 		InputStream inputStream) throws IOException
+	{
+		store(parse(gridPosition, time, channel, angle, inputStream), time,
+			channel, angle);
+	}
+
+	/**
+	 * Reads block sent by a client without storing it, see
+	 * {@link #store(DataBlock, int, int, int)}.
+	 */
+	public DataBlock<?> parse(long[] gridPosition, int time, int channel,
+		int angle, InputStream inputStream) throws IOException
 	{
 		if (!mode.allowsWrite()) {
 			throw new IllegalStateException("Mode " + mode +
@@ -243,8 +596,310 @@ public class N5Access {
 		DataBlock<?> dataBlock = constructDataBlock(gridPosition, attributes,
 			inputStream);
 		checkBlockSize(dataBlock, attributes.getBlockSize());
-		writer.writeBlock(path, attributes, dataBlock);
-		writeBlockToOtherResolutions(dataBlock, gridPosition, path);
+		return dataBlock;
+	}
+
+	/**
+	 * Compresses and stores block read by
+	 * {@link #parse(long[], int, int, int, InputStream)}. Blocks of different
+	 * grid positions can be stored concurrently.
+	 */
+	public void store(DataBlock<?> dataBlock, int time, int channel, int angle)
+		throws IOException
+	{
+		store(dataBlock, time, channel, angle, null);
+	}
+
+	/**
+	 * Stores the block only if version of the stored block satisfies the
+	 * condition. The condition is tested while the block is locked, so no other
+	 * write of the block can come in between.
+	 *
+	 * @param condition tested with version of the stored block, null if the
+	 *          block does not exist, or null for no condition
+	 * @return version of the written block or null if the condition was not
+	 *         satisfied, version is not looked up if there is no condition
+	 */
+	public String store(DataBlock<?> dataBlock, int time, int channel, int angle,
+		Predicate<String> condition) throws IOException
+	{
+		if (!mode.allowsWrite()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow writing");
+		}
+		String path = getViewSetupTimepoint(time, channel, angle).getPath(
+			resolutionLevel);
+		DatasetAttributes attributes = writer.getDatasetAttributes(path);
+		long[] gridPosition = dataBlock.getGridPosition();
+		String result;
+		Lock lock = getBlockLock(path, gridPosition);
+		lock.lock();
+		try {
+			if (!testVersion(path, gridPosition, condition)) {
+				return null;
+			}
+			writer.writeBlock(path, attributes, dataBlock);
+			invalidateCachedBlock(path, gridPosition);
+			result = getWrittenVersion(path, gridPosition, condition);
+		}
+		finally {
+			lock.unlock();
+		}
+		writeBlockToOtherResolutions(getViewSetupTimepoint(time, channel, angle),
+			gridPosition);
+		return result;
+	}
+
+	/**
+	 * Reads block sent by a client in the form it is stored - length of data,
+	 * CRC32C of data and data (N5 block header followed by voxels compressed by
+	 * compression of the dataset). Only the checksum and the block header are
+	 * verified, voxels are not decompressed.
+	 */
+	public StoredBlock parseStored(long[] gridPosition, int time, int channel,
+		int angle, InputStream inputStream) throws IOException
+	{
+		if (!mode.allowsWrite()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow writing");
+		}
+		String path = getViewSetupTimepoint(time, channel, angle).getPath(
+			resolutionLevel);
+		DatasetAttributes attributes = writer.getDatasetAttributes(path);
+		DataInputStream input = new DataInputStream(inputStream);
+		int length = input.readInt();
+		int checksum = input.readInt();
+		long maxLength = 2L * IntStream.of(attributes.getBlockSize()).asLongStream()
+			.reduce(1, (a, b) -> a * b) * getSizeOfElement(attributes.getDataType()) +
+			1024;
+		if (length < 0 || maxLength < length) {
+			throw new IllegalArgumentException("Stored block length " + length +
+				" is not valid");
+		}
+		byte[] data = new byte[length];
+		input.readFully(data);
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		if ((int) crc.getValue() != checksum) {
+			throw new IllegalArgumentException("Checksum of stored block " + Arrays
+				.toString(gridPosition) + " does not match");
+		}
+		checkStoredBlockHeader(data, attributes.getBlockSize());
+		return new StoredBlock(gridPosition, data);
+	}
+
+	/**
+	 * Stored block whose content the storage already holds, so a client knowing
+	 * hash of the stored block does not have to send it. The block header is
+	 * verified as in {@link #parseStored(long[], int, int, int, InputStream)}.
+	 *
+	 * @param hash see {@link RawBlockAccess#containsBlockContent(String)}
+	 * @return block or null if the storage does not hold the content
+	 */
+	public StoredBlock getStoredContent(long[] gridPosition, int time,
+		int channel, int angle, String hash) throws IOException
+	{
+		if (!mode.allowsWrite()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow writing");
+		}
+		String path = getViewSetupTimepoint(time, channel, angle).getPath(
+			resolutionLevel);
+		byte[] data = RawBlockAccess.of(writer).readBlockContent(hash);
+		if (data == null) {
+			return null;
+		}
+		checkStoredBlockHeader(data, writer.getDatasetAttributes(path)
+			.getBlockSize());
+		return new StoredBlock(gridPosition, data);
+	}
+
+	/**
+	 * @return hashes of stored blocks held by the storage
+	 */
+	public List<String> findBlockContents(List<String> hashes)
+		throws IOException
+	{
+		List<String> result = new ArrayList<>();
+		for (String hash : hashes) {
+			if (RawBlockAccess.of(writer).containsBlockContent(hash)) {
+				result.add(hash);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Stores block read by
+	 * {@link #parseStored(long[], int, int, int, InputStream)} without
+	 * recompressing it.
+	 */
+	public void storeStored(StoredBlock block, int time, int channel, int angle)
+		throws IOException
+	{
+		storeStored(block, time, channel, angle, null);
+	}
+
+	/**
+	 * @see #store(DataBlock, int, int, int, Predicate)
+	 */
+	public String storeStored(StoredBlock block, int time, int channel,
+		int angle, Predicate<String> condition) throws IOException
+	{
+		if (!mode.allowsWrite()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow writing");
+		}
+		String path = getViewSetupTimepoint(time, channel, angle).getPath(
+			resolutionLevel);
+		long[] gridPosition = block.getGridPosition();
+		String result;
+		Lock lock = getBlockLock(path, gridPosition);
+		lock.lock();
+		try {
+			if (!testVersion(path, gridPosition, condition)) {
+				return null;
+			}
+			RawBlockAccess.of(writer).writeRawBlock(path, gridPosition, block
+				.getData());
+			invalidateCachedBlock(path, gridPosition);
+			result = getWrittenVersion(path, gridPosition, condition);
+		}
+		finally {
+			lock.unlock();
+		}
+		writeBlockToOtherResolutions(getViewSetupTimepoint(time, channel, angle),
+			gridPosition);
+		return result;
+	}
+
+	/**
+	 * Reads region sent by a client in the same form as a block - its size
+	 * followed by its voxels, see
+	 * {@link #writeRegion(long[], DataBlock, int, int, int, Executor)}.
+	 *
+	 * @param min first voxel of the region
+	 * @param size size of the region in voxels, size sent with the region has to
+	 *          match it
+	 */
+	public DataBlock<?> parseRegion(long[] min, int[] size, int time,
+		int channel, int angle, InputStream inputStream) throws IOException
+	{
+		PathIdentification level = getWrittenLevel(time, channel, angle);
+		new RegionAccess(level).checkRegion(min, size);
+		byte[] header = new byte[size.length * Integer.BYTES];
+		try {
+			new DataInputStream(inputStream).readFully(header);
+		}
+		catch (EOFException exc) {
+			throw new IllegalArgumentException("Region header is not complete",
+				exc);
+		}
+		ByteBuffer sentSize = ByteBuffer.wrap(header);
+		for (int i = 0; i < size.length; i++) {
+			if (sentSize.getInt(i * Integer.BYTES) != size[i]) {
+				throw new IllegalArgumentException(String.format(
+					"Region dimension should be [%s] but is [%d,%d,%d]", getDimension(
+						size), sentSize.getInt(0), sentSize.getInt(4), sentSize.getInt(8)));
+			}
+		}
+		// voxels are allocated only after the sent size is verified
+		return constructDataBlock(new long[min.length], new SequenceInputStream(
+			new ByteArrayInputStream(header), inputStream), level.getDataType());
+	}
+
+	/**
+	 * Writes region into all blocks it intersects. Blocks covered by the region
+	 * are written directly, the other blocks are read, patched by the region and
+	 * written back. Every block is written while its lock is held, so concurrent
+	 * writes of overlapping regions do not lose voxels. Blocks are written in
+	 * parallel by the executor.
+	 *
+	 * @param min first voxel of the region
+	 * @param region voxels of the region, its grid position is ignored
+	 */
+	public void writeRegion(long[] min, DataBlock<?> region, int time,
+		int channel, int angle, Executor executor) throws IOException
+	{
+		PathIdentification level = getWrittenLevel(time, channel, angle);
+		int[] size = region.getSize();
+		new RegionAccess(level).checkRegion(min, size);
+		int[] blockSize = level.getBlockSize();
+		List<CompletableFuture<Void>> writes = new ArrayList<>();
+		for (long z = min[2] / blockSize[2]; z <= (min[2] + size[2] - 1) /
+			blockSize[2]; z++)
+		{
+			for (long y = min[1] / blockSize[1]; y <= (min[1] + size[1] - 1) /
+				blockSize[1]; y++)
+			{
+				for (long x = min[0] / blockSize[0]; x <= (min[0] + size[0] - 1) /
+					blockSize[0]; x++)
+				{
+					long[] gridPosition = { x, y, z };
+					writes.add(CompletableFuture.runAsync(() -> {
+						try {
+							writeRegionBlock(level, gridPosition, min, region);
+						}
+						catch (IOException exc) {
+							throw new UncheckedIOException(exc);
+						}
+					}, executor));
+				}
+			}
+		}
+		try {
+			CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+		}
+		catch (CompletionException exc) {
+			Throwable cause = exc.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private void writeRegionBlock(PathIdentification level, long[] gridPosition,
+		long[] min, DataBlock<?> region) throws IOException
+	{
+		int[] regionSize = region.getSize();
+		int[] blockSize = level.getBlockSize();
+		long[] dimensions = level.getDimensions();
+		long[] origin = new long[3];
+		int[] size = new int[3];
+		boolean covered = true;
+		for (int i = 0; i < 3; i++) {
+			origin[i] = gridPosition[i] * blockSize[i];
+			size[i] = (int) Math.min(blockSize[i], dimensions[i] - origin[i]);
+			covered &= min[i] <= origin[i] && origin[i] + size[i] <= min[i] +
+				regionSize[i];
+		}
+		DataBlock<?> block = level.getDataType().createDataBlock(size,
+			gridPosition);
+		Lock lock = getBlockLock(level.path, gridPosition);
+		lock.lock();
+		try {
+			if (!covered) {
+				// cached block is shared with readers, it is copied not modified
+				DataBlock<?> stored = readBlock(level.path, level.datasetAttributes,
+					gridPosition);
+				if (stored != null) {
+					RegionAccess.copy(stored.getData(), origin, stored.getSize(), block
+						.getData(), origin, size);
+				}
+			}
+			RegionAccess.copy(region.getData(), min, regionSize, block.getData(),
+				origin, size);
+			writer.writeBlock(level.path, level.datasetAttributes, block);
+			invalidateCachedBlock(level.path, gridPosition);
+		}
+		finally {
+			lock.unlock();
+		}
+		writeBlockToOtherResolutions(level.viewSetupTimepoint, gridPosition);
 	}
 
 	public DataType getType(int time, int channel, int angle)
@@ -286,17 +941,355 @@ public class N5Access {
 
 
 
-	@SuppressWarnings("unused")
-	private void writeBlockToOtherResolutions(DataBlock<?> dataBlock,
-		long[] gridPosition, String path)
+	/**
+	 * @return stored resolution level the client writes to
+	 */
+	private PathIdentification getWrittenLevel(int time, int channel, int angle)
+		throws IOException
+	{
+		if (!mode.allowsWrite()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow writing");
+		}
+		ViewSetupTimepoint viewSetupTimepoint = getViewSetupTimepoint(time,
+			channel, angle);
+		String path = viewSetupTimepoint.getPath(resolutionLevel);
+		if (path == null) {
+			throw new IllegalArgumentException("Resolution level " + Arrays.toString(
+				resolutionLevel) + " not found.");
+		}
+		return new PathIdentification(viewSetupTimepoint, resolutionLevel, path,
+			writer.getDatasetAttributes(path));
+	}
+
+	private boolean testVersion(String path, long[] gridPosition,
+		Predicate<String> condition) throws IOException
+	{
+		return condition == null || condition.test(RawBlockAccess.of(writer)
+			.getBlockVersion(path, gridPosition));
+	}
+
+	private String getWrittenVersion(String path, long[] gridPosition,
+		Predicate<String> condition) throws IOException
+	{
+		if (condition == null) {
+			return null;
+		}
+		return RawBlockAccess.of(writer).getBlockVersion(path, gridPosition);
+	}
+
+	/**
+	 * Locks are shared by all servers of the process, blocks are identified by
+	 * the cache namespace of the dataset version.
+	 */
+	private Lock getBlockLock(String path, long[] gridPosition) {
+		return BLOCK_LOCKS.get(cacheNamespace + ":" + path + ":" + Arrays.toString(
+			gridPosition));
+	}
+
+	/**
+	 * @return path of the resolution level stored in the dataset
+	 */
+	private String getStoredPath(int time, int channel, int angle) {
+		if (!mode.allowsRead()) {
+			throw new IllegalStateException("Mode " + mode +
+				" does not allow reading");
+		}
+		String path = getViewSetupTimepoint(time, channel, angle).getPath(
+			resolutionLevel);
+		if (path == null) {
+			throw new IllegalArgumentException("Resolution level " + Arrays.toString(
+				resolutionLevel) + " not found.");
+		}
+		return path;
+	}
+
+	private DataBlock<?> readBlock(PathIdentification level,
+		long[] gridPosition) throws IOException
+	{
+		if (!downsampling) {
+			return readBlock(level.path, level.datasetAttributes, gridPosition);
+		}
+		if (cacheNamespace == null) {
+			return readOrDownsample(level, gridPosition);
+		}
+		return blockCache.get(new BlockCache.Key(cacheNamespace, level.cachePath,
+			gridPosition), cacheStaleness, () -> getBlockVersion(level,
+				gridPosition), () -> readOrDownsample(level, gridPosition));
+	}
+
+	/**
+	 * Block missing in the level is computed from the next finer level, blocks
+	 * missing there are computed recursively.
+	 */
+	private DataBlock<?> readOrDownsample(PathIdentification level,
+		long[] gridPosition) throws IOException
+	{
+		if (level.path != null) {
+			DataBlock<?> result = writer.readBlock(level.path,
+				level.datasetAttributes, gridPosition);
+			if (result != null) {
+				return result;
+			}
+		}
+		PathIdentification source = level.getSource();
+		if (source == null) {
+			return null;
+		}
+		SourceRegion region = new SourceRegion(level, source, gridPosition);
+		if (region.isEmpty()) {
+			return null;
+		}
+		DataBlock<?> sourceBlock = new RegionAccess(source).readExisting(
+			region.min, region.size);
+		if (sourceBlock == null) {
+			return null;
+		}
+		return Downsampling.downsample(sourceBlock, level.getDataType(),
+			region.factors, region.blockSize, gridPosition);
+	}
+
+	/**
+	 * Version of a computed block is derived from versions of all blocks of the
+	 * finer level it is computed from.
+	 */
+	private String getBlockVersion(PathIdentification level, long[] gridPosition)
+		throws IOException
+	{
+		if (level.path != null) {
+			String result = RawBlockAccess.of(writer).getBlockVersion(level.path,
+				gridPosition);
+			if (result != null) {
+				return result;
+			}
+		}
+		PathIdentification source = level.getSource();
+		if (source == null) {
+			return null;
+		}
+		SourceRegion region = new SourceRegion(level, source, gridPosition);
+		if (region.isEmpty()) {
+			return null;
+		}
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		boolean exists = false;
+		int[] sourceBlockSize = source.getBlockSize();
+		long[] minGrid = new long[3];
+		long[] maxGrid = new long[3];
+		for (int i = 0; i < 3; i++) {
+			minGrid[i] = region.min[i] / sourceBlockSize[i];
+			maxGrid[i] = (region.min[i] + region.size[i] - 1) / sourceBlockSize[i];
+		}
+		for (long z = minGrid[2]; z <= maxGrid[2]; z++) {
+			for (long y = minGrid[1]; y <= maxGrid[1]; y++) {
+				for (long x = minGrid[0]; x <= maxGrid[0]; x++) {
+					long[] sourcePosition = { x, y, z };
+					String version = getBlockVersion(source, sourcePosition);
+					if (version != null) {
+						hasher.putString(Arrays.toString(sourcePosition), UTF_8).putByte(
+							(byte) 0).putString(version, UTF_8).putByte((byte) 0);
+						exists = true;
+					}
+				}
+			}
+		}
+		return exists ? "downsampled:" + hasher.hash() : null;
+	}
+
+	private DataBlock<?> readBlock(String path,
+		DatasetAttributes datasetAttributes, long[] gridPosition) throws IOException
+	{
+		if (cacheNamespace == null) {
+			return writer.readBlock(path, datasetAttributes, gridPosition);
+		}
+		return blockCache.get(new BlockCache.Key(cacheNamespace, path,
+			gridPosition), cacheStaleness, () -> RawBlockAccess.of(writer)
+				.getBlockVersion(path, gridPosition), () -> writer.readBlock(path,
+					datasetAttributes, gridPosition));
+	}
+
+	private void invalidateCachedBlock(String path, long[] gridPosition) {
+		if (cacheNamespace != null) {
+			blockCache.invalidate(new BlockCache.Key(cacheNamespace, path,
+				gridPosition));
+		}
+	}
+
+	/**
+	 * Waits until blocks of coarser levels are recomputed from all blocks
+	 * written so far, see {@link PyramidUpdater#await(String)}.
+	 */
+	public void awaitOtherResolutions() throws IOException {
+		if (!downsamplingResolutionsLevels.isEmpty()) {
+			PyramidUpdater.getInstance().await(cacheNamespace);
+		}
+	}
+
+	/**
+	 * Schedules recomputation of blocks of coarser levels covering the written
+	 * block. Only blocks affected by the written block are recomputed, see
+	 * {@link PyramidUpdater}.
+	 */
+	private void writeBlockToOtherResolutions(
+		ViewSetupTimepoint viewSetupTimepoint, long[] gridPosition)
+		throws IOException
 	{
 		if (downsamplingResolutionsLevels.isEmpty()) {
 			return;
 		}
-		// TODO: down sampling
-		throw new UnsupportedOperationException(
-			"Downsampling is not supported yet. Levels for downsampling" +
-				ResolutionLevel.toString(downsamplingResolutionsLevels));
+		schedulePyramidUpdate(getPyramid(viewSetupTimepoint), 0, gridPosition);
+	}
+
+	/**
+	 * @return the written level followed by levels computed from it ordered
+	 *         from the finest to the coarsest
+	 */
+	private List<PathIdentification> getPyramid(
+		ViewSetupTimepoint viewSetupTimepoint) throws IOException
+	{
+		List<int[]> resolutions = new ArrayList<>(downsamplingResolutionsLevels);
+		resolutions.sort(Comparator.comparingLong(resolution -> getArea(asList(
+			resolution))));
+		List<PathIdentification> result = new ArrayList<>(resolutions.size() + 1);
+		for (int[] resolution : Iterables.concat(Collections.singletonList(
+			resolutionLevel), resolutions))
+		{
+			String path = viewSetupTimepoint.getPath(resolution);
+			if (path == null) {
+				throw new IllegalArgumentException("Resolution level " + Arrays
+					.toString(resolution) + " not found.");
+			}
+			result.add(new PathIdentification(viewSetupTimepoint, resolution, path,
+				writer.getDatasetAttributes(path)));
+		}
+		return result;
+	}
+
+	/**
+	 * Schedules update of blocks of levels computed from the level with the
+	 * changed block. A level is computed from the coarsest finer level its
+	 * resolution is a multiple of, as levels computed on reading.
+	 *
+	 * @param changed index of the level with the changed block in the pyramid
+	 */
+	private void schedulePyramidUpdate(List<PathIdentification> pyramid,
+		int changed, long[] gridPosition)
+	{
+		PathIdentification source = pyramid.get(changed);
+		for (int index = changed + 1; index < pyramid.size(); index++) {
+			if (getSourceIndex(pyramid, index) != changed) {
+				continue;
+			}
+			PathIdentification level = pyramid.get(index);
+			int[] factors = getFactors(level.resolution, source.resolution);
+			int[] sourceBlockSize = source.getBlockSize();
+			int[] blockSize = level.getBlockSize();
+			long[] min = new long[3];
+			long[] max = new long[3];
+			for (int i = 0; i < 3; i++) {
+				long first = gridPosition[i] * sourceBlockSize[i];
+				min[i] = first / factors[i] / blockSize[i];
+				max[i] = (first + sourceBlockSize[i] - 1) / factors[i] / blockSize[i];
+			}
+			int levelIndex = index;
+			for (long z = min[2]; z <= max[2]; z++) {
+				for (long y = min[1]; y <= max[1]; y++) {
+					for (long x = min[0]; x <= max[0]; x++) {
+						long[] parent = { x, y, z };
+						PyramidUpdater.getInstance().schedule(cacheNamespace, level.path +
+							":" + Arrays.toString(parent), () -> {
+								if (updatePyramidBlock(level, source, parent)) {
+									schedulePyramidUpdate(pyramid, levelIndex, parent);
+								}
+							});
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the block was written
+	 */
+	private boolean updatePyramidBlock(PathIdentification level,
+		PathIdentification source, long[] gridPosition) throws IOException
+	{
+		SourceRegion region = new SourceRegion(level, source, gridPosition);
+		if (region.isEmpty()) {
+			return false;
+		}
+		DataBlock<?> sourceBlock = new RegionAccess(source).readExisting(
+			region.min, region.size);
+		if (sourceBlock == null) {
+			return false;
+		}
+		DataBlock<?> block = Downsampling.downsample(sourceBlock, level
+			.getDataType(), region.factors, region.blockSize, gridPosition);
+		Lock lock = getBlockLock(level.path, gridPosition);
+		lock.lock();
+		try {
+			writer.writeBlock(level.path, level.datasetAttributes, block);
+			invalidateCachedBlock(level.path, gridPosition);
+		}
+		finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	private static int getSourceIndex(List<PathIdentification> pyramid,
+		int index)
+	{
+		// levels are ordered by area, so the last finer level is the coarsest
+		int result = 0;
+		for (int i = 1; i < index; i++) {
+			if (isFinerLevel(asList(pyramid.get(i).resolution), pyramid.get(
+				index).resolution))
+			{
+				result = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Region of a finer level from which a block of a coarser level is computed.
+	 */
+	private static class SourceRegion {
+
+		private final int[] factors;
+
+		private final int[] blockSize = new int[3];
+
+		private final long[] min = new long[3];
+
+		private final int[] size = new int[3];
+
+		SourceRegion(PathIdentification level, PathIdentification source,
+			long[] gridPosition)
+		{
+			factors = getFactors(level.resolution, source.resolution);
+			long[] dimensions = level.getDimensions();
+			long[] sourceDimensions = source.getDimensions();
+			int[] levelBlockSize = level.getBlockSize();
+			for (int i = 0; i < 3; i++) {
+				long blockMin = gridPosition[i] * levelBlockSize[i];
+				blockSize[i] = (int) Math.max(0, Math.min(levelBlockSize[i],
+					dimensions[i] - blockMin));
+				min[i] = blockMin * factors[i];
+				size[i] = (int) Math.max(0, Math.min((long) blockSize[i] * factors[i],
+					sourceDimensions[i] - min[i]));
+			}
+		}
+
+		boolean isEmpty() {
+			for (int i = 0; i < 3; i++) {
+				if (min[i] < 0 || size[i] <= 0 || blockSize[i] <= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
 	}
 
 	private void checkBlockSize(DataBlock<?> dataBlock, int[] blockSize) {
@@ -309,6 +1302,46 @@ public class N5Access {
 		}
 	}
 
+	/**
+	 * Verifies N5 block header - mode, number of dimensions and size of the
+	 * block.
+	 */
+	private void checkStoredBlockHeader(byte[] data, int[] blockSize)
+		throws IOException
+	{
+		try (DataInputStream input = new DataInputStream(
+			new ByteArrayInputStream(data)))
+		{
+			short blockMode = input.readShort();
+			if (blockMode != 0 && blockMode != 1) {
+				throw new IllegalArgumentException("Stored block mode " + blockMode +
+					" is not supported");
+			}
+			int[] size = new int[input.readShort()];
+			if (size.length != blockSize.length) {
+				throw new IllegalArgumentException("Stored block has " + size.length +
+					" dimensions but " + blockSize.length + " are expected");
+			}
+			for (int i = 0; i < size.length; i++) {
+				size[i] = input.readInt();
+			}
+			for (int i = 0; i < blockSize.length; i++) {
+				if (size[i] < 0 || blockSize[i] < size[i]) {
+					throw new IllegalArgumentException(String.format(
+						"Block dimension should be [%s] but is [%s]", getDimensionRange(0,
+							blockSize), getDimension(size)));
+				}
+			}
+			if (blockMode == 1 && input.readInt() < 0) {
+				throw new IllegalArgumentException(
+					"Stored block has negative number of elements");
+			}
+		}
+		catch (EOFException exc) {
+			throw new IllegalArgumentException("Stored block header is not complete");
+		}
+	}
+
 	private String getDimension(int[] size) {
 		return IntStream.of(size).mapToObj(i -> "" + i).collect(Collectors.joining(
 			","));
@@ -356,6 +1389,35 @@ public class N5Access {
 			DOWNSAMPLING_FACTORS, int[].class, () -> new int[] {}));
 	}
 
+	private static boolean isFinerLevel(List<Integer> candidate,
+		int[] resolution)
+	{
+		if (candidate.size() != resolution.length || candidate.equals(asList(
+			resolution)))
+		{
+			return false;
+		}
+		for (int i = 0; i < resolution.length; i++) {
+			if (candidate.get(i) <= 0 || resolution[i] % candidate.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long getArea(List<Integer> resolution) {
+		return resolution.stream().mapToLong(Integer::longValue).reduce(1,
+			(a, b) -> a * b);
+	}
+
+	private static int[] getFactors(int[] resolution, int[] sourceResolution) {
+		int[] result = new int[resolution.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = resolution[i] / sourceResolution[i];
+		}
+		return result;
+	}
+
 	private static List<Integer> asList(int[] values) {
 		return IntStream.of(values).mapToObj(Integer::valueOf).collect(Collectors
 			.toList());
@@ -409,18 +1471,4 @@ public class N5Access {
 
 	}
 
-	private static int readFully(InputStream in, byte[] b)
-			throws IOException
-		{
-			int n = 0;
-			while (n < b.length) {
-				int count = in.read(b, n, b.length - n);
-				if (count < 0) {
-					break;
-				}
-				n += count;
-			}
-			return n;
-		}
-
 }
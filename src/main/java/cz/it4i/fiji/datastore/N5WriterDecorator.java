@@ -8,6 +8,7 @@
 package cz.it4i.fiji.datastore;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 import org.janelia.saalfeldlab.n5.Compression;
@@ -19,7 +20,9 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import lombok.RequiredArgsConstructor;
 
 @RequiredArgsConstructor
-public class N5WriterDecorator implements N5Writer {
+public class N5WriterDecorator implements N5Writer, RawBlockAccess,
+	SidecarAccess, BlockStatisticsAccess
+{
 
 	private final N5Writer writer;
 
@@ -117,6 +120,112 @@ public class N5WriterDecorator implements N5Writer {
 		return result;
 	}
 
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		return RawBlockAccess.of(writer).readRawBlock(pathName, gridPosition);
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		return RawBlockAccess.of(writer).getBlockVersion(pathName, gridPosition);
+	}
+
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		return RawBlockAccess.of(writer).getStoredBlockSize(pathName,
+			gridPosition);
+	}
+
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		RawBlockAccess.of(writer).listBlocks(pathName, consumer);
+	}
+
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		RawBlockAccess.of(writer).writeRawBlock(pathName, gridPosition, data);
+	}
+
+	@Override
+	public boolean containsBlockContent(String hash) throws IOException {
+		return RawBlockAccess.of(writer).containsBlockContent(hash);
+	}
+
+	@Override
+	public byte[] readBlockContent(String hash) throws IOException {
+		return RawBlockAccess.of(writer).readBlockContent(hash);
+	}
+
+	@Override
+	public String getBasePath() {
+		return SidecarAccess.of(writer).getBasePath();
+	}
+
+	@Override
+	public byte[] readSidecar(String pathName, String name) throws IOException {
+		return SidecarAccess.of(writer).readSidecar(pathName, name);
+	}
+
+	@Override
+	public String getSidecarVersion(String pathName, String name)
+		throws IOException
+	{
+		return SidecarAccess.of(writer).getSidecarVersion(pathName, name);
+	}
+
+	@Override
+	public void writeSidecar(String pathName, String name, byte[] data)
+		throws IOException
+	{
+		SidecarAccess.of(writer).writeSidecar(pathName, name, data);
+	}
+
+	@Override
+	public String writeSidecar(String pathName, String name, byte[] data,
+		String version) throws IOException
+	{
+		return SidecarAccess.of(writer).writeSidecar(pathName, name, data,
+			version);
+	}
+
+	@Override
+	public void deleteSidecar(String pathName, String name) throws IOException {
+		SidecarAccess.of(writer).deleteSidecar(pathName, name);
+	}
+
+	@Override
+	public List<String> listSidecars(String pathName, String prefix)
+		throws IOException
+	{
+		return SidecarAccess.of(writer).listSidecars(pathName, prefix);
+	}
+
+	@Override
+	public BlockStatistics getBlockStatistics(String pathName,
+		long[] gridPosition) throws IOException
+	{
+		return BlockStatisticsAccess.of(writer).getBlockStatistics(pathName,
+			gridPosition);
+	}
+
+	@Override
+	public void forEachBlockStatistics(String pathName,
+		BlockStatisticsConsumer consumer) throws IOException
+	{
+		BlockStatisticsAccess.of(writer).forEachBlockStatistics(pathName,
+			consumer);
+	}
+
 	@Override
 	public boolean exists(String pathName) {
 		return writer.exists(pathName);
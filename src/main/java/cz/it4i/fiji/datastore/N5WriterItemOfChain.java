@@ -8,6 +8,11 @@
 package cz.it4i.fiji.datastore;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
@@ -17,7 +22,9 @@ import lombok.AllArgsConstructor;
 import lombok.experimental.Delegate;
 
 @AllArgsConstructor
-public class N5WriterItemOfChain implements N5Writer {
+public class N5WriterItemOfChain implements N5Writer, RawBlockAccess,
+	BlockStatisticsAccess
+{
 
 	@Delegate(excludes = { ExcludeReadWriteMethod.class })
 	private final N5Writer innerWriter;
@@ -41,6 +48,113 @@ public class N5WriterItemOfChain implements N5Writer {
 		return null;
 	}
 
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		byte[] result = RawBlockAccess.of(innerWriter).readRawBlock(pathName,
+			gridPosition);
+		if (result != null) {
+			return result;
+		}
+
+		if (next != null) {
+			return next.readRawBlock(pathName, gridPosition);
+		}
+		return null;
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		String result = RawBlockAccess.of(innerWriter).getBlockVersion(pathName,
+			gridPosition);
+		if (result != null) {
+			return result;
+		}
+
+		if (next != null) {
+			return next.getBlockVersion(pathName, gridPosition);
+		}
+		return null;
+	}
+
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		long result = RawBlockAccess.of(innerWriter).getStoredBlockSize(pathName,
+			gridPosition);
+		if (result >= 0) {
+			return result;
+		}
+
+		if (next != null) {
+			return next.getStoredBlockSize(pathName, gridPosition);
+		}
+		return -1;
+	}
+
+	/**
+	 * Block stored in more versions is listed once with size from the latest
+	 * version, as it is read.
+	 */
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		Set<List<Long>> listed = new HashSet<>();
+		for (N5WriterItemOfChain item = this; item != null; item = item.next) {
+			RawBlockAccess.of(item.innerWriter).listBlocks(pathName, (gridPosition,
+				size) -> {
+				if (listed.add(asList(gridPosition))) {
+					consumer.accept(gridPosition, size);
+				}
+			});
+		}
+	}
+
+	@Override
+	public BlockStatistics getBlockStatistics(String pathName,
+		long[] gridPosition) throws IOException
+	{
+		if (RawBlockAccess.of(innerWriter).getBlockVersion(pathName,
+			gridPosition) != null)
+		{
+			return BlockStatisticsAccess.of(innerWriter).getBlockStatistics(pathName,
+				gridPosition);
+		}
+
+		if (next != null) {
+			return next.getBlockStatistics(pathName, gridPosition);
+		}
+		return null;
+	}
+
+	/**
+	 * Statistics of a block are taken from the latest version that stores the
+	 * block, as the block is read.
+	 */
+	@Override
+	public void forEachBlockStatistics(String pathName,
+		BlockStatisticsConsumer consumer) throws IOException
+	{
+		Set<List<Long>> shadowed = new HashSet<>();
+		for (N5WriterItemOfChain item = this; item != null; item = item.next) {
+			BlockStatisticsAccess.of(item.innerWriter).forEachBlockStatistics(
+				pathName, (gridPosition, statistics) -> {
+					if (!shadowed.contains(asList(gridPosition))) {
+						consumer.accept(gridPosition, statistics);
+					}
+				});
+			if (item.next != null) {
+				RawBlockAccess.of(item.innerWriter).listBlocks(pathName, (
+					gridPosition, size) -> shadowed.add(asList(gridPosition)));
+			}
+		}
+	}
+
 	@Override
 	public <T> void writeBlock(String pathName,
 		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
@@ -50,6 +164,10 @@ public class N5WriterItemOfChain implements N5Writer {
 			"Writting mode is not supported for version mixedLatest");
 	}
 
+	private static List<Long> asList(long[] gridPosition) {
+		return LongStream.of(gridPosition).boxed().collect(Collectors.toList());
+	}
+
 	private interface ExcludeReadWriteMethod {
 
 		public DataBlock<?> readBlock(final String pathName,
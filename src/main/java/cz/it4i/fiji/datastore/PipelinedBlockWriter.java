@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+import cz.it4i.fiji.datastore.BaseBlockRequestHandler.BlockIdentification;
+import cz.it4i.fiji.datastore.BlockWriteStatus.Status;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes blocks of one request in a pipeline - blocks are parsed from the
+ * request one after another while blocks parsed earlier are compressed and
+ * stored concurrently. At most {@code 2 * parallelism} parsed blocks wait for
+ * storing, parsing of next block waits until one of them is stored. Blocks of
+ * the same grid position are stored in order of the request. Blocks in format
+ * {@link BlockFormat#STORED} are stored without recompression.
+ */
+@Log4j2
+@AllArgsConstructor
+class PipelinedBlockWriter {
+
+	@Getter
+	@AllArgsConstructor
+	static final class Result {
+
+		private final List<BlockWriteStatus> statuses;
+
+		/**
+		 * First failure or null if all blocks were written.
+		 */
+		private final Exception failure;
+	}
+
+	private final DatasetServerImpl datasetServer;
+
+	private final ExecutorService executorService;
+
+	private final int parallelism;
+
+	private final BlockFormat format;
+
+	private interface StoreTask {
+
+		void run() throws IOException;
+	}
+
+	Result write(List<BlockIdentification> blocksId, InputStream inputStream)
+		throws InterruptedIOException
+	{
+		Semaphore pending = new Semaphore(2 * parallelism);
+		List<Future<?>> submitted = new ArrayList<>(blocksId.size());
+		Map<String, Future<?>> lastOfPosition = new HashMap<>();
+		Exception parseFailure = null;
+		boolean success = false;
+		try {
+			for (BlockIdentification bi : blocksId) {
+				acquire(pending);
+				StoreTask store;
+				try {
+					store = parse(bi, inputStream);
+				}
+				catch (IOException | RuntimeException exc) {
+					pending.release();
+					parseFailure = exc;
+					break;
+				}
+				Future<?> previous = lastOfPosition.get(bi.toString());
+				if (previous != null) {
+					await(previous);
+				}
+				Future<?> future = executorService.submit(() -> {
+					try {
+						store.run();
+						return null;
+					}
+					finally {
+						pending.release();
+					}
+				});
+				submitted.add(future);
+				lastOfPosition.put(bi.toString(), future);
+			}
+			Result result = collect(blocksId, submitted, parseFailure);
+			success = true;
+			return result;
+		}
+		finally {
+			if (!success) {
+				submitted.forEach(future -> future.cancel(true));
+			}
+		}
+	}
+
+	private StoreTask parse(BlockIdentification bi, InputStream inputStream)
+		throws IOException
+	{
+		if (format == BlockFormat.STORED) {
+			N5Access.StoredBlock block = datasetServer.parseStored(bi.gridPosition,
+				bi.time, bi.channel, bi.angle, inputStream);
+			return () -> datasetServer.storeStored(block, bi.time, bi.channel,
+				bi.angle);
+		}
+		DataBlock<?> block = datasetServer.parse(bi.gridPosition, bi.time,
+			bi.channel, bi.angle, inputStream);
+		return () -> datasetServer.store(block, bi.time, bi.channel, bi.angle);
+	}
+
+	private static Result collect(List<BlockIdentification> blocksId,
+		List<Future<?>> submitted, Exception parseFailure)
+		throws InterruptedIOException
+	{
+		List<BlockWriteStatus> statuses = new ArrayList<>(blocksId.size());
+		Exception failure = null;
+		for (int i = 0; i < blocksId.size(); i++) {
+			BlockIdentification bi = blocksId.get(i);
+			Status status = Status.WRITTEN;
+			Exception exc = null;
+			if (i < submitted.size()) {
+				exc = await(submitted.get(i));
+			}
+			else if (i == submitted.size() && parseFailure != null) {
+				exc = parseFailure;
+			}
+			else {
+				status = Status.SKIPPED;
+			}
+			if (exc != null) {
+				log.warn("write {}", bi, exc);
+				status = Status.FAILED;
+				if (failure == null) {
+					failure = exc;
+				}
+			}
+			statuses.add(new BlockWriteStatus(bi.gridPosition, bi.time, bi.channel,
+				bi.angle, status, exc != null ? exc.getMessage() : null));
+		}
+		return new Result(statuses, failure);
+	}
+
+	/**
+	 * @return failure of the task or null if it succeeded
+	 */
+	private static Exception await(Future<?> future)
+		throws InterruptedIOException
+	{
+		try {
+			future.get();
+			return null;
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Writing of blocks was interrupted");
+		}
+		catch (ExecutionException exc) {
+			Throwable cause = exc.getCause();
+			return cause instanceof Exception ? (Exception) cause : exc;
+		}
+	}
+
+	private static void acquire(Semaphore semaphore)
+		throws InterruptedIOException
+	{
+		try {
+			semaphore.acquire();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Writing of blocks was interrupted");
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import cz.it4i.fiji.datastore.N5Access.PathIdentification;
+import lombok.AllArgsConstructor;
+
+/**
+ * Reduces a voxel region of one resolution level along one axis. Blocks of the
+ * region are grouped into columns along the axis - every column is projected
+ * into its own part of the result, so columns are processed in parallel by
+ * fork-join pool without any synchronization. Voxels of missing blocks are
+ * zero.
+ */
+@AllArgsConstructor
+class Projection {
+
+	enum Operation {
+			MAX, MIN, SUM, MEAN;
+
+		static Operation of(String name) {
+			if (name == null) {
+				return MAX;
+			}
+			try {
+				return valueOf(name.toUpperCase(Locale.ROOT));
+			}
+			catch (IllegalArgumentException exc) {
+				throw new IllegalArgumentException("Operation " + name +
+					" is not supported. Use one of " + Arrays.toString(values()));
+			}
+		}
+
+		DataType getResultType(DataType dataType) {
+			switch (this) {
+				case MAX:
+				case MIN:
+					return dataType;
+				default:
+					return DataType.FLOAT64;
+			}
+		}
+	}
+
+	/**
+	 * @param name x, y or z, null for z
+	 */
+	static int getAxis(String name) {
+		if (name == null) {
+			return 2;
+		}
+		switch (name.toLowerCase(Locale.ROOT)) {
+			case "x":
+				return 0;
+			case "y":
+				return 1;
+			case "z":
+				return 2;
+			default:
+				throw new IllegalArgumentException("Axis " + name +
+					" is not supported. Use one of x, y, z");
+		}
+	}
+
+	private final PathIdentification pathIdentification;
+
+	private final Operation operation;
+
+	private final int axis;
+
+	/**
+	 * @param min first voxel of the region
+	 * @param size size of the region in voxels
+	 * @return block with size of the region reduced to 1 along the axis, see
+	 *         {@link Operation#getResultType(DataType)}
+	 */
+	DataBlock<?> project(long[] min, int[] size, ForkJoinPool pool)
+		throws IOException
+	{
+		int[] resultSize = size.clone();
+		resultSize[axis] = 1;
+		checkRegion(min, size, resultSize);
+		double[] values = new double[resultSize[0] * resultSize[1] *
+			resultSize[2]];
+		Arrays.fill(values, getIdentity());
+
+		int[] blockSize = pathIdentification.getBlockSize();
+		long[] minGrid = new long[3];
+		long[] maxGrid = new long[3];
+		for (int i = 0; i < 3; i++) {
+			minGrid[i] = min[i] / blockSize[i];
+			maxGrid[i] = (min[i] + size[i] - 1) / blockSize[i];
+		}
+		List<long[]> columns = new ArrayList<>();
+		for (long z = minGrid[2]; z <= (axis == 2 ? minGrid[2] : maxGrid[2]); z++) {
+			for (long y = minGrid[1]; y <= (axis == 1 ? minGrid[1] : maxGrid[1]); y++) {
+				for (long x = minGrid[0]; x <= (axis == 0 ? minGrid[0]
+					: maxGrid[0]); x++)
+				{
+					columns.add(new long[] { x, y, z });
+				}
+			}
+		}
+		ColumnContext context = new ColumnContext(min, size, resultSize, values,
+			maxGrid[axis]);
+		try {
+			pool.invoke(new ColumnsTask(context, columns, 0, columns.size()));
+		}
+		catch (UncheckedIOException exc) {
+			throw exc.getCause();
+		}
+
+		DataType resultType = operation.getResultType(pathIdentification
+			.getDataType());
+		DataBlock<?> result = resultType.createDataBlock(resultSize, new long[3]);
+		for (int i = 0; i < values.length; i++) {
+			VoxelArrays.set(result.getData(), resultType, i,
+				operation == Operation.MEAN ? values[i] / size[axis] : values[i]);
+		}
+		return result;
+	}
+
+	private void projectColumn(ColumnContext context, long[] first)
+		throws IOException
+	{
+		int[] blockSize = pathIdentification.getBlockSize();
+		DataType dataType = pathIdentification.getDataType();
+		for (long i = first[axis]; i <= context.lastInColumn; i++) {
+			long[] gridPosition = first.clone();
+			gridPosition[axis] = i;
+			long[] origin = new long[3];
+			for (int j = 0; j < 3; j++) {
+				origin[j] = gridPosition[j] * blockSize[j];
+			}
+			DataBlock<?> block = pathIdentification.read(gridPosition);
+			if (block != null) {
+				fold(context, block.getData(), dataType, origin, block.getSize());
+			}
+			else if (operation == Operation.MAX || operation == Operation.MIN) {
+				// zero voxels do not change sum
+				fold(context, null, dataType, origin, blockSize);
+			}
+		}
+	}
+
+	private void fold(ColumnContext context, Object data, DataType dataType,
+		long[] origin, int[] blockSize)
+	{
+		long[] from = new long[3];
+		long[] to = new long[3];
+		for (int i = 0; i < 3; i++) {
+			from[i] = Math.max(origin[i], context.min[i]);
+			to[i] = Math.min(origin[i] + blockSize[i], context.min[i] +
+				context.size[i]);
+			if (from[i] >= to[i]) {
+				return;
+			}
+		}
+		if (data == null) {
+			// all voxels along the axis are the same
+			to[axis] = from[axis] + 1;
+		}
+		int[] resultSize = context.resultSize;
+		double[] values = context.values;
+		for (long z = from[2]; z < to[2]; z++) {
+			long resultZ = axis == 2 ? 0 : z - context.min[2];
+			for (long y = from[1]; y < to[1]; y++) {
+				long resultY = axis == 1 ? 0 : y - context.min[1];
+				int src = (int) (((z - origin[2]) * blockSize[1] + y - origin[1]) *
+					blockSize[0] + from[0] - origin[0]);
+				int dst = (int) ((resultZ * resultSize[1] + resultY) * resultSize[0]);
+				for (long x = from[0]; x < to[0]; x++) {
+					int index = dst + (axis == 0 ? 0 : (int) (x - context.min[0]));
+					double value = data != null ? VoxelArrays.get(data, dataType, src++)
+						: 0;
+					values[index] = apply(values[index], value);
+				}
+			}
+		}
+	}
+
+	private double apply(double accumulated, double value) {
+		switch (operation) {
+			case MAX:
+				return Math.max(accumulated, value);
+			case MIN:
+				return Math.min(accumulated, value);
+			default:
+				return accumulated + value;
+		}
+	}
+
+	private double getIdentity() {
+		switch (operation) {
+			case MAX:
+				return Double.NEGATIVE_INFINITY;
+			case MIN:
+				return Double.POSITIVE_INFINITY;
+			default:
+				return 0;
+		}
+	}
+
+	private void checkRegion(long[] min, int[] size, int[] resultSize) {
+		long[] dimensions = pathIdentification.getDimensions();
+		for (int i = 0; i < dimensions.length; i++) {
+			if (min[i] < 0 || size[i] <= 0 || min[i] + size[i] > dimensions[i]) {
+				throw new IllegalArgumentException(String.format(
+					"Region [%d-%d] in dimension %d is outside of [0-%d]", min[i], min[i] +
+						size[i], i, dimensions[i]));
+			}
+		}
+		long numElements = (long) resultSize[0] * resultSize[1] * resultSize[2];
+		if (numElements * Double.BYTES > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Projection with " + numElements +
+				" voxels is too large");
+		}
+	}
+
+	@AllArgsConstructor
+	private static class ColumnContext {
+
+		private final long[] min;
+
+		private final int[] size;
+
+		private final int[] resultSize;
+
+		private final double[] values;
+
+		private final long lastInColumn;
+	}
+
+	@AllArgsConstructor
+	private class ColumnsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ColumnContext context;
+
+		private final List<long[]> columns;
+
+		private final int from;
+
+		private final int to;
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				try {
+					projectColumn(context, columns.get(from));
+				}
+				catch (IOException exc) {
+					throw new UncheckedIOException(exc);
+				}
+				return;
+			}
+			int middle = (from + to) / 2;
+			invokeAll(new ColumnsTask(context, columns, from, middle),
+				new ColumnsTask(context, columns, middle, to));
+		}
+	}
+}
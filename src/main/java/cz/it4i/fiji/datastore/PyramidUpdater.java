@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Recomputes blocks of coarser resolution levels after blocks of a finer level
+ * were written. Updates run asynchronously on a fixed number of threads. An
+ * update of a block that is already scheduled and not yet started is
+ * coalesced with the scheduled one, so the number of waiting updates is
+ * bounded by the number of blocks of coarser levels. Updates of one block run
+ * serially, an update requested while the block is updated runs after it, so
+ * the last written block is computed from the last written sources. Updates
+ * are grouped by
+ * namespace identifying dataset version, clients can wait until all updates
+ * of the version are done.
+ */
+@Log4j2
+final class PyramidUpdater {
+
+	interface Update {
+
+		void run() throws IOException;
+	}
+
+	private static PyramidUpdater instance;
+
+	static synchronized PyramidUpdater getInstance() {
+		if (instance == null) {
+			instance = new PyramidUpdater(ApplicationConfiguration
+				.getPyramidThreads());
+		}
+		return instance;
+	}
+
+	private final ExecutorService executor;
+
+	/**
+	 * Scheduled and running updates by keys of blocks.
+	 */
+	private final Map<String, State> states = new HashMap<>();
+
+	private final Map<String, Integer> pending = new HashMap<>();
+
+	private final Map<String, IOException> failures = new HashMap<>();
+
+	PyramidUpdater(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads),
+			new ThreadFactoryBuilder().setNameFormat("pyramid-updater-%d").setDaemon(
+				true).build());
+	}
+
+	/**
+	 * @param namespace identifies dataset version
+	 * @param blockKey identifies the updated block in the namespace
+	 */
+	void schedule(String namespace, String blockKey, Update update) {
+		String key = namespace + ":" + blockKey;
+		synchronized (this) {
+			State state = states.get(key);
+			if (state == State.RUNNING) {
+				states.put(key, State.RERUN);
+			}
+			if (state != null) {
+				return;
+			}
+			states.put(key, State.SCHEDULED);
+			pending.merge(namespace, 1, Integer::sum);
+		}
+		submit(namespace, key, update);
+	}
+
+	synchronized int getPending(String namespace) {
+		return pending.getOrDefault(namespace, 0);
+	}
+
+	/**
+	 * Waits until all updates of the namespace are done, updates scheduled by
+	 * updates are waited for too.
+	 *
+	 * @throws IOException if an update failed since the last wait
+	 */
+	synchronized void await(String namespace) throws IOException {
+		try {
+			while (pending.containsKey(namespace)) {
+				wait();
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+				"Waiting for update of resolution levels was interrupted");
+		}
+		IOException failure = failures.remove(namespace);
+		if (failure != null) {
+			throw new IOException("Update of resolution levels failed", failure);
+		}
+	}
+
+	private void submit(String namespace, String key, Update update) {
+		executor.execute(() -> {
+			synchronized (this) {
+				states.put(key, State.RUNNING);
+			}
+			try {
+				update.run();
+			}
+			catch (IOException | RuntimeException exc) {
+				log.error("Update of block {}", key, exc);
+				synchronized (this) {
+					failures.put(namespace, exc instanceof IOException
+						? (IOException) exc : new IOException(exc));
+				}
+			}
+			finally {
+				done(namespace, key, update);
+			}
+		});
+	}
+
+	private void done(String namespace, String key, Update update) {
+		synchronized (this) {
+			if (states.get(key) != State.RERUN) {
+				states.remove(key);
+				if (pending.merge(namespace, -1, Integer::sum) == 0) {
+					pending.remove(namespace);
+					notifyAll();
+				}
+				return;
+			}
+			// the rerun stays pending, so waiting clients wait for it
+			states.put(key, State.SCHEDULED);
+		}
+		submit(namespace, key, update);
+	}
+
+	private enum State {
+		SCHEDULED, RUNNING, RERUN
+	}
+}
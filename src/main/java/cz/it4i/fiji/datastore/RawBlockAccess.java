@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Access to blocks exactly as they are stored by N5 - N5 block header followed
+ * by data compressed with compression of the dataset.
+ */
+public interface RawBlockAccess {
+
+	@FunctionalInterface
+	interface StoredBlockConsumer {
+
+		void accept(long[] gridPosition, long storedSize);
+	}
+
+	static RawBlockAccess of(N5Reader reader) {
+		if (reader instanceof RawBlockAccess) {
+			return (RawBlockAccess) reader;
+		}
+		throw new UnsupportedOperationException(reader.getClass().getName() +
+			" does not provide access to stored blocks");
+	}
+
+	/**
+	 * @return stored block or null if the block does not exist
+	 */
+	byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException;
+
+	/**
+	 * Version is derived from metadata of the storage only, so it is cheap to
+	 * obtain compared to reading of the block.
+	 * 
+	 * @return opaque token that changes whenever the stored block changes or
+	 *         null if the block does not exist
+	 */
+	String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException;
+
+	/**
+	 * @return size of stored block in bytes or -1 if the block does not exist
+	 */
+	long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException;
+
+	/**
+	 * Passes every stored block of the dataset with its stored size to the
+	 * consumer.
+	 */
+	void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException;
+
+	/**
+	 * Stores the block exactly as given, data have to be already in the form
+	 * returned by {@link #readRawBlock(String, long[])}.
+	 */
+	default void writeRawBlock(String pathName, long[] gridPosition,
+		byte[] data) throws IOException
+	{
+		throw new UnsupportedOperationException(getClass().getName() +
+			" does not support writing of stored blocks");
+	}
+
+	/**
+	 * @param hash hash of stored block, see {@link BlockContentStore}
+	 * @return true if the storage holds stored block with the hash
+	 */
+	default boolean containsBlockContent(String hash) throws IOException {
+		return false;
+	}
+
+	/**
+	 * @return stored block with the hash or null if the storage does not hold
+	 *         it
+	 * @see #containsBlockContent(String)
+	 */
+	default byte[] readBlockContent(String hash) throws IOException {
+		return null;
+	}
+
+}
@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Prefetches blocks that a client is going to read. Blocks are read in a
+ * stream - all blocks of one timepoint, channel and angle of one resolution
+ * level of one dataset version read in one client session, see
+ * {@link #getSession(String, String)}. When the last three reads of a stream have the
+ * same nonzero stride, or when the client announced a scan by a hint, the next
+ * blocks are read asynchronously. Prefetched blocks are kept in their own
+ * bounded buffer apart from {@link BlockCache}, so prefetching never evicts a
+ * block that was requested by a client. A prefetched block is used only if its
+ * version did not change since it was read.
+ */
+@Log4j2
+final class Readahead {
+
+	private static final long STREAM_EXPIRATION_SECONDS = 60;
+
+	/**
+	 * Session of clients that do not identify their session, they share
+	 * streams.
+	 */
+	static final String ANONYMOUS_SESSION = "";
+
+	private static Readahead instance;
+
+	static synchronized Readahead getInstance() {
+		if (instance == null) {
+			instance = new Readahead(ApplicationConfiguration.getReadaheadDepth(),
+				ApplicationConfiguration.getReadaheadBufferSize());
+		}
+		return instance;
+	}
+
+	/**
+	 * @param session value of {@link DatasetServerEndpoint#SESSION_HEADER}
+	 * @param authorization value of Authorization header
+	 * @return session given by the client, its authorization if the session is
+	 *         not given or {@link #ANONYMOUS_SESSION}
+	 */
+	static String getSession(String session, String authorization) {
+		if (session != null) {
+			return session;
+		}
+		return authorization != null ? authorization : ANONYMOUS_SESSION;
+	}
+
+	@FunctionalInterface
+	interface VersionSupplier {
+
+		String get() throws IOException;
+	}
+
+	@FunctionalInterface
+	interface BlockPrefetcher {
+
+		/**
+		 * @return block with its version or null if the block does not exist
+		 */
+		Prefetched prefetch(long[] gridPosition) throws IOException;
+	}
+
+	@AllArgsConstructor
+	static final class Prefetched {
+
+		private final DataBlock<?> block;
+
+		private final String version;
+	}
+
+	/**
+	 * Box of blocks scanned along an axis - coordinate of the axis changes
+	 * slowest, remaining coordinates are ordered with the lower one changing
+	 * faster.
+	 */
+	static final class Hint {
+
+		private final long[] min;
+
+		private final long[] size;
+
+		private final int[] order;
+
+		Hint(long[] min, long[] size, int axis) {
+			for (int i = 0; i < 3; i++) {
+				if (min[i] < 0 || size[i] <= 0) {
+					throw new IllegalArgumentException("Hint " + Arrays.toString(min) +
+						" of size " + Arrays.toString(size) + " is not valid");
+				}
+			}
+			this.min = min;
+			this.size = size;
+			this.order = new int[3];
+			for (int i = 0, j = 0; i < 3; i++) {
+				if (i != axis) {
+					order[j++] = i;
+				}
+			}
+			order[2] = axis;
+		}
+
+		long getCount() {
+			return size[0] * size[1] * size[2];
+		}
+
+		long[] get(long index) {
+			long[] result = new long[3];
+			for (int i : order) {
+				result[i] = min[i] + index % size[i];
+				index /= size[i];
+			}
+			return result;
+		}
+
+		/**
+		 * @return index of the block in the scan or -1 if it is outside the box
+		 */
+		long indexOf(long[] gridPosition) {
+			long result = 0;
+			for (int i = 2; i >= 0; i--) {
+				int dimension = order[i];
+				long offset = gridPosition[dimension] - min[dimension];
+				if (offset < 0 || size[dimension] <= offset) {
+					return -1;
+				}
+				result = result * size[dimension] + offset;
+			}
+			return result;
+		}
+	}
+
+	private final int depth;
+
+	private final long maxWeight;
+
+	private final ExecutorService executor;
+
+	private final Cache<String, Stream> streams = CacheBuilder.newBuilder()
+		.expireAfterAccess(STREAM_EXPIRATION_SECONDS, TimeUnit.SECONDS)
+		.removalListener(notification -> ((Stream) notification.getValue())
+			.cancel()).build();
+
+	private final LinkedHashMap<BufferKey, BufferedBlock> buffer =
+		new LinkedHashMap<>();
+
+	private long weight;
+
+	Readahead(int depth, long maxWeight) {
+		this.depth = depth;
+		this.maxWeight = maxWeight;
+		this.executor = isEnabled() ? Executors.newFixedThreadPool(Math.max(2,
+			Runtime.getRuntime().availableProcessors() / 2),
+			new ThreadFactoryBuilder().setNameFormat("block-readahead-%d")
+				.setDaemon(true).build()) : null;
+	}
+
+	boolean isEnabled() {
+		return depth > 0 && maxWeight > 0;
+	}
+
+	/**
+	 * @param key identifies dataset version, resolution level, timepoint,
+	 *          channel and angle
+	 */
+	Stream getStream(String key) {
+		try {
+			return streams.get(key, () -> new Stream(key));
+		}
+		catch (ExecutionException exc) {
+			throw new IllegalStateException(exc.getCause());
+		}
+	}
+
+	final class Stream {
+
+		private final String key;
+
+		private long[] previous;
+
+		private long[] stride;
+
+		private Hint hint;
+
+		private final Map<List<Long>, Future<?>> pending = new HashMap<>();
+
+		private long generation;
+
+		private Stream(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return prefetched block if it is still current or null
+		 */
+		DataBlock<?> take(long[] gridPosition, VersionSupplier version)
+			throws IOException
+		{
+			BufferedBlock buffered = removeFromBuffer(new BufferKey(key, asList(
+				gridPosition)));
+			if (buffered == null) {
+				return null;
+			}
+			if (!buffered.prefetched.version.equals(version.get())) {
+				return null;
+			}
+			return buffered.prefetched.block;
+		}
+
+		/**
+		 * Records the read block and prefetches the blocks expected to be read
+		 * next.
+		 *
+		 * @param gridDimensions size of the grid of the resolution level
+		 */
+		synchronized void accessed(long[] gridPosition, long[] gridDimensions,
+			BlockPrefetcher prefetcher)
+		{
+			List<long[]> expected = new ArrayList<>(depth);
+			long hintIndex = hint != null ? hint.indexOf(gridPosition) : -1;
+			if (hintIndex >= 0) {
+				for (long i = hintIndex + 1; i < Math.min(hintIndex + 1 + depth, hint
+					.getCount()); i++)
+				{
+					expected.add(hint.get(i));
+				}
+			}
+			else if (hint == null) {
+				long[] newStride = previous != null ? subtract(gridPosition, previous)
+					: null;
+				if (newStride != null && Arrays.equals(newStride, stride) && !Arrays
+					.equals(newStride, new long[newStride.length]))
+				{
+					long[] next = gridPosition;
+					for (int i = 0; i < depth; i++) {
+						next = add(next, stride);
+						if (!isInside(next, gridDimensions)) {
+							break;
+						}
+						expected.add(next);
+					}
+				}
+				stride = newStride;
+			}
+			previous = gridPosition;
+			schedule(expected, prefetcher);
+		}
+
+		/**
+		 * Replaces detected pattern by the scan announced by a client and
+		 * prefetches the beginning of the scan.
+		 */
+		synchronized void hint(Hint newHint, BlockPrefetcher prefetcher) {
+			cancel();
+			hint = newHint;
+			List<long[]> expected = new ArrayList<>(depth);
+			for (long i = 0; i < Math.min(depth, hint.getCount()); i++) {
+				expected.add(hint.get(i));
+			}
+			schedule(expected, prefetcher);
+		}
+
+		/**
+		 * Stops all pending prefetches, drops prefetched blocks and the hint.
+		 */
+		synchronized void cancel() {
+			generation++;
+			hint = null;
+			previous = null;
+			stride = null;
+			pending.values().forEach(future -> future.cancel(false));
+			pending.clear();
+			removeFromBuffer(key);
+		}
+
+		private void schedule(List<long[]> expected, BlockPrefetcher prefetcher) {
+			List<List<Long>> expectedKeys = expected.stream().map(Readahead::asList)
+				.collect(Collectors.toList());
+			// prefetches that are not expected any more are abandoned
+			for (Iterator<Map.Entry<List<Long>, Future<?>>> iter = pending.entrySet()
+				.iterator(); iter.hasNext();)
+			{
+				Map.Entry<List<Long>, Future<?>> entry = iter.next();
+				if (!expectedKeys.contains(entry.getKey())) {
+					entry.getValue().cancel(false);
+					iter.remove();
+				}
+			}
+			long currentGeneration = generation;
+			for (int i = 0; i < expected.size(); i++) {
+				List<Long> positionKey = expectedKeys.get(i);
+				if (pending.containsKey(positionKey) || isBuffered(new BufferKey(key,
+					positionKey)))
+				{
+					continue;
+				}
+				long[] gridPosition = expected.get(i);
+				pending.put(positionKey, executor.submit(() -> prefetch(gridPosition,
+					positionKey, currentGeneration, prefetcher)));
+			}
+		}
+
+		private void prefetch(long[] gridPosition, List<Long> positionKey,
+			long expectedGeneration, BlockPrefetcher prefetcher)
+		{
+			try {
+				Prefetched prefetched = prefetcher.prefetch(gridPosition);
+				synchronized (this) {
+					if (generation != expectedGeneration || pending.remove(
+						positionKey) == null)
+					{
+						return;
+					}
+				}
+				if (prefetched != null) {
+					addToBuffer(new BufferKey(key, positionKey), prefetched);
+				}
+			}
+			catch (IOException | RuntimeException exc) {
+				log.debug("Prefetch of {} in {} failed", positionKey, key, exc);
+				synchronized (this) {
+					pending.remove(positionKey);
+				}
+			}
+		}
+	}
+
+	@EqualsAndHashCode
+	@AllArgsConstructor
+	private static final class BufferKey {
+
+		private final String stream;
+
+		private final List<Long> gridPosition;
+	}
+
+	@AllArgsConstructor
+	private static final class BufferedBlock {
+
+		private final Prefetched prefetched;
+
+		private final long weight;
+	}
+
+	private synchronized void addToBuffer(BufferKey bufferKey,
+		Prefetched prefetched)
+	{
+		long blockWeight = BlockCache.weigh(prefetched.block);
+		if (blockWeight > maxWeight) {
+			return;
+		}
+		removeFromBuffer(bufferKey);
+		buffer.put(bufferKey, new BufferedBlock(prefetched, blockWeight));
+		weight += blockWeight;
+		// the oldest prefetched blocks are dropped first
+		for (Iterator<BufferedBlock> iter = buffer.values().iterator(); weight >
+			maxWeight && iter.hasNext();)
+		{
+			weight -= iter.next().weight;
+			iter.remove();
+		}
+	}
+
+	private synchronized BufferedBlock removeFromBuffer(BufferKey bufferKey) {
+		BufferedBlock result = buffer.remove(bufferKey);
+		if (result != null) {
+			weight -= result.weight;
+		}
+		return result;
+	}
+
+	private synchronized void removeFromBuffer(String stream) {
+		for (Iterator<Map.Entry<BufferKey, BufferedBlock>> iter = buffer.entrySet()
+			.iterator(); iter.hasNext();)
+		{
+			Map.Entry<BufferKey, BufferedBlock> entry = iter.next();
+			if (entry.getKey().stream.equals(stream)) {
+				weight -= entry.getValue().weight;
+				iter.remove();
+			}
+		}
+	}
+
+	private synchronized boolean isBuffered(BufferKey bufferKey) {
+		return buffer.containsKey(bufferKey);
+	}
+
+	private static List<Long> asList(long[] gridPosition) {
+		return LongStream.of(gridPosition).boxed().collect(Collectors.toList());
+	}
+
+	private static long[] subtract(long[] a, long[] b) {
+		long[] result = new long[a.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = a[i] - b[i];
+		}
+		return result;
+	}
+
+	private static long[] add(long[] a, long[] b) {
+		long[] result = new long[a.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = a[i] + b[i];
+		}
+		return result;
+	}
+
+	private static boolean isInside(long[] gridPosition, long[] gridDimensions) {
+		for (int i = 0; i < gridPosition.length; i++) {
+			if (gridPosition[i] < 0 || gridDimensions[i] <= gridPosition[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import cz.it4i.fiji.datastore.N5Access.PathIdentification;
+import lombok.AllArgsConstructor;
+
+/**
+ * Maps a voxel region of one resolution level onto the blocks it intersects.
+ * Data are copied between blocks and the region row by row with
+ * {@link System#arraycopy(Object, int, Object, int, int)} on the primitive
+ * arrays backing the blocks, so no voxel is boxed or converted.
+ */
+@AllArgsConstructor
+class RegionAccess {
+
+	private final PathIdentification pathIdentification;
+
+	/**
+	 * @param min first voxel of the region
+	 * @param size size of the region in voxels
+	 * @return block holding the region, voxels of missing blocks are zero
+	 */
+	DataBlock<?> read(long[] min, int[] size) throws IOException {
+		DataBlock<?> result = readExisting(min, size);
+		if (result == null) {
+			result = pathIdentification.getDataType().createDataBlock(size,
+				new long[min.length]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return block holding the region or null if none of the blocks intersected
+	 *         by the region exists
+	 */
+	DataBlock<?> readExisting(long[] min, int[] size) throws IOException {
+		checkRegion(min, size);
+		DataBlock<?> result = null;
+		int[] blockSize = pathIdentification.getBlockSize();
+		long[] minGrid = new long[min.length];
+		long[] maxGrid = new long[min.length];
+		for (int i = 0; i < min.length; i++) {
+			minGrid[i] = min[i] / blockSize[i];
+			maxGrid[i] = (min[i] + size[i] - 1) / blockSize[i];
+		}
+		for (long z = minGrid[2]; z <= maxGrid[2]; z++) {
+			for (long y = minGrid[1]; y <= maxGrid[1]; y++) {
+				for (long x = minGrid[0]; x <= maxGrid[0]; x++) {
+					long[] gridPosition = { x, y, z };
+					DataBlock<?> block = pathIdentification.load(gridPosition);
+					if (block == null) {
+						continue;
+					}
+					if (result == null) {
+						result = pathIdentification.getDataType().createDataBlock(size,
+							new long[min.length]);
+					}
+					copy(block.getData(), getOrigin(gridPosition, blockSize), block
+						.getSize(), result.getData(), min, size);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Copies intersection of source and destination box from source array into
+	 * destination array. Both arrays hold voxels with x as the fastest varying
+	 * coordinate.
+	 */
+	static void copy(Object src, long[] srcOrigin, int[] srcSize, Object dst,
+		long[] dstOrigin, int[] dstSize)
+	{
+		long[] from = new long[3];
+		long[] to = new long[3];
+		for (int i = 0; i < 3; i++) {
+			from[i] = Math.max(srcOrigin[i], dstOrigin[i]);
+			to[i] = Math.min(srcOrigin[i] + srcSize[i], dstOrigin[i] + dstSize[i]);
+			if (from[i] >= to[i]) {
+				return;
+			}
+		}
+		int length = (int) (to[0] - from[0]);
+		for (long z = from[2]; z < to[2]; z++) {
+			for (long y = from[1]; y < to[1]; y++) {
+				System.arraycopy(src, getOffset(srcOrigin, srcSize, from[0], y, z), dst,
+					getOffset(dstOrigin, dstSize, from[0], y, z), length);
+			}
+		}
+	}
+
+	void checkRegion(long[] min, int[] size) {
+		long[] dimensions = pathIdentification.getDimensions();
+		long numElements = 1;
+		for (int i = 0; i < dimensions.length; i++) {
+			if (min[i] < 0 || size[i] <= 0 || min[i] + size[i] > dimensions[i]) {
+				throw new IllegalArgumentException(String.format(
+					"Region [%d-%d] in dimension %d is outside of [0-%d]", min[i], min[i] +
+						size[i], i, dimensions[i]));
+			}
+			numElements *= size[i];
+		}
+		DataType dataType = pathIdentification.getDataType();
+		if (numElements * N5Access.getSizeOfElement(
+			dataType) > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Region with " + numElements +
+				" voxels of type " + dataType + " is too large");
+		}
+	}
+
+	private static long[] getOrigin(long[] gridPosition, int[] blockSize) {
+		long[] result = new long[gridPosition.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = gridPosition[i] * blockSize[i];
+		}
+		return result;
+	}
+
+	private static int getOffset(long[] origin, int[] size, long x, long y,
+		long z)
+	{
+		return (int) (((z - origin[2]) * size[1] + (y - origin[1])) * size[0] + x -
+			origin[0]);
+	}
+}
@@ -31,6 +31,9 @@ public class RootResponse {
     @XmlElement
     private final Long serverTimeout;
 
+    @XmlElement
+    private final BlockCache.Statistics blockCache;
+
     public String toXml()
     {
         try {
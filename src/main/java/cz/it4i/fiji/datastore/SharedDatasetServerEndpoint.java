@@ -9,10 +9,30 @@
 package cz.it4i.fiji.datastore;
 
 import static cz.it4i.fiji.datastore.DatasetServerEndpoint.ANGLE_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.AXIS_PARAM;
 import static cz.it4i.fiji.datastore.DatasetServerEndpoint.BLOCKS_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.BYTE_ORDER_PARAM;
 import static cz.it4i.fiji.datastore.DatasetServerEndpoint.CHANNEL_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.CHECKSUM_HEADER;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.ENCODING_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.FORMAT_HEADER;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.FORMAT_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.HASH_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.MAX_ABOVE_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.MAX_BELOW_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.MIN_ABOVE_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.MIN_BELOW_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.OPERATION_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.PART_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SESSION_HEADER;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SESSION_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SIZES_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SIZE_X_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SIZE_Y_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.SIZE_Z_PARAM;
 import static cz.it4i.fiji.datastore.DatasetServerEndpoint.TIME_PARAM;
-import static cz.it4i.fiji.datastore.core.Version.stringToIntVersion;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.WINDOW_MAX_PARAM;
+import static cz.it4i.fiji.datastore.DatasetServerEndpoint.WINDOW_MIN_PARAM;
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.R_X_PARAM;
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.R_Y_PARAM;
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.R_Z_PARAM;
@@ -21,24 +41,28 @@ import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndp
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.X_PARAM;
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.Y_PARAM;
 import static cz.it4i.fiji.datastore.register_service.DatasetRegisterServiceEndpoint.Z_PARAM;
-import static cz.it4i.fiji.datastore.register_service.OperationMode.READ;
-import static cz.it4i.fiji.datastore.register_service.OperationMode.READ_WRITE;
-import static java.util.Collections.singletonList;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
-import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 
@@ -46,7 +70,6 @@ import cz.it4i.fiji.datastore.core.Version;
 import cz.it4i.fiji.datastore.register_service.OperationMode;
 import cz.it4i.fiji.datastore.security.Authorization;
 import lombok.extern.log4j.Log4j2;
-import mpicbg.spim.data.SpimDataException;
 
 @Authorization
 @ApplicationScoped
@@ -61,7 +84,7 @@ public class SharedDatasetServerEndpoint implements Serializable {
 	BlockRequestHandler requestHandler;
 
 	@Inject
-	ApplicationConfiguration configuration;
+	DatasetServerRegistry serverRegistry;
 
 	@Authorization
 //@formatter:off
@@ -81,7 +104,8 @@ public class SharedDatasetServerEndpoint implements Serializable {
 		RootResponse result = RootResponse.builder().uuid(uuid).mode(
 			OperationMode.READ_WRITE).version(Version.stringToIntVersion(version))
 			.resolutionLevels(Collections.singletonList(
-				new int[] { rX, rY, rZ })).build();
+				new int[] { rX, rY, rZ })).blockCache(BlockCache.getInstance()
+					.getStatistics()).build();
 		ResponseBuilder responseBuilder = Response.ok();
 		responseBuilder.entity(result).type(MediaType.APPLICATION_JSON_TYPE)
 			.build();
@@ -107,17 +131,29 @@ public class SharedDatasetServerEndpoint implements Serializable {
 			+ "{" + BLOCKS_PARAM + ":/?.*}")
 	// @formatter:on
 	@GET
-	public Response readBlock(@PathParam(UUID) String uuid,
+	public CompletionStage<Response> readBlock(@PathParam(UUID) String uuid,
 		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
 		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
 		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
 		@PathParam(Z_PARAM) long z, @PathParam(TIME_PARAM) int time,
 		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
-		@PathParam(BLOCKS_PARAM) String blocks)
+		@PathParam(BLOCKS_PARAM) String blocks,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+		@Context Request request)
 	{
 
-		return requestHandler.readBlock(getDataSetserver(uuid, rX, rY, rZ, version),
-			x, y, z, time, channel, angle, blocks);
+		return requestHandler.handleAsync(() -> requestHandler.readBlock(
+			getDataSetserver(uuid, rX, rY, rZ, version), x, y, z, time, channel,
+			angle, blocks, BlockFormat.of(format, formatHeader), TransferEncoding.of(
+				encoding, windowMin, windowMax, byteOrder), request, Readahead
+					.getSession(session, authorization)));
 
 	}
 
@@ -139,16 +175,577 @@ public class SharedDatasetServerEndpoint implements Serializable {
 	// @formatter:on
 	@POST
 	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
-	public Response writeBlock(@PathParam(UUID) String uuid,
+	public CompletionStage<Response> writeBlock(@PathParam(UUID) String uuid,
 		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
 		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
 		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
 		@PathParam(Z_PARAM) long z, @PathParam(TIME_PARAM) int time,
 		@PathParam(CHANNEL_PARAM) int channel, @PathParam(ANGLE_PARAM) int angle,
-		@PathParam(BLOCKS_PARAM) String blocks, InputStream inputStream)
+		@PathParam(BLOCKS_PARAM) String blocks,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(HttpHeaders.IF_MATCH) String ifMatch, InputStream inputStream)
 	{
-		return requestHandler.writeBlock(getDataSetserver(uuid, rX, rY, rZ,
-			version), x, y, z, time, channel, angle, blocks, inputStream);
+		return requestHandler.handleAsync(() -> requestHandler.writeBlock(
+			getDataSetserver(uuid, rX, rY, rZ, version), x, y, z, time, channel,
+			angle, blocks, BlockFormat.of(format, formatHeader), ifMatch,
+			inputStream));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/batch/read")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> readBlocks(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+		InputStream inputStream)
+	{
+		return requestHandler.handleAsync(() -> requestHandler.readBlocks(
+			getDataSetserver(uuid, rX, rY, rZ, version), inputStream, BlockFormat.of(
+				format, formatHeader), TransferEncoding.of(encoding, windowMin,
+					windowMax, byteOrder), Readahead.getSession(session,
+						authorization)));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/batch/write")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeBlocks(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader, InputStream inputStream)
+	{
+		return requestHandler.handleAsync(() -> requestHandler.writeBlocks(
+			getDataSetserver(uuid, rX, rY, rZ, version), inputStream, BlockFormat
+				.of(format, formatHeader)));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/region"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + SIZE_X_PARAM + "}"
+			+ "/{" + SIZE_Y_PARAM + "}"
+			+ "/{" + SIZE_Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response readRegion(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
+		@PathParam(Z_PARAM) long z, @PathParam(SIZE_X_PARAM) int sizeX,
+		@PathParam(SIZE_Y_PARAM) int sizeY, @PathParam(SIZE_Z_PARAM) int sizeZ,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(ENCODING_PARAM) String encoding,
+		@QueryParam(WINDOW_MIN_PARAM) Double windowMin,
+		@QueryParam(WINDOW_MAX_PARAM) Double windowMax,
+		@QueryParam(BYTE_ORDER_PARAM) String byteOrder)
+	{
+		return requestHandler.readRegion(getDataSetserver(uuid, rX, rY, rZ,
+			version), new long[] { x, y, z }, new int[] { sizeX, sizeY, sizeZ }, time,
+			channel, angle, TransferEncoding.of(encoding, windowMin, windowMax,
+				byteOrder));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/region"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + SIZE_X_PARAM + "}"
+			+ "/{" + SIZE_Y_PARAM + "}"
+			+ "/{" + SIZE_Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeRegion(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
+		@PathParam(Z_PARAM) long z, @PathParam(SIZE_X_PARAM) int sizeX,
+		@PathParam(SIZE_Y_PARAM) int sizeY, @PathParam(SIZE_Z_PARAM) int sizeZ,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle, InputStream inputStream)
+	{
+		return requestHandler.handleAsync(() -> requestHandler.writeRegion(
+			getDataSetserver(uuid, rX, rY, rZ, version), new long[] { x, y, z },
+			new int[] { sizeX, sizeY, sizeZ }, time, channel, angle, inputStream));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/statistics"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response readStatistics(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle)
+	{
+		return requestHandler.readStatistics(getDataSetserver(uuid, rX, rY, rZ,
+			version), null, null, time, channel, angle);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/statistics"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + SIZE_X_PARAM + "}"
+			+ "/{" + SIZE_Y_PARAM + "}"
+			+ "/{" + SIZE_Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response readStatistics(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
+		@PathParam(Z_PARAM) long z, @PathParam(SIZE_X_PARAM) int sizeX,
+		@PathParam(SIZE_Y_PARAM) int sizeY, @PathParam(SIZE_Z_PARAM) int sizeZ,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle)
+	{
+		return requestHandler.readStatistics(getDataSetserver(uuid, rX, rY, rZ,
+			version), new long[] { x, y, z }, new int[] { sizeX, sizeY, sizeZ }, time,
+			channel, angle);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/statistics/blocks"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response findBlocks(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(MIN_ABOVE_PARAM) Double minAbove,
+		@QueryParam(MIN_BELOW_PARAM) Double minBelow,
+		@QueryParam(MAX_ABOVE_PARAM) Double maxAbove,
+		@QueryParam(MAX_BELOW_PARAM) Double maxBelow)
+	{
+		return requestHandler.findBlocks(getDataSetserver(uuid, rX, rY, rZ,
+			version), time, channel, angle, minAbove, minBelow, maxAbove, maxBelow);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/projection"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + SIZE_X_PARAM + "}"
+			+ "/{" + SIZE_Y_PARAM + "}"
+			+ "/{" + SIZE_Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response readProjection(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
+		@PathParam(Z_PARAM) long z, @PathParam(SIZE_X_PARAM) int sizeX,
+		@PathParam(SIZE_Y_PARAM) int sizeY, @PathParam(SIZE_Z_PARAM) int sizeZ,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(OPERATION_PARAM) String operation,
+		@QueryParam(AXIS_PARAM) String axis)
+	{
+		return requestHandler.readProjection(getDataSetserver(uuid, rX, rY, rZ,
+			version), new long[] { x, y, z }, new int[] { sizeX, sizeY, sizeZ }, time,
+			channel, angle, operation, axis);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/occupancy"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@GET
+	public Response readOccupancy(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(SIZES_PARAM) boolean withSizes)
+	{
+		return requestHandler.readOccupancy(getDataSetserver(uuid, rX, rY, rZ,
+			version), time, channel, angle, withSizes);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/readahead"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + SIZE_X_PARAM + "}"
+			+ "/{" + SIZE_Y_PARAM + "}"
+			+ "/{" + SIZE_Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@POST
+	public Response hintReadahead(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(X_PARAM) long x, @PathParam(Y_PARAM) long y,
+		@PathParam(Z_PARAM) long z, @PathParam(SIZE_X_PARAM) long sizeX,
+		@PathParam(SIZE_Y_PARAM) long sizeY, @PathParam(SIZE_Z_PARAM) long sizeZ,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle, @QueryParam(AXIS_PARAM) String axis,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization)
+	{
+		return requestHandler.hintReadahead(getDataSetserver(uuid, rX, rY, rZ,
+			version), new long[] { x, y, z }, new long[] { sizeX, sizeY, sizeZ },
+			time, channel, angle, axis, Readahead.getSession(session,
+				authorization));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/readahead"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM +		"}")
+	// @formatter:on
+	@DELETE
+	public Response cancelReadahead(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@HeaderParam(SESSION_HEADER) String session,
+		@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization)
+	{
+		return requestHandler.cancelReadahead(getDataSetserver(uuid, rX, rY, rZ,
+			version), time, channel, angle, Readahead.getSession(session,
+				authorization));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public Response createUploadSession(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		InputStream inputStream)
+	{
+		return requestHandler.createUploadSession(getDataSetserver(uuid, rX, rY,
+			rZ, version), inputStream);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads/{" + SESSION_PARAM + "}")
+	// @formatter:on
+	@GET
+	public Response getUploadSession(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(SESSION_PARAM) String session)
+	{
+		return requestHandler.getUploadSession(getDataSetserver(uuid, rX, rY, rZ,
+			version), session);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads/{" + SESSION_PARAM + "}")
+	// @formatter:on
+	@DELETE
+	public Response deleteUploadSession(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(SESSION_PARAM) String session)
+	{
+		return requestHandler.deleteUploadSession(getDataSetserver(uuid, rX, rY,
+			rZ, version), session);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM + "}")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeSessionBlock(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(CHECKSUM_HEADER) String checksum, InputStream inputStream)
+	{
+		return requestHandler.handleAsync(() -> requestHandler.writeSessionBlock(
+			getDataSetserver(uuid, rX, rY, rZ, version), session, x, y, z, time,
+			channel, angle, BlockFormat.of(format, formatHeader), checksum,
+			inputStream));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM + "}"
+			+ "/parts/{" + PART_PARAM + "}")
+	// @formatter:on
+	@PUT
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	public CompletionStage<Response> writeSessionBlockPart(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@PathParam(PART_PARAM) int part,
+		@HeaderParam(CHECKSUM_HEADER) String checksum, InputStream inputStream)
+	{
+		return requestHandler.handleAsync(() -> requestHandler
+			.writeSessionBlockPart(getDataSetserver(uuid, rX, rY, rZ, version),
+				session, x, y, z, time, channel, angle, part, checksum, inputStream));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/uploads/{" + SESSION_PARAM + "}"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM + "}"
+			+ "/parts")
+	// @formatter:on
+	@POST
+	public CompletionStage<Response> completeSessionBlock(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(SESSION_PARAM) String session, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle,
+		@QueryParam(FORMAT_PARAM) String format,
+		@HeaderParam(FORMAT_HEADER) String formatHeader,
+		@HeaderParam(CHECKSUM_HEADER) String checksum)
+	{
+		return requestHandler.handleAsync(() -> requestHandler
+			.completeSessionBlock(getDataSetserver(uuid, rX, rY, rZ, version),
+				session, x, y, z, time, channel, angle, BlockFormat.of(format,
+					formatHeader), checksum));
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/contents")
+	// @formatter:on
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response findBlockContents(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		List<String> hashes)
+	{
+		return requestHandler.findBlockContents(getDataSetserver(uuid, rX, rY, rZ,
+			version), hashes);
+	}
+
+	@Authorization
+//@formatter:off
+	@Path("datasets"
+		  + "/{" + UUID + "}"
+			+ "/{" + R_X_PARAM + "}"
+			+ "/{" + R_Y_PARAM + "}"
+			+ "/{" + R_Z_PARAM +	"}"
+			+ "/{" + VERSION_PARAM + "}"
+			+ "/contents/{" + HASH_PARAM + "}"
+			+ "/{" + X_PARAM + "}"
+			+ "/{" + Y_PARAM + "}"
+			+ "/{" + Z_PARAM + "}"
+			+ "/{" + TIME_PARAM + "}"
+			+ "/{" + CHANNEL_PARAM + "}"
+			+ "/{" + ANGLE_PARAM + "}")
+	// @formatter:on
+	@POST
+	public CompletionStage<Response> writeContentBlock(@PathParam(UUID) String uuid,
+		@PathParam(R_X_PARAM) int rX, @PathParam(R_Y_PARAM) int rY,
+		@PathParam(R_Z_PARAM) int rZ, @PathParam(VERSION_PARAM) String version,
+		@PathParam(HASH_PARAM) String hash, @PathParam(X_PARAM) long x,
+		@PathParam(Y_PARAM) long y, @PathParam(Z_PARAM) long z,
+		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
+		@PathParam(ANGLE_PARAM) int angle)
+	{
+		return requestHandler.handleAsync(() -> requestHandler.writeContentBlock(
+			getDataSetserver(uuid, rX, rY, rZ, version), hash, x, y, z, time,
+			channel, angle));
 	}
 
 	@Authorization
@@ -188,19 +785,7 @@ public class SharedDatasetServerEndpoint implements Serializable {
 	private DatasetServerImpl getDataSetserver(String uuid, int rX, int rY,
 		int rZ, String version)
 	{
-		try {
-			final boolean mixedVersion = Version.MIXED_LATEST_VERSION_NAME.equals(
-				version);
-			DatasetHandler handler = configuration.getDatasetHandler(uuid);
-			int versionInt = mixedVersion?handler.getLatestVersion():stringToIntVersion(version);
-			OperationMode mode = mixedVersion ? READ : READ_WRITE;
-			return new DatasetServerImpl(handler, singletonList(new int[] { rX, rY,
-				rZ }), versionInt, mixedVersion, mode);
-		}
-		catch (SpimDataException | IOException exc) {
-			log.error("getDatasetServer", exc);
-			throw new InternalServerErrorException(exc);
-		}
+		return serverRegistry.get(uuid, new int[] { rX, rY, rZ }, version);
 	}
 
 }
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Access to sidecar files - auxiliary data kept by the datastore next to
+ * blocks of a dataset. Sidecar files belong to one version and are not copied
+ * into a new version.
+ */
+public interface SidecarAccess {
+
+	static final String SIDECAR_EXTENSION = ".sidecar";
+
+	static SidecarAccess of(N5Reader reader) {
+		if (reader instanceof SidecarAccess) {
+			return (SidecarAccess) reader;
+		}
+		throw new UnsupportedOperationException(reader.getClass().getName() +
+			" does not provide access to sidecar files");
+	}
+
+	static boolean isSidecar(String fileName) {
+		return fileName.endsWith(SIDECAR_EXTENSION);
+	}
+
+	/**
+	 * @return location of the version in the storage
+	 */
+	String getBasePath();
+
+	/**
+	 * @return content of the sidecar file or null if it does not exist
+	 */
+	byte[] readSidecar(String pathName, String name) throws IOException;
+
+	/**
+	 * Version is used for detection of sidecar files written by other
+	 * processes.
+	 * 
+	 * @return opaque token that changes whenever the sidecar file is written or
+	 *         null if it does not exist
+	 */
+	String getSidecarVersion(String pathName, String name) throws IOException;
+
+	/**
+	 * Content of sidecar file is replaced atomically.
+	 */
+	void writeSidecar(String pathName, String name, byte[] data)
+		throws IOException;
+
+	/**
+	 * Content of sidecar file is replaced atomically only if the sidecar file
+	 * was not written by anybody since its version was obtained.
+	 * 
+	 * @param version version obtained by
+	 *          {@link #getSidecarVersion(String, String)} or null if the sidecar
+	 *          file should not exist
+	 * @return version of the written sidecar file or null if the sidecar file
+	 *         has other version, it is not written then
+	 */
+	String writeSidecar(String pathName, String name, byte[] data,
+		String version) throws IOException;
+
+	void deleteSidecar(String pathName, String name) throws IOException;
+
+	/**
+	 * @return names of sidecar files of the dataset that start with the prefix
+	 */
+	List<String> listSidecars(String pathName, String prefix)
+		throws IOException;
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import cz.it4i.fiji.datastore.BaseBlockRequestHandler.BlockIdentification;
+import lombok.AllArgsConstructor;
+
+/**
+ * Writes requested blocks into the response exactly as they are stored, so
+ * they are neither decompressed nor encoded again. Every block is prefixed by
+ * its length in bytes, missing block has length -1.
+ */
+@AllArgsConstructor
+class StoredBlockStreamingOutput implements StreamingOutput {
+
+	private final DatasetServerImpl datasetServer;
+
+	private final List<BlockIdentification> blocks;
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		DataOutputStream dos = new DataOutputStream(output);
+		for (BlockIdentification bi : blocks) {
+			byte[] block = datasetServer.readRaw(bi.gridPosition, bi.time,
+				bi.channel, bi.angle);
+			if (block == null) {
+				dos.writeInt(-1);
+				continue;
+			}
+			dos.writeInt(block.length);
+			dos.write(block);
+		}
+		dos.flush();
+	}
+
+}
@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.base.Strings;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Encoding of voxels of blocks sent to a client. Voxels are either sent in
+ * the type of the dataset, converted to UINT8 or UINT16 by linear mapping of a
+ * window of values (values outside the window are clamped), or converted to
+ * half precision floats. Voxels are big endian unless little endian byte
+ * order is requested - sizes of blocks and frame headers stay big endian.
+ */
+@AllArgsConstructor
+public final class TransferEncoding {
+
+	public static final TransferEncoding NATIVE = new TransferEncoding(
+		Conversion.NONE, null, null, ByteOrder.BIG_ENDIAN);
+
+	enum Conversion {
+			NONE, UINT8, UINT16, FLOAT16
+	}
+
+	private final Conversion conversion;
+
+	private final Double windowMin;
+
+	private final Double windowMax;
+
+	private final ByteOrder byteOrder;
+
+	/**
+	 * @param encoding uint8, uint16, float16 or null for the type of the dataset
+	 * @param windowMin value mapped to 0, null for minimum of the dataset type
+	 *          or 0 for floating point types
+	 * @param windowMax value mapped to maximum of the encoded type, null for
+	 *          maximum of the dataset type or 1 for floating point types
+	 * @param byteOrder big or little, null for big
+	 */
+	public static TransferEncoding of(String encoding, Double windowMin,
+		Double windowMax, String byteOrder)
+	{
+		Conversion conversion = Conversion.NONE;
+		if (!Strings.isNullOrEmpty(encoding)) {
+			try {
+				conversion = Conversion.valueOf(encoding.toUpperCase(Locale.ROOT));
+			}
+			catch (IllegalArgumentException exc) {
+				throw new IllegalArgumentException("Encoding " + encoding +
+					" is not supported. Use one of uint8, uint16, float16");
+			}
+		}
+		if ((windowMin != null || windowMax != null) &&
+			conversion != Conversion.UINT8 && conversion != Conversion.UINT16)
+		{
+			throw new IllegalArgumentException(
+				"Window can be used only with encoding uint8 or uint16");
+		}
+		if (windowMin != null && windowMax != null && !(windowMin < windowMax)) {
+			throw new IllegalArgumentException("Window [" + windowMin + ", " +
+				windowMax + "] is empty");
+		}
+		ByteOrder order;
+		if (Strings.isNullOrEmpty(byteOrder) || "big".equalsIgnoreCase(
+			byteOrder))
+		{
+			order = ByteOrder.BIG_ENDIAN;
+		}
+		else if ("little".equalsIgnoreCase(byteOrder)) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		}
+		else {
+			throw new IllegalArgumentException("Byte order " + byteOrder +
+				" is not supported. Use one of big, little");
+		}
+		return new TransferEncoding(conversion, windowMin, windowMax, order);
+	}
+
+	public boolean isNative() {
+		return conversion == Conversion.NONE && byteOrder == ByteOrder.BIG_ENDIAN;
+	}
+
+	/**
+	 * @return type of encoded voxels, half precision floats are reported as float16
+	 */
+	public String getTypeName(DataType dataType) {
+		switch (conversion) {
+			case UINT8:
+				return DataType.UINT8.toString();
+			case UINT16:
+				return DataType.UINT16.toString();
+			case FLOAT16:
+				return "float16";
+			default:
+				return dataType.toString();
+		}
+	}
+
+	/**
+	 * @return big or little
+	 */
+	public String getByteOrderName() {
+		return byteOrder == ByteOrder.LITTLE_ENDIAN ? "little" : "big";
+	}
+
+	/**
+	 * Distinguishes representations of the same blocks in entity tags.
+	 */
+	public String getName() {
+		return conversion.name().toLowerCase(Locale.ROOT) + ":" + windowMin + ":" +
+			windowMax + ":" + getByteOrderName();
+	}
+
+	/**
+	 * @return voxels of the block encoded for the transfer
+	 */
+	public ByteBuffer encode(DataBlock<?> block, DataType dataType) {
+		if (isNative()) {
+			return block.toByteBuffer();
+		}
+		Object data = block.getData();
+		int numElements = block.getNumElements();
+		switch (conversion) {
+			case UINT8: {
+				byte[] result = new byte[numElements];
+				window(data, dataType, numElements, 0xff, (i, value) -> result[i] =
+					(byte) value);
+				return ByteBuffer.wrap(result);
+			}
+			case UINT16: {
+				ByteBuffer result = allocate(numElements, Short.BYTES);
+				ShortBuffer output = result.asShortBuffer();
+				window(data, dataType, numElements, 0xffff, (i, value) -> output.put(i,
+					(short) value));
+				return result;
+			}
+			case FLOAT16: {
+				ByteBuffer result = allocate(numElements, Short.BYTES);
+				ShortBuffer output = result.asShortBuffer();
+				if (data instanceof float[]) {
+					float[] input = (float[]) data;
+					for (int i = 0; i < numElements; i++) {
+						output.put(i, toHalf(input[i]));
+					}
+				}
+				else {
+					for (int i = 0; i < numElements; i++) {
+						output.put(i, toHalf((float) VoxelArrays.get(data, dataType, i)));
+					}
+				}
+				return result;
+			}
+			default:
+				return swap(data, numElements);
+		}
+	}
+
+	/**
+	 * Rounds to the nearest half precision float, ties to even.
+	 */
+	static short toHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = bits >>> 16 & 0x8000;
+		int exponent = bits >>> 23 & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exponent == 0xff) {
+			// infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1f) {
+			return (short) (sign | 0x7c00);
+		}
+		int shift = 13;
+		int half;
+		if (halfExponent <= 0) {
+			if (halfExponent < -10) {
+				return (short) sign;
+			}
+			// subnormal half, implicit leading bit becomes explicit
+			mantissa |= 0x800000;
+			shift = 14 - halfExponent;
+			half = mantissa >> shift;
+		}
+		else {
+			half = halfExponent << 10 | mantissa >> shift;
+		}
+		int remainder = mantissa & (1 << shift) - 1;
+		int halfway = 1 << shift - 1;
+		if (remainder > halfway || remainder == halfway && (half & 1) != 0) {
+			// carry to exponent is correct rounding, up to infinity
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	@FunctionalInterface
+	private interface WindowedOutput {
+
+		void put(int index, int value);
+	}
+
+	/**
+	 * Maps voxels of the window to [0, max]. Loops are specialized for the
+	 * backing arrays, only 64-bit integers go through {@link VoxelArrays}.
+	 */
+	private void window(Object data, DataType dataType, int numElements,
+		int max, WindowedOutput output)
+	{
+		double min = getWindowMin(dataType);
+		double scale = max / (getWindowMax(dataType) - min);
+		switch (dataType) {
+			case UINT8: {
+				byte[] input = (byte[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i] & 0xff, min, scale, max));
+				}
+				return;
+			}
+			case INT8: {
+				byte[] input = (byte[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i], min, scale, max));
+				}
+				return;
+			}
+			case UINT16: {
+				short[] input = (short[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i] & 0xffff, min, scale, max));
+				}
+				return;
+			}
+			case INT16: {
+				short[] input = (short[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i], min, scale, max));
+				}
+				return;
+			}
+			case UINT32: {
+				int[] input = (int[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i] & 0xffffffffL, min, scale, max));
+				}
+				return;
+			}
+			case INT32: {
+				int[] input = (int[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i], min, scale, max));
+				}
+				return;
+			}
+			case FLOAT32: {
+				float[] input = (float[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i], min, scale, max));
+				}
+				return;
+			}
+			case FLOAT64: {
+				double[] input = (double[]) data;
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(input[i], min, scale, max));
+				}
+				return;
+			}
+			default:
+				for (int i = 0; i < numElements; i++) {
+					output.put(i, window(VoxelArrays.get(data, dataType, i), min, scale,
+						max));
+				}
+		}
+	}
+
+	private static int window(double value, double min, double scale, int max) {
+		double result = (value - min) * scale;
+		if (!(result > 0)) {
+			return 0;
+		}
+		return result >= max ? max : (int) (result + 0.5);
+	}
+
+	private double getWindowMin(DataType dataType) {
+		if (windowMin != null) {
+			return windowMin;
+		}
+		switch (dataType) {
+			case INT8:
+				return Byte.MIN_VALUE;
+			case INT16:
+				return Short.MIN_VALUE;
+			case INT32:
+				return Integer.MIN_VALUE;
+			case INT64:
+				return Long.MIN_VALUE;
+			default:
+				return 0;
+		}
+	}
+
+	private double getWindowMax(DataType dataType) {
+		if (windowMax != null) {
+			return windowMax;
+		}
+		switch (dataType) {
+			case UINT8:
+				return 0xff;
+			case INT8:
+				return Byte.MAX_VALUE;
+			case UINT16:
+				return 0xffff;
+			case INT16:
+				return Short.MAX_VALUE;
+			case UINT32:
+				return 0xffffffffL;
+			case INT32:
+				return Integer.MAX_VALUE;
+			case UINT64:
+				return 0x1p64;
+			case INT64:
+				return Long.MAX_VALUE;
+			default:
+				return 1;
+		}
+	}
+
+	private ByteBuffer allocate(int numElements, int elementSize) {
+		return ByteBuffer.allocate(numElements * elementSize).order(byteOrder);
+	}
+
+	private ByteBuffer swap(Object data, int numElements) {
+		if (data instanceof byte[]) {
+			return ByteBuffer.wrap((byte[]) data, 0, numElements);
+		}
+		ByteBuffer result;
+		if (data instanceof short[]) {
+			result = allocate(numElements, Short.BYTES);
+			result.asShortBuffer().put((short[]) data, 0, numElements);
+		}
+		else if (data instanceof int[]) {
+			result = allocate(numElements, Integer.BYTES);
+			result.asIntBuffer().put((int[]) data, 0, numElements);
+		}
+		else if (data instanceof long[]) {
+			result = allocate(numElements, Long.BYTES);
+			result.asLongBuffer().put((long[]) data, 0, numElements);
+		}
+		else if (data instanceof float[]) {
+			result = allocate(numElements, Float.BYTES);
+			result.asFloatBuffer().put((float[]) data, 0, numElements);
+		}
+		else if (data instanceof double[]) {
+			result = allocate(numElements, Double.BYTES);
+			result.asDoubleBuffer().put((double[]) data, 0, numElements);
+		}
+		else {
+			throw new IllegalArgumentException("Data " + data.getClass() +
+				" not supported");
+		}
+		return result;
+	}
+}
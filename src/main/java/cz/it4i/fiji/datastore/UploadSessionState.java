@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * State of an upload session reported to a client that resumes an upload.
+ */
+@Getter
+@AllArgsConstructor
+public final class UploadSessionState {
+
+	@Getter
+	@AllArgsConstructor
+	public static final class Block {
+
+		private final long[] gridPosition;
+
+		private final int time;
+
+		private final int channel;
+
+		private final int angle;
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static final class PartialBlock {
+
+		private final Block block;
+
+		/**
+		 * Numbers of received parts.
+		 */
+		private final List<Integer> parts;
+	}
+
+	private final String id;
+
+	/**
+	 * Number of blocks written in the session.
+	 */
+	private final int committed;
+
+	/**
+	 * Declared blocks not yet written or null if blocks were not declared when
+	 * the session was created.
+	 */
+	private final List<Block> missing;
+
+	/**
+	 * Blocks uploaded in parts that are not yet completed.
+	 */
+	private final List<PartialBlock> partial;
+}
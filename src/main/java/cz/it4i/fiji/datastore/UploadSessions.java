@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.NotFoundException;
+
+import org.apache.commons.io.FileUtils;
+
+import cz.it4i.fiji.datastore.BaseBlockRequestHandler.BlockIdentification;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Upload sessions of clients writing many blocks. A session records blocks
+ * that were written in it, so a client whose upload failed can ask for blocks
+ * that are still missing and resume. Large blocks can be uploaded in parts,
+ * received parts are kept in a temporary directory of the session until the
+ * block is completed. Sessions are kept in memory and expire when they are
+ * not used.
+ */
+@Log4j2
+final class UploadSessions {
+
+	private static final long EXPIRATION_HOURS = 24;
+
+	private static final int MAX_PARTS = 10000;
+
+	private static UploadSessions instance;
+
+	static synchronized UploadSessions getInstance() {
+		if (instance == null) {
+			instance = new UploadSessions();
+		}
+		return instance;
+	}
+
+	private final Cache<String, Session> sessions = CacheBuilder.newBuilder()
+		.expireAfterAccess(EXPIRATION_HOURS, TimeUnit.HOURS).removalListener(
+			notification -> ((Session) notification.getValue()).deleteParts())
+		.build();
+
+	/**
+	 * @param datasetKey identifies dataset version and resolution levels the
+	 *          session writes to
+	 * @param expected blocks the client is going to write or null
+	 */
+	Session create(String datasetKey, List<BlockIdentification> expected) {
+		Session result = new Session(UUID.randomUUID().toString(), datasetKey,
+			expected);
+		sessions.put(result.id, result);
+		return result;
+	}
+
+	Session get(String id, String datasetKey) {
+		Session result = sessions.getIfPresent(id);
+		if (result == null) {
+			throw new NotFoundException("Upload session " + id + " does not exist");
+		}
+		if (!result.datasetKey.equals(datasetKey)) {
+			throw new IllegalArgumentException("Upload session " + id +
+				" belongs to other dataset");
+		}
+		return result;
+	}
+
+	void remove(String id, String datasetKey) {
+		get(id, datasetKey);
+		sessions.invalidate(id);
+	}
+
+	static final class Session {
+
+		private final String id;
+
+		private final String datasetKey;
+
+		private final Map<String, BlockIdentification> expected;
+
+		private final Set<String> committed = new HashSet<>();
+
+		private Path partsDirectory;
+
+		private Session(String id, String datasetKey,
+			List<BlockIdentification> expected)
+		{
+			this.id = id;
+			this.datasetKey = datasetKey;
+			if (expected != null) {
+				this.expected = new LinkedHashMap<>();
+				expected.forEach(bi -> this.expected.put(bi.toString(), bi));
+			}
+			else {
+				this.expected = null;
+			}
+		}
+
+		synchronized void commit(BlockIdentification bi) throws IOException {
+			committed.add(bi.toString());
+			Path blockDirectory = getBlockDirectory(bi);
+			if (blockDirectory != null) {
+				FileUtils.deleteDirectory(blockDirectory.toFile());
+			}
+		}
+
+		/**
+		 * @return file for the part, existing part is replaced by the new one
+		 */
+		synchronized Path getPartPath(BlockIdentification bi, int part)
+			throws IOException
+		{
+			if (part < 0 || MAX_PARTS <= part) {
+				throw new IllegalArgumentException("Part " + part +
+					" is not valid, parts are numbered from 0 to " + (MAX_PARTS - 1));
+			}
+			if (partsDirectory == null) {
+				partsDirectory = Files.createTempDirectory("datastore-upload-");
+			}
+			Path blockDirectory = partsDirectory.resolve(getDirectoryName(bi));
+			Files.createDirectories(blockDirectory);
+			return blockDirectory.resolve(Integer.toString(part));
+		}
+
+		/**
+		 * @return stream of all parts of the block in order of their numbers
+		 */
+		synchronized InputStream openParts(BlockIdentification bi)
+			throws IOException
+		{
+			List<Integer> parts = getParts(getBlockDirectory(bi));
+			if (parts.isEmpty()) {
+				throw new IllegalArgumentException("No part of block " + bi +
+					" was received");
+			}
+			if (parts.get(parts.size() - 1) != parts.size() - 1) {
+				throw new IllegalArgumentException("Parts of block " + bi +
+					" are not complete, received parts are " + parts);
+			}
+			Path blockDirectory = getBlockDirectory(bi);
+			List<Path> paths = new ArrayList<>(parts.size());
+			for (Integer part : parts) {
+				paths.add(blockDirectory.resolve(Integer.toString(part)));
+			}
+			Enumeration<InputStream> streams = new Enumeration<>() {
+
+				private int next;
+
+				@Override
+				public boolean hasMoreElements() {
+					return next < paths.size();
+				}
+
+				@Override
+				public InputStream nextElement() {
+					try {
+						return Files.newInputStream(paths.get(next++));
+					}
+					catch (IOException exc) {
+						throw new IllegalStateException("Part of block " + bi +
+							" cannot be read", exc);
+					}
+				}
+			};
+			return new SequenceInputStream(streams);
+		}
+
+		synchronized UploadSessionState getState() throws IOException {
+			List<UploadSessionState.Block> missing = null;
+			if (expected != null) {
+				missing = new ArrayList<>();
+				for (Map.Entry<String, BlockIdentification> entry : expected
+					.entrySet())
+				{
+					if (!committed.contains(entry.getKey())) {
+						missing.add(toBlock(entry.getValue()));
+					}
+				}
+			}
+			List<UploadSessionState.PartialBlock> partial = new ArrayList<>();
+			if (partsDirectory != null) {
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(
+					partsDirectory))
+				{
+					for (Path blockDirectory : ds) {
+						List<Integer> parts = getParts(blockDirectory);
+						if (!parts.isEmpty()) {
+							partial.add(new UploadSessionState.PartialBlock(toBlock(
+								fromDirectoryName(blockDirectory.getFileName().toString())),
+								parts));
+						}
+					}
+				}
+			}
+			return new UploadSessionState(id, committed.size(), missing, partial);
+		}
+
+		private void deleteParts() {
+			Path directory;
+			synchronized (this) {
+				directory = partsDirectory;
+				partsDirectory = null;
+			}
+			if (directory == null) {
+				return;
+			}
+			try {
+				FileUtils.deleteDirectory(directory.toFile());
+			}
+			catch (IOException exc) {
+				log.warn("Deleting of parts of upload session {}", id, exc);
+			}
+		}
+
+		private Path getBlockDirectory(BlockIdentification bi) {
+			return partsDirectory != null ? partsDirectory.resolve(getDirectoryName(
+				bi)) : null;
+		}
+
+		private static List<Integer> getParts(Path blockDirectory)
+			throws IOException
+		{
+			if (blockDirectory == null || !Files.isDirectory(blockDirectory)) {
+				return Collections.emptyList();
+			}
+			TreeMap<Integer, Path> result = new TreeMap<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(
+				blockDirectory))
+			{
+				for (Path path : ds) {
+					String name = path.getFileName().toString();
+					// parts being received are not listed
+					if (DatasetHandler.WHOLE_NUMBER_PATTERN.matcher(name).matches()) {
+						result.put(Integer.valueOf(name), path);
+					}
+				}
+			}
+			return new ArrayList<>(result.keySet());
+		}
+
+		private static String getDirectoryName(BlockIdentification bi) {
+			return bi.toString().replace('/', '_');
+		}
+
+		private static BlockIdentification fromDirectoryName(String name) {
+			List<BlockIdentification> result = new ArrayList<>(1);
+			BlockIdentification.extract(name.replace('_', '/'), result);
+			return result.get(0);
+		}
+
+		private static UploadSessionState.Block toBlock(BlockIdentification bi) {
+			return new UploadSessionState.Block(bi.getGridPosition(), bi.getTime(),
+				bi.getChannel(), bi.getAngle());
+		}
+	}
+}
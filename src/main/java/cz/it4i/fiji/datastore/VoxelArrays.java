@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Access to voxels of primitive arrays backing data blocks as doubles. Unsigned
+ * types are converted with their unsigned value, UINT64 and INT64 values
+ * beyond 2^53 lose precision.
+ */
+final class VoxelArrays {
+
+	private static final double TWO_64 = 0x1p64;
+
+	private VoxelArrays() {}
+
+	static double get(Object data, DataType dataType, int index) {
+		switch (dataType) {
+			case UINT8:
+				return ((byte[]) data)[index] & 0xff;
+			case INT8:
+				return ((byte[]) data)[index];
+			case UINT16:
+				return ((short[]) data)[index] & 0xffff;
+			case INT16:
+				return ((short[]) data)[index];
+			case UINT32:
+				return ((int[]) data)[index] & 0xffffffffL;
+			case INT32:
+				return ((int[]) data)[index];
+			case UINT64: {
+				long value = ((long[]) data)[index];
+				return value >= 0 ? value : value + TWO_64;
+			}
+			case INT64:
+				return ((long[]) data)[index];
+			case FLOAT32:
+				return ((float[]) data)[index];
+			case FLOAT64:
+				return ((double[]) data)[index];
+			default:
+				throw new IllegalArgumentException("Datatype " + dataType +
+					" not supported");
+		}
+	}
+
+	/**
+	 * Stores the value rounded to the nearest integer for integer types.
+	 */
+	static void set(Object data, DataType dataType, int index, double value) {
+		switch (dataType) {
+			case UINT8:
+			case INT8:
+				((byte[]) data)[index] = (byte) Math.round(value);
+				break;
+			case UINT16:
+			case INT16:
+				((short[]) data)[index] = (short) Math.round(value);
+				break;
+			case UINT32:
+			case INT32:
+				((int[]) data)[index] = (int) Math.round(value);
+				break;
+			case UINT64:
+				((long[]) data)[index] = value >= Long.MAX_VALUE ? (long) (value -
+					TWO_64) : Math.round(value);
+				break;
+			case INT64:
+				((long[]) data)[index] = Math.round(value);
+				break;
+			case FLOAT32:
+				((float[]) data)[index] = (float) value;
+				break;
+			case FLOAT64:
+				((double[]) data)[index] = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Datatype " + dataType +
+					" not supported");
+		}
+	}
+}
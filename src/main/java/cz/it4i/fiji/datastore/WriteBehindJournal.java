@@ -0,0 +1,755 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Local journal of blocks written through {@link WriteBehindN5Writer}. A write
+ * is acknowledged as soon as its record is durable in the journal - records
+ * appended concurrently are written by one committer thread and synced
+ * together. Journaled blocks are kept in memory until flusher threads
+ * materialize them into the storage, only the latest change of a block is
+ * materialized. A journal segment is deleted when all its records are
+ * materialized or superseded. Records left in the journal are replayed when
+ * the journal is opened. A journal directory is owned by one process at a
+ * time, other processes configured with the same directory (e.g. processes
+ * writing other resolutions) write blocks directly.
+ */
+@Log4j2
+final class WriteBehindJournal {
+
+	private static final int MAGIC = 0x574a524e;
+
+	private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final long RETRY_DELAY_SECONDS = 1;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final String LOCK_FILE = "journal.lock";
+
+	private static final byte KIND_WRITE = 1;
+
+	private static final byte KIND_DELETE = 2;
+
+	private static WriteBehindJournal instance;
+
+	private static boolean ownedElsewhere;
+
+	/**
+	 * @return journal of the process or null if the journal directory is owned
+	 *         by another process
+	 */
+	static synchronized WriteBehindJournal getInstance() {
+		if (instance == null && !ownedElsewhere) {
+			Path path = ApplicationConfiguration.getJournalPath();
+			WriteBehindJournal journal = new WriteBehindJournal(path,
+				ApplicationConfiguration.getJournalPendingSize(),
+				ApplicationConfiguration.getJournalFlushThreads());
+			try {
+				if (journal.open(DatasetFilesystemHandler::createWriter)) {
+					instance = journal;
+				}
+				else {
+					ownedElsewhere = true;
+					log.warn("Journal {} is owned by another process, blocks are " +
+						"written directly", path);
+				}
+			}
+			catch (IOException exc) {
+				throw new IllegalStateException("Journal cannot be opened", exc);
+			}
+		}
+		return instance;
+	}
+
+	@FunctionalInterface
+	interface WriterFactory {
+
+		N5Writer create(Path basePath) throws IOException;
+	}
+
+	/**
+	 * Block that is journaled but not yet materialized. Deletion of a block is
+	 * kept as an entry without block.
+	 */
+	static final class Entry {
+
+		private final long sequence;
+
+		private final N5Writer target;
+
+		private final String pathName;
+
+		private final long[] gridPosition;
+
+		private final DatasetAttributes attributes;
+
+		private final DataBlock<?> block;
+
+		private final long weight;
+
+		private volatile boolean durable;
+
+		private Segment segment;
+
+		private boolean released;
+
+		private Entry(long sequence, N5Writer target, String pathName,
+			long[] gridPosition, DatasetAttributes attributes, DataBlock<?> block,
+			long weight)
+		{
+			this.sequence = sequence;
+			this.target = target;
+			this.pathName = pathName;
+			this.gridPosition = gridPosition;
+			this.attributes = attributes;
+			this.block = block;
+			this.weight = weight;
+		}
+
+		long getSequence() {
+			return sequence;
+		}
+
+		long[] getGridPosition() {
+			return gridPosition;
+		}
+
+		/**
+		 * @return size of the journal record of the block
+		 */
+		long getWeight() {
+			return weight;
+		}
+
+		DatasetAttributes getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return journaled block or null if the block was deleted
+		 */
+		DataBlock<?> getBlock() {
+			return block;
+		}
+	}
+
+	private static final class Segment {
+
+		private final Path path;
+
+		private int outstanding;
+
+		private boolean closed;
+
+		private Segment(Path path) {
+			this.path = path;
+		}
+	}
+
+	@AllArgsConstructor
+	private static final class Append {
+
+		private final Entry entry;
+
+		private final byte[] record;
+
+		private final CompletableFuture<Void> committed;
+	}
+
+	private final Path directory;
+
+	private final long maxPendingWeight;
+
+	private final ScheduledExecutorService[] flushers;
+
+	private final NavigableMap<String, Entry> pending =
+		new ConcurrentSkipListMap<>();
+
+	private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+
+	private long sequence;
+
+	private long pendingWeight;
+
+	private FileChannel channel;
+
+	private Segment segment;
+
+	/**
+	 * Holds the lock of the journal directory while the process lives.
+	 */
+	private FileChannel lockChannel;
+
+	WriteBehindJournal(Path directory, long maxPendingWeight, int flushThreads) {
+		this.directory = directory;
+		this.maxPendingWeight = maxPendingWeight;
+		this.flushers = new ScheduledExecutorService[Math.max(1, flushThreads)];
+		for (int i = 0; i < flushers.length; i++) {
+			flushers[i] = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("journal-flusher-" + i)
+					.setDaemon(true).build());
+		}
+	}
+
+	/**
+	 * Replays records left in the journal into storages created by the factory
+	 * and starts accepting new records.
+	 *
+	 * @return false if the journal directory is owned by another process or
+	 *         journal, nothing is replayed or deleted then
+	 */
+	boolean open(WriterFactory factory) throws IOException {
+		Files.createDirectories(directory);
+		if (!lock()) {
+			return false;
+		}
+		List<Path> segments = listSegments();
+		replay(segments, factory);
+		for (Path path : segments) {
+			Files.delete(path);
+		}
+		rollSegment();
+		Thread committer = new Thread(this::commitLoop, "journal-committer");
+		committer.setDaemon(true);
+		committer.start();
+		return true;
+	}
+
+	/**
+	 * Journals the block (or its deletion if block is null) and waits until
+	 * the record is durable.
+	 */
+	void append(N5Writer target, String basePath, String pathName,
+		long[] gridPosition, DatasetAttributes attributes, DataBlock<?> block)
+		throws IOException
+	{
+		String key = getKey(basePath, pathName, gridPosition);
+		byte[] record = encode(basePath, pathName, gridPosition, attributes,
+			block);
+		long weight = block != null ? record.length : 0;
+		reserve(weight);
+		Append append;
+		synchronized (this) {
+			// sequence follows order of records in the journal
+			long entrySequence = ++sequence;
+			ByteBuffer.wrap(record).putLong(Integer.BYTES * 2, entrySequence);
+			append = new Append(new Entry(entrySequence, target, pathName,
+				gridPosition, attributes, block, weight), seal(record),
+				new CompletableFuture<>());
+			Entry previous = pending.put(key, append.entry);
+			if (previous != null) {
+				release(previous);
+			}
+			appends.add(append);
+		}
+		try {
+			append.committed.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Waiting for journal was interrupted");
+		}
+		catch (ExecutionException exc) {
+			if (pending.remove(key, append.entry)) {
+				release(append.entry);
+			}
+			throw new IOException("Block cannot be journaled", exc.getCause());
+		}
+		schedule(key);
+	}
+
+	/**
+	 * @return journaled change of the block or null if there is none
+	 */
+	Entry get(String basePath, String pathName, long[] gridPosition) {
+		return pending.get(getKey(basePath, pathName, gridPosition));
+	}
+
+	/**
+	 * @return all journaled changes of blocks of the dataset
+	 */
+	List<Entry> list(String basePath, String pathName) {
+		String prefix = getPrefix(basePath, pathName);
+		return new ArrayList<>(pending.subMap(prefix, prefix + Character.MAX_VALUE)
+			.values());
+	}
+
+	/**
+	 * Materializes all journaled changes under the base path prefix and waits
+	 * for them. It is used before versions are moved or deleted.
+	 */
+	void flush(String basePathPrefix) throws IOException {
+		NavigableMap<String, Entry> entries = pending.subMap(basePathPrefix,
+			true, basePathPrefix + Character.MAX_VALUE, false);
+		while (!entries.isEmpty()) {
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if (entry.getValue().durable) {
+					String key = entry.getKey();
+					try {
+						getFlusher(key).submit(() -> {
+							materialize(key);
+							return null;
+						}).get();
+					}
+					catch (InterruptedException exc) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Flushing was interrupted");
+					}
+					catch (ExecutionException exc) {
+						throw new IOException("Journaled block " + key +
+							" cannot be materialized", exc.getCause());
+					}
+				}
+			}
+			if (!entries.isEmpty()) {
+				// appends of some blocks are not yet durable
+				try {
+					Thread.sleep(10);
+				}
+				catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Flushing was interrupted");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Materializes journaled change of the block and waits for it.
+	 */
+	void flush(String basePath, String pathName, long[] gridPosition)
+		throws IOException
+	{
+		flush(getKey(basePath, pathName, gridPosition));
+	}
+
+	private void commitLoop() {
+		List<Append> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(appends.take());
+				appends.drainTo(batch);
+				commit(batch);
+			}
+			catch (InterruptedException exc) {
+				return;
+			}
+			catch (IOException | RuntimeException exc) {
+				log.error("Writing to journal", exc);
+				batch.forEach(append -> append.committed.completeExceptionally(exc));
+				// records after a torn record would not be replayed
+				try {
+					rollSegment();
+				}
+				catch (IOException exc2) {
+					log.error("Rolling of journal segment", exc2);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Append> batch) throws IOException {
+		for (Append append : batch) {
+			synchronized (this) {
+				if (channel.size() >= SEGMENT_SIZE) {
+					channel.force(false);
+					rollSegment();
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(append.record);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				if (!append.entry.released) {
+					append.entry.segment = segment;
+					segment.outstanding++;
+				}
+			}
+		}
+		// one sync for the whole group
+		channel.force(false);
+		for (Append append : batch) {
+			append.entry.durable = true;
+			append.committed.complete(null);
+		}
+	}
+
+	private void schedule(String key) {
+		getFlusher(key).execute(() -> {
+			try {
+				materialize(key);
+			}
+			catch (IOException | RuntimeException exc) {
+				log.warn("Materializing of journaled block {}", key, exc);
+				getFlusher(key).schedule(() -> schedule(key), RETRY_DELAY_SECONDS,
+					TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	/**
+	 * Changes of one block are always materialized by the same flusher thread.
+	 */
+	private ScheduledExecutorService getFlusher(String key) {
+		return flushers[Math.floorMod(key.hashCode(), flushers.length)];
+	}
+
+	/**
+	 * Materializes the latest change of the block, changes superseded by it
+	 * are skipped.
+	 */
+	private void materialize(String key) throws IOException {
+		Entry entry = pending.get(key);
+		if (entry == null || !entry.durable) {
+			return;
+		}
+		if (entry.block != null) {
+			entry.target.writeBlock(entry.pathName, entry.attributes, entry.block);
+		}
+		else {
+			entry.target.deleteBlock(entry.pathName, entry.gridPosition);
+		}
+		if (pending.remove(key, entry)) {
+			release(entry);
+		}
+	}
+
+	private synchronized void reserve(long weight) throws IOException {
+		// a single block larger than the limit is let through alone
+		while (pendingWeight > 0 && pendingWeight + weight > maxPendingWeight) {
+			try {
+				wait();
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Waiting for journal was interrupted");
+			}
+		}
+		pendingWeight += weight;
+	}
+
+	private synchronized void release(Entry entry) {
+		if (entry.released) {
+			return;
+		}
+		entry.released = true;
+		pendingWeight -= entry.weight;
+		notifyAll();
+		Segment entrySegment = entry.segment;
+		if (entrySegment != null && --entrySegment.outstanding == 0 &&
+			entrySegment.closed)
+		{
+			deleteSegment(entrySegment);
+		}
+	}
+
+	private boolean lock() throws IOException {
+		FileChannel result = FileChannel.open(directory.resolve(LOCK_FILE),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = result.tryLock();
+		}
+		catch (OverlappingFileLockException exc) {
+			// held by another journal of this process
+			lock = null;
+		}
+		if (lock == null) {
+			result.close();
+			return false;
+		}
+		lockChannel = result;
+		return true;
+	}
+
+	private synchronized void rollSegment() throws IOException {
+		Segment previous = segment;
+		long number = previous != null ? getSegmentNumber(previous.path) + 1 : 0;
+		Path path = directory.resolve(String.format(SEGMENT_PREFIX + "%016d" +
+			SEGMENT_SUFFIX, number));
+		FileChannel newChannel = FileChannel.open(path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		if (channel != null) {
+			channel.close();
+		}
+		channel = newChannel;
+		segment = new Segment(path);
+		if (previous != null) {
+			previous.closed = true;
+			if (previous.outstanding == 0) {
+				deleteSegment(previous);
+			}
+		}
+	}
+
+	private static void deleteSegment(Segment deleted) {
+		try {
+			Files.deleteIfExists(deleted.path);
+		}
+		catch (IOException exc) {
+			log.warn("Deleting of journal segment {}", deleted.path, exc);
+		}
+	}
+
+	private List<Path> listSegments() throws IOException {
+		List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory,
+			SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			ds.forEach(result::add);
+		}
+		result.sort(null);
+		return result;
+	}
+
+	private static long getSegmentNumber(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name
+			.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	@AllArgsConstructor
+	private static final class Replayed {
+
+		private final long sequence;
+
+		private final Path basePath;
+
+		private final String pathName;
+
+		private final long[] gridPosition;
+
+		private final DataBlock<?> block;
+	}
+
+	private void replay(List<Path> segments, WriterFactory factory)
+		throws IOException
+	{
+		Map<String, Replayed> latest = new HashMap<>();
+		for (Path path : segments) {
+			readSegment(path, latest);
+		}
+		Map<Path, N5Writer> writers = new HashMap<>();
+		for (Replayed replayed : latest.values()) {
+			sequence = Math.max(sequence, replayed.sequence);
+			if (!Files.isDirectory(replayed.basePath)) {
+				log.info("Journaled block of {} skipped, dataset does not exist",
+					replayed.basePath);
+				continue;
+			}
+			N5Writer writer = writers.get(replayed.basePath);
+			if (writer == null) {
+				writer = factory.create(replayed.basePath);
+				writers.put(replayed.basePath, writer);
+			}
+			if (replayed.block == null) {
+				writer.deleteBlock(replayed.pathName, replayed.gridPosition);
+				continue;
+			}
+			DatasetAttributes attributes = writer.getDatasetAttributes(
+				replayed.pathName);
+			if (attributes == null) {
+				log.info("Journaled block of {} skipped, dataset does not exist",
+					replayed.pathName);
+				continue;
+			}
+			writer.writeBlock(replayed.pathName, attributes, replayed.block);
+		}
+		if (!latest.isEmpty()) {
+			log.info("{} journaled blocks replayed", latest.size());
+		}
+	}
+
+	private static void readSegment(Path path, Map<String, Replayed> latest)
+		throws IOException
+	{
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(path))))
+		{
+			while (true) {
+				byte[] body;
+				long checksum;
+				try {
+					int length = input.readInt();
+					if (length <= 0) {
+						throw new EOFException();
+					}
+					body = new byte[length];
+					input.readFully(body);
+					checksum = input.readInt() & 0xffffffffL;
+				}
+				catch (EOFException exc) {
+					// the end of the segment or a record torn by a crash
+					return;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if (crc.getValue() != checksum) {
+					log.warn("Journal segment {} contains damaged record", path);
+					return;
+				}
+				Replayed replayed = decode(body);
+				String key = getKey(replayed.basePath.toString(), replayed.pathName,
+					replayed.gridPosition);
+				Replayed previous = latest.get(key);
+				if (previous == null || previous.sequence < replayed.sequence) {
+					latest.put(key, replayed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record is length of its body, body and CRC32 of the body. Sequence is
+	 * filled in when the record is appended.
+	 */
+	private static byte[] encode(String basePath, String pathName,
+		long[] gridPosition, DatasetAttributes attributes, DataBlock<?> block)
+		throws IOException
+	{
+		ByteArrayOutputStream result = new ByteArrayOutputStream(block != null
+			? block.getNumElements() * 8 + 256 : 256);
+		try (DataOutputStream output = new DataOutputStream(result)) {
+			output.writeInt(0);
+			output.writeInt(MAGIC);
+			output.writeLong(0);
+			output.writeByte(block != null ? KIND_WRITE : KIND_DELETE);
+			output.writeUTF(basePath);
+			output.writeUTF(pathName);
+			writeLongs(output, gridPosition);
+			if (block != null) {
+				output.writeUTF(attributes.getDataType().toString());
+				output.writeInt(block.getSize().length);
+				for (int size : block.getSize()) {
+					output.writeInt(size);
+				}
+				output.writeInt(block.getNumElements());
+				ByteBuffer data = block.toByteBuffer();
+				output.writeInt(data.remaining());
+				output.write(data.array(), data.arrayOffset() + data.position(), data
+					.remaining());
+			}
+			output.writeInt(0);
+		}
+		return result.toByteArray();
+	}
+
+	private static byte[] seal(byte[] record) {
+		int length = record.length - Integer.BYTES * 2;
+		CRC32 crc = new CRC32();
+		crc.update(record, Integer.BYTES, length);
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(0, length);
+		buffer.putInt(record.length - Integer.BYTES, (int) crc.getValue());
+		return record;
+	}
+
+	private static Replayed decode(byte[] body) throws IOException {
+		try (DataInputStream input = new DataInputStream(
+			new ByteArrayInputStream(body)))
+		{
+			if (input.readInt() != MAGIC) {
+				throw new IOException("Journal record is not valid");
+			}
+			long recordSequence = input.readLong();
+			byte kind = input.readByte();
+			Path basePath = Paths.get(input.readUTF());
+			String pathName = input.readUTF();
+			long[] gridPosition = readLongs(input);
+			DataBlock<?> block = null;
+			if (kind == KIND_WRITE) {
+				DataType dataType = DataType.fromString(input.readUTF());
+				int[] size = new int[input.readInt()];
+				for (int i = 0; i < size.length; i++) {
+					size[i] = input.readInt();
+				}
+				int numElements = input.readInt();
+				byte[] data = new byte[input.readInt()];
+				input.readFully(data);
+				block = dataType.createDataBlock(size, gridPosition, numElements);
+				block.readData(ByteBuffer.wrap(data));
+			}
+			return new Replayed(recordSequence, basePath, pathName, gridPosition,
+				block);
+		}
+	}
+
+	private static void writeLongs(DataOutputStream output, long[] values)
+		throws IOException
+	{
+		output.writeInt(values.length);
+		for (long value : values) {
+			output.writeLong(value);
+		}
+	}
+
+	private static long[] readLongs(DataInputStream input) throws IOException {
+		long[] result = new long[input.readInt()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = input.readLong();
+		}
+		return result;
+	}
+
+	static String getPrefix(String basePath, String pathName) {
+		return basePath + ":" + (pathName.startsWith("/") ? pathName.substring(1)
+			: pathName) + ":";
+	}
+
+	private static String getKey(String basePath, String pathName,
+		long[] gridPosition)
+	{
+		return getPrefix(basePath, pathName) + Arrays.toString(gridPosition);
+	}
+}
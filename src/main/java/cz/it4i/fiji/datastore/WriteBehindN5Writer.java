@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Writes blocks into {@link WriteBehindJournal} instead of the storage, so a
+ * write returns as soon as the block is durable in the local journal. Reads
+ * see journaled blocks before they are materialized into the storage.
+ * Statistics of journaled blocks are updated when blocks are materialized.
+ * Other processes do not see journaled blocks, so blocks of a dataset served
+ * also by other process are written directly, see
+ * {@link #writeThrough(String)}.
+ */
+public class WriteBehindN5Writer extends N5WriterDecorator {
+
+	/**
+	 * Number of requests for writing directly for every base path prefix
+	 */
+	private static final Map<String, Integer> WRITTEN_THROUGH =
+		new ConcurrentHashMap<>();
+
+	public static N5Writer decorate(N5Writer writer) {
+		if (ApplicationConfiguration.getJournalPath() == null) {
+			return writer;
+		}
+		WriteBehindJournal journal = WriteBehindJournal.getInstance();
+		if (journal == null) {
+			return writer;
+		}
+		return new WriteBehindN5Writer(writer, journal);
+	}
+
+	/**
+	 * Materializes journaled blocks of all versions stored under the base path
+	 * and waits for them. It is used before versions are moved or deleted.
+	 */
+	public static void flush(String basePathPrefix) throws IOException {
+		if (ApplicationConfiguration.getJournalPath() == null) {
+			return;
+		}
+		WriteBehindJournal journal = WriteBehindJournal.getInstance();
+		if (journal != null) {
+			journal.flush(basePathPrefix);
+		}
+	}
+
+	/**
+	 * Blocks of all versions stored under the base path are written directly
+	 * into the storage until the returned handle is closed. Blocks journaled
+	 * before are materialized before it returns. It is used while the dataset
+	 * is served by other process.
+	 */
+	public static Closeable writeThrough(String basePathPrefix)
+		throws IOException
+	{
+		WRITTEN_THROUGH.merge(basePathPrefix, 1, Integer::sum);
+		Closeable result = () -> WRITTEN_THROUGH.computeIfPresent(basePathPrefix,
+			(prefix, count) -> count > 1 ? count - 1 : null);
+		try {
+			flush(basePathPrefix);
+		}
+		catch (IOException exc) {
+			result.close();
+			throw exc;
+		}
+		return result;
+	}
+
+	private final N5Writer target;
+
+	private final WriteBehindJournal journal;
+
+	WriteBehindN5Writer(N5Writer writer, WriteBehindJournal journal) {
+		super(writer);
+		target = writer;
+		this.journal = journal;
+	}
+
+	@Override
+	public <T> void writeBlock(String pathName,
+		DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+		throws IOException
+	{
+		if (isWrittenThrough()) {
+			journal.flush(getBasePath(), pathName, dataBlock.getGridPosition());
+			super.writeBlock(pathName, datasetAttributes, dataBlock);
+			return;
+		}
+		journal.append(target, getBasePath(), pathName, dataBlock
+			.getGridPosition(), datasetAttributes, dataBlock);
+	}
+
+	@Override
+	public boolean deleteBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		if (isWrittenThrough()) {
+			journal.flush(getBasePath(), pathName, gridPosition);
+			return super.deleteBlock(pathName, gridPosition);
+		}
+		WriteBehindJournal.Entry entry = getEntry(pathName, gridPosition);
+		boolean result = entry != null ? entry.getBlock() != null : super
+			.getBlockVersion(pathName, gridPosition) != null;
+		journal.append(target, getBasePath(), pathName, gridPosition, null, null);
+		return result;
+	}
+
+	/**
+	 * Stored blocks are written directly after journaled changes of the block
+	 * are materialized.
+	 */
+	@Override
+	public void writeRawBlock(String pathName, long[] gridPosition, byte[] data)
+		throws IOException
+	{
+		journal.flush(getBasePath(), pathName, gridPosition);
+		super.writeRawBlock(pathName, gridPosition, data);
+	}
+
+	@Override
+	public DataBlock<?> readBlock(String pathName,
+		DatasetAttributes datasetAttributes, long[] gridPosition) throws IOException
+	{
+		WriteBehindJournal.Entry entry = getEntry(pathName, gridPosition);
+		if (entry != null) {
+			return entry.getBlock();
+		}
+		return super.readBlock(pathName, datasetAttributes, gridPosition);
+	}
+
+	@Override
+	public byte[] readRawBlock(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		WriteBehindJournal.Entry entry = getEntry(pathName, gridPosition);
+		if (entry == null) {
+			return super.readRawBlock(pathName, gridPosition);
+		}
+		if (entry.getBlock() == null) {
+			return null;
+		}
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(result, entry.getAttributes(), entry
+			.getBlock());
+		return result.toByteArray();
+	}
+
+	@Override
+	public String getBlockVersion(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		WriteBehindJournal.Entry entry = getEntry(pathName, gridPosition);
+		if (entry == null) {
+			return super.getBlockVersion(pathName, gridPosition);
+		}
+		return entry.getBlock() != null ? "journal:" + entry.getSequence() : null;
+	}
+
+	/**
+	 * Journaled blocks are not compressed yet, size of the journal record is
+	 * reported for them.
+	 */
+	@Override
+	public long getStoredBlockSize(String pathName, long[] gridPosition)
+		throws IOException
+	{
+		WriteBehindJournal.Entry entry = getEntry(pathName, gridPosition);
+		if (entry == null) {
+			return super.getStoredBlockSize(pathName, gridPosition);
+		}
+		return entry.getBlock() != null ? entry.getWeight() : -1;
+	}
+
+	@Override
+	public void listBlocks(String pathName, StoredBlockConsumer consumer)
+		throws IOException
+	{
+		Map<List<Long>, WriteBehindJournal.Entry> entries = new HashMap<>();
+		for (WriteBehindJournal.Entry entry : journal.list(getBasePath(),
+			pathName))
+		{
+			entries.put(asKey(entry.getGridPosition()), entry);
+		}
+		super.listBlocks(pathName, (gridPosition, storedSize) -> {
+			if (!entries.containsKey(asKey(gridPosition))) {
+				consumer.accept(gridPosition, storedSize);
+			}
+		});
+		for (WriteBehindJournal.Entry entry : entries.values()) {
+			if (entry.getBlock() != null) {
+				consumer.accept(entry.getGridPosition(), entry.getWeight());
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(String pathName) throws IOException {
+		journal.flush(getBasePath() + ":");
+		return super.remove(pathName);
+	}
+
+	@Override
+	public boolean remove() throws IOException {
+		journal.flush(getBasePath() + ":");
+		return super.remove();
+	}
+
+	private boolean isWrittenThrough() {
+		String basePath = getBasePath();
+		return WRITTEN_THROUGH.keySet().stream().anyMatch(basePath::startsWith);
+	}
+
+	private WriteBehindJournal.Entry getEntry(String pathName,
+		long[] gridPosition)
+	{
+		return journal.get(getBasePath(), pathName, gridPosition);
+	}
+
+	private static List<Long> asKey(long[] gridPosition) {
+		return LongStream.of(gridPosition).boxed().collect(Collectors.toList());
+	}
+}
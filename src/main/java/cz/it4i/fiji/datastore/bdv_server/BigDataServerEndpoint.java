@@ -22,6 +22,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
@@ -53,13 +54,13 @@ public class BigDataServerEndpoint {
 	@Path("{" + UUID + "}/{" + VERSION_PARAM + "}")
 	public Response getCell(@PathParam(UUID) String uuid,
 		@PathParam(VERSION_PARAM) String version,
-		@QueryParam(P_PARAM) String cellString)
+		@QueryParam(P_PARAM) String cellString, @Context Request request)
 	{
 		CellHandlerTS ts = cellHandlerTSProducer.produce(uri.getBaseUri(), uuid, version);
 		if (Strings.emptyToNull(cellString) == null) {
 			return ts.runForDataset();
 		}
-		return ts.runForCellOrInit(cellString);
+		return ts.runForCellOrInit(cellString, request);
 	}
 
 	@GET
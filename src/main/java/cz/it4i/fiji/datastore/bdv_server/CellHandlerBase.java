@@ -1,6 +1,5 @@
 package cz.it4i.fiji.datastore.bdv_server;
 
-import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.n5.BdvN5Format;
 import bdv.img.remote.AffineTransform3DJsonSerializer;
@@ -9,6 +8,7 @@ import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import com.google.gson.GsonBuilder;
 import cz.it4i.fiji.datastore.DatasetHandler;
+import cz.it4i.fiji.datastore.RawBlockAccess;
 import cz.it4i.fiji.datastore.core.DatasetDTO;
 import cz.it4i.fiji.datastore.core.HPCDatastoreImageLoaderMetaData;
 import cz.it4i.fiji.datastore.register_service.Dataset;
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Supplier;
 
 import static cz.it4i.fiji.datastore.ApplicationConfiguration.BASE_NAME;
@@ -97,7 +98,8 @@ public abstract class CellHandlerBase<T> {
         {
             if ( this == other )
                 return true;
-            if ( !( other instanceof VolatileGlobalCellCache.Key ) )
+            // keys of versioned cells are equal only to keys of the same class
+            if ( other == null || other.getClass() != getClass() )
                 return false;
             final Key that = ( Key ) other;
             return ( this.index == that.index ) && ( this.timepoint == that.timepoint ) && ( this.setup == that.setup ) && ( this.level == that.level );
@@ -112,6 +114,34 @@ public abstract class CellHandlerBase<T> {
         }
     }
 
+    /**
+     * Key of a cell loaded from the given version of its block, so a cell
+     * cached before the block was written is not used.
+     */
+    static class VersionedKey extends Key
+    {
+        /**
+         * Version of the block or null if the block does not exist
+         */
+        final String version;
+
+        VersionedKey(final Key key, final String version) {
+            super(key.timepoint, key.setup, key.level, key.index, key.parts);
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return super.equals(other) && Objects.equals(version,
+                    ((VersionedKey) other).version);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hashcode + Objects.hashCode(version);
+        }
+    }
+
     CellHandlerBase(DatasetHandler datasetHandler,
                   Supplier<Dataset> datasetSupplier,
                   final String baseUrl, int version, final String datasetName,
@@ -122,7 +152,7 @@ public abstract class CellHandlerBase<T> {
         this.spimdataSupplier = () -> getSpimData(datasetHandler, version);
 
 
-        final N5Writer writer = 0 <= version ? datasetHandler.getWriter(version) : datasetHandler
+        writer = 0 <= version ? datasetHandler.getWriter(version) : datasetHandler
                 .constructChainOfWriters();
         final Map<String, DatasetAttributes> perPathDatasetAttribute =
                 new HashMap<>();
@@ -154,6 +184,8 @@ public abstract class CellHandlerBase<T> {
 
     protected final CacheLoader< Key, Cell< ? >> loader;
 
+    private final N5Writer writer;
+
     protected final LoaderCache< Key, Cell< ? > > cache;
 
 
@@ -201,12 +233,33 @@ public abstract class CellHandlerBase<T> {
 
     HPCDatastoreImageLoaderMetaData metadata = null;
 
+    /**
+     * @return version of block holding the cell, see
+     *         {@link RawBlockAccess#getBlockVersion(String, long[])}
+     */
+    protected String getCellVersion(Key key) throws IOException {
+        final long[] cellMin = new long[] {
+                Long.parseLong( key.parts[ 8 ] ),
+                Long.parseLong( key.parts[ 9 ] ),
+                Long.parseLong( key.parts[ 10 ] ) };
+        String path = BdvN5Format.getPathName(key.setup, key.timepoint, key.level);
+        return RawBlockAccess.of(writer).getBlockVersion(path, getGridPosition(
+                key, cellMin));
+    }
+
     private DataBlock<?> readBlock(
             Map<String, DatasetAttributes> perPathDatasetAttribute, N5Writer writer,
             Key key, int[] cellDims, long[] cellMin) throws IOException
     {
         String path = BdvN5Format.getPathName(key.setup, key.timepoint, key.level);
         DatasetAttributes datasetAttributes = getDatasetAttributes(perPathDatasetAttribute, writer, path);
+        DataBlock<?> result = writer.readBlock(path, datasetAttributes,
+                getGridPosition(key, cellMin));
+
+        return result;
+    }
+
+    private long[] getGridPosition(Key key, long[] cellMin) {
         final int[][] blockSizes = metadata.getPerSetupMipmapInfo().get(key.setup).getSubdivisions();
         long[] gridPosition = new long[cellMin.length];
         for (int i = 0; i < gridPosition.length; i++) {
@@ -218,10 +271,7 @@ public abstract class CellHandlerBase<T> {
 			}*/
             gridPosition[i] = cellMin[i] / blockSizes[key.level][i];
         }
-        DataBlock<?> result = writer.readBlock(path, datasetAttributes,
-                gridPosition);
-
-        return result;
+        return gridPosition;
     }
 
     /**
@@ -7,8 +7,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 
 import lombok.extern.log4j.Log4j2;
@@ -16,6 +19,7 @@ import net.imglib2.img.cell.Cell;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import cz.it4i.fiji.datastore.DatasetHandler;
+import cz.it4i.fiji.datastore.EntityTagBuilder;
 import cz.it4i.fiji.datastore.core.HPCDatastoreImageLoaderMetaData;
 import cz.it4i.fiji.datastore.register_service.Dataset;
 import mpicbg.spim.data.SpimDataException;
@@ -31,8 +35,19 @@ public class CellHandlerTS  extends CellHandlerBase<Response>
 
 
 
-	@SuppressWarnings("unchecked")
+	@Override
 	public Response runForCellOrInit(final String cellString) {
+		return runForCellOrInit(cellString, null);
+	}
+
+	/**
+	 * @param request used for evaluation of conditional request of a cell
+	 *          against entity tag derived from version of its block, may be null
+	 */
+	@SuppressWarnings("unchecked")
+	public Response runForCellOrInit(final String cellString,
+		final Request request)
+	{
 		final String[] parts = cellString.split("/");
 		if (parts[0].equals("cell"))
 		{
@@ -41,11 +56,24 @@ public class CellHandlerTS  extends CellHandlerBase<Response>
 			final int setup = Integer.parseInt( parts[ 3 ] );
 			final int level = Integer.parseInt( parts[ 4 ] );
 			final Key key = new Key( timepoint, setup, level, index, parts );
+			final VersionedKey versionedKey = getVersionedKey(key);
+			final EntityTag entityTag = versionedKey != null ? new EntityTagBuilder(
+				"cell").add(cellString, versionedKey.version).build() : null;
+			if (request != null && entityTag != null) {
+				final ResponseBuilder notModified = request.evaluatePreconditions(
+					entityTag);
+				if (notModified != null) {
+					return notModified.tag(entityTag).build();
+				}
+			}
 			// TODO - there should be another type
 			byte[] data;
 			try
 			{
-				final Cell< ? > cell = cache.get( key, loader );
+				// cells are cached per version of their block and loaded after the
+				// version was observed, so the data are never older than the tag
+				final Cell< ? > cell = cache.get(versionedKey != null ? versionedKey
+					: key, loader);
 				DataBlock<short[]> dataBlock = (DataBlock<short[]>) cell.getData();
 				if (dataBlock == null) {
 					data = new byte[0];
@@ -61,7 +89,7 @@ public class CellHandlerTS  extends CellHandlerBase<Response>
 			}
 	
 			return Response.ok(new ByteArrayInputStream(data)).type(
-				MediaType.APPLICATION_OCTET_STREAM_TYPE).build();
+				MediaType.APPLICATION_OCTET_STREAM_TYPE).tag(entityTag).build();
 
 		}
 		else if (parts[0].equals("init"))
@@ -101,6 +129,24 @@ public class CellHandlerTS  extends CellHandlerBase<Response>
 		thumbnailProviderTS.runForThumbnail(response);
 	}
 
+	/**
+	 * @return key of the cell with current version of its block or null if the
+	 *         version cannot be determined yet
+	 */
+	private VersionedKey getVersionedKey(final Key key) {
+		if (metadata == null) {
+			// block sizes are known after init
+			return null;
+		}
+		try {
+			return new VersionedKey(key, getCellVersion(key));
+		}
+		catch (IOException exc) {
+			log.warn("getCellVersion", exc);
+			return null;
+		}
+	}
+
 	/**
 	 * Handle request by sending a UTF-8 string.
 	 */
@@ -13,6 +13,7 @@ import static java.util.Optional.ofNullable;
 
 import io.quarkus.runtime.Quarkus;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -255,8 +256,25 @@ class DataServerManagerImpl implements DataServerManager {
 		//@formatter:on
 
 		pb.command(commandAsList);
-		Process process = pb.start();
+		Closeable sharing = applicationConfiguration.getDatasetHandler(uuid)
+			.shareWithOtherProcess();
+		Process process;
+		try {
+			process = pb.start();
+		}
+		catch (IOException exc) {
+			sharing.close();
+			throw exc;
+		}
 		processes.add(process);
+		process.onExit().thenRun(() -> {
+			try {
+				sharing.close();
+			}
+			catch (IOException exc) {
+				log.warn("Sharing of dataset " + uuid, exc);
+			}
+		});
 		String result = String.format("http://%s:%d/", getHostName(), port);
 		log.info("waiting for server starts on {}", result);
 		while (true) {
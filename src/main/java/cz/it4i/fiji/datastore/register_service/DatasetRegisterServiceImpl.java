@@ -65,6 +65,7 @@ import cz.it4i.fiji.datastore.CreateNewDatasetTS.N5Description;
 import cz.it4i.fiji.datastore.CreateNewDatasetTS.N5Description.N5DescriptionBuilder;
 import cz.it4i.fiji.datastore.DatasetHandler;
 import cz.it4i.fiji.datastore.DatasetServerImpl;
+import cz.it4i.fiji.datastore.DatasetServerRegistry;
 import cz.it4i.fiji.datastore.N5Access;
 import cz.it4i.fiji.datastore.core.DatasetDTO;
 import cz.it4i.fiji.datastore.core.MipmapInfoAssembler;
@@ -97,6 +98,9 @@ public class DatasetRegisterServiceImpl {
 	@Inject
 	WriteToVersionListener writeToVersionListener;
 
+	@Inject
+	DatasetServerRegistry serverRegistry;
+
 	private Map<String, Compression> name2compression = null;
 
 	public void addExistingDataset(String uuid) throws IOException,
@@ -181,6 +185,7 @@ public class DatasetRegisterServiceImpl {
 				Strings.nullToEmpty(dataset.getCompression().toUpperCase())));
 			dataset.setChannels(dataset.getChannels() + channels);
 			datasetDAO.persist(dataset);
+			serverRegistry.invalidate(uuid);
 
 		}
 		catch (SecurityException | IllegalStateException exc)
@@ -197,6 +202,7 @@ public class DatasetRegisterServiceImpl {
 		DatasetHandler dfs = configuration.getDatasetHandler(uuid);
 		datasetDAO.delete(dataset);
 		dfs.deleteDataset();
+		serverRegistry.invalidate(uuid);
 
 	}
 
@@ -207,6 +213,7 @@ public class DatasetRegisterServiceImpl {
 		for (Integer version : versionList) {
 			dfs.deleteVersion(version);
 		}
+		serverRegistry.invalidate(uuid);
 	}
 
 	public DatasetDTO query(String uuid) throws SpimDataException {
@@ -267,6 +274,7 @@ public class DatasetRegisterServiceImpl {
 					isVirtual, clearCache), new LoggerProgressWriter(log, "Rebuild"));
 		} finally {
 			executorService.shutdown();
+			serverRegistry.invalidate(uuid);
 		}
 	}
 
@@ -277,6 +285,7 @@ public class DatasetRegisterServiceImpl {
 		Dataset dataset = getDataset(uuid);
 		dataset.setMetadata(commonMetadata);
 		datasetDAO.persist(dataset);
+		serverRegistry.invalidate(uuid);
 	}
 
 	public URI start(String uuid, int[] r, String version, OperationMode mode,
@@ -284,7 +293,9 @@ public class DatasetRegisterServiceImpl {
 	{
 
 		Dataset dataset = getDataset(uuid);
-		if (null == dataset.getBlockDimension(r)) {
+		if (null == dataset.getBlockDimension(r) && !isDownsampledLevel(dataset, r,
+			mode))
+		{
 			throw new NotFoundException("Dataset with UUID=" + uuid +
 				" has not resolution [" + IntStream.of(r).mapToObj(i -> "" + i).collect(
 					Collectors.joining(",")) + "]");
@@ -292,6 +303,7 @@ public class DatasetRegisterServiceImpl {
 		int resolvedVersion = resolveVersion(dataset, version, mode);
 		if (mode.allowsWrite()) {
 			writeToVersionListener.writingToVersion(uuid, resolvedVersion);
+			serverRegistry.invalidate(uuid);
 		}
 		return dataServerManager.startDataServer(dataset.getUuid(), r,
 			resolvedVersion, version.equals("mixedLatest"), mode, timeout);
@@ -305,11 +317,41 @@ public class DatasetRegisterServiceImpl {
 		getNonIdentityResolutions(dataset, resolutions);
 		mergeVersions(dataset);
 		writeToVersionListener.writeToAllVersions(uuid);
+		serverRegistry.invalidate(uuid);
 		return dataServerManager.startDataServer(dataset.getUuid(), resolutions,
 			timeout);
 
 	}
 
+	/**
+	 * Read-only sessions can read a level that is not in the dataset if it can
+	 * be computed from a finer level.
+	 */
+	private static boolean isDownsampledLevel(Dataset dataset, int[] r,
+		OperationMode mode)
+	{
+		if (!ApplicationConfiguration.isDownsamplingEnabled() || !mode
+			.allowsRead() || mode.allowsWrite())
+		{
+			return false;
+		}
+		return dataset.getResolutionLevel().stream().map(
+			ResolutionLevel::getResolutions).anyMatch(resolution -> isFinerLevel(
+				resolution, r));
+	}
+
+	private static boolean isFinerLevel(int[] resolution, int[] r) {
+		if (resolution.length != r.length) {
+			return false;
+		}
+		for (int i = 0; i < r.length; i++) {
+			if (resolution[i] <= 0 || r[i] <= 0 || r[i] % resolution[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void mergeVersions(Dataset dataset) throws IOException {
 		DatasetHandler dfh = configuration.getDatasetHandler(dataset.getUuid());
 		Collection<Integer> versions = dfh.getAllVersions();
@@ -26,7 +26,11 @@ import org.jdom2.input.SAXBuilder;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
 
+import cz.it4i.fiji.datastore.BlockIndexN5Writer;
+import cz.it4i.fiji.datastore.BlockStatisticsN5Writer;
+import cz.it4i.fiji.datastore.ConstantBlockN5Writer;
 import cz.it4i.fiji.datastore.DatasetHandler;
+import cz.it4i.fiji.datastore.SidecarAccess;
 import lombok.extern.log4j.Log4j2;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.SpimDataException;
@@ -128,8 +132,10 @@ public class DatasetS3Handler implements DatasetHandler {
 
 	@Override
 	public N5Writer getWriter(final int versionNumber) throws IOException {
-		return new N5S3Writer(keyRoutines.getDataKey(keyRoutines
-			.getDatasetVersionKey(basePath, versionNumber)), settings);
+		return BlockStatisticsN5Writer.decorate(BlockIndexN5Writer.decorate(
+			ConstantBlockN5Writer.decorate(new N5S3Writer(keyRoutines.getDataKey(
+				keyRoutines.getDatasetVersionKey(basePath, versionNumber)),
+				settings))));
 	}
 
 	@Override
@@ -141,11 +147,13 @@ public class DatasetS3Handler implements DatasetHandler {
 			s3Client.copy(src, dst);
 			s3Client.deleteFile(src);
 		});
+		invalidateBlockSidecars();
 	}
 
 	@Override
 	public void deleteVersion(final int version) throws IOException {
 		deleteAllWithPrefix(getPrefixForVersion(version));
+		invalidateBlockSidecars();
 	}
 
 	@Override
@@ -156,6 +164,7 @@ public class DatasetS3Handler implements DatasetHandler {
 	@Override
 	public void deleteDataset() {
 		deleteAllWithPrefix(basePath);
+		invalidateBlockSidecars();
 	}
 
 	@Override
@@ -203,7 +212,7 @@ public class DatasetS3Handler implements DatasetHandler {
 		String srcVersionPrefix = getPrefixForVersion(srcVersion);
 		String newVersionPrefix = getPrefixForVersion(newVersion);
 		forAllItems(srcVersionPrefix, key -> {
-			if (isBlockKey(key)) {
+			if (isBlockKey(key) || SidecarAccess.isSidecar(key)) {
 				return;
 			}
 			final String dst = key.replaceFirst(srcVersionPrefix, newVersionPrefix);
@@ -211,6 +220,13 @@ public class DatasetS3Handler implements DatasetHandler {
 		});
 	}
 
+	private void invalidateBlockSidecars() {
+		String prefix = keyRoutines.resolve(basePath, s3Client.getDelimiter());
+		BlockIndexN5Writer.invalidate(prefix);
+		BlockStatisticsN5Writer.invalidate(prefix);
+		ConstantBlockN5Writer.invalidate(prefix);
+	}
+
 	private void deleteAllWithPrefix(final String prefix) {
 		forAllItems(prefix, key -> {
 			s3Client.deleteFile(key);
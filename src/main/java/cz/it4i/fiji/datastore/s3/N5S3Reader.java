@@ -1,6 +1,8 @@
 
 package cz.it4i.fiji.datastore.s3;
 
+import static cz.it4i.fiji.datastore.DatasetHandler.WHOLE_NUMBER_PATTERN;
+
 import com.google.common.collect.Maps;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -12,7 +14,9 @@ import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.janelia.saalfeldlab.n5.AbstractGsonReader;
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -20,10 +24,14 @@ import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.DefaultBlockReader;
 import org.janelia.saalfeldlab.n5.GsonAttributesParser;
 
-class N5S3Reader extends AbstractGsonReader {
+import cz.it4i.fiji.datastore.RawBlockAccess;
+
+class N5S3Reader extends AbstractGsonReader implements RawBlockAccess {
 
 	protected static final String JSON_FILE = "attributes.json";
 
+	private static final int BLOCK_KEY_DEPTH = 3;
+
 	protected final S3Client s3Client;
 
 	protected final String basePath;
@@ -103,6 +111,52 @@ class N5S3Reader extends AbstractGsonReader {
 			datasetAttributes, gridPosition);
 	}
 
+	@Override
+	public byte[] readRawBlock(final String pathName, final long[] gridPosition)
+		throws IOException
+	{
+		final String path = getDataBlockPath(pathName, gridPosition);
+		if (!this.s3Client.fileExists(path)) {
+			return null;
+		}
+		try (final InputStream inputStream = this.s3Client.getInputStream(path)) {
+			return inputStream.readAllBytes();
+		}
+	}
+
+	@Override
+	public String getBlockVersion(final String pathName,
+		final long[] gridPosition)
+	{
+		return this.s3Client.getETag(getDataBlockPath(pathName, gridPosition));
+	}
+
+	@Override
+	public long getStoredBlockSize(final String pathName,
+		final long[] gridPosition)
+	{
+		return this.s3Client.getSize(getDataBlockPath(pathName, gridPosition));
+	}
+
+	@Override
+	public void listBlocks(final String pathName,
+		final StoredBlockConsumer consumer)
+	{
+		final String delimiter = s3Client.getDelimiter();
+		final String prefix = keyRoutines.resolve(keyRoutines.resolve(basePath,
+			pathName), delimiter);
+		s3Client.streamAllObjectSummaries(prefix).forEach(summary -> {
+			final String[] names = summary.getKey().substring(prefix.length()).split(
+				Pattern.quote(delimiter));
+			if (names.length != BLOCK_KEY_DEPTH || !Stream.of(names).allMatch(
+				name -> WHOLE_NUMBER_PATTERN.matcher(name).matches()))
+			{
+				return;
+			}
+			consumer.accept(Stream.of(names).mapToLong(Long::parseLong).toArray(),
+				summary.getSize());
+		});
+	}
 
 	@Override
 	public String[] list(final String pathName) throws IOException {
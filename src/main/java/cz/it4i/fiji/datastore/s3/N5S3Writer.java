@@ -8,12 +8,15 @@ import static org.janelia.saalfeldlab.n5.GsonAttributesParser.writeAttributes;
 import com.google.gson.JsonElement;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.janelia.saalfeldlab.n5.DataBlock;
@@ -21,10 +24,12 @@ import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 
+import cz.it4i.fiji.datastore.SidecarAccess;
+
 import lombok.extern.log4j.Log4j2;
 
 @Log4j2
-class N5S3Writer extends N5S3Reader implements N5Writer {
+class N5S3Writer extends N5S3Reader implements N5Writer, SidecarAccess {
 
 	public N5S3Writer(String basePath, final S3Settings settings)
 		throws IOException
@@ -87,6 +92,80 @@ class N5S3Writer extends N5S3Reader implements N5Writer {
 			.toString()), datasetAttributes, dataBlock);
 	}
 
+	@Override
+	public void writeRawBlock(final String pathName, final long[] gridPosition,
+		final byte[] data)
+	{
+		this.s3Client.putBytes(getDataBlockPath(pathName, gridPosition), data);
+	}
+
+	@Override
+	public byte[] readSidecar(final String pathName, final String name)
+		throws IOException
+	{
+		final String path = getSidecarPath(pathName, name);
+		if (!this.s3Client.fileExists(path)) {
+			return null;
+		}
+		try (final InputStream inputStream = this.s3Client.getInputStream(path)) {
+			return inputStream.readAllBytes();
+		}
+	}
+
+	@Override
+	public String getSidecarVersion(final String pathName, final String name) {
+		return this.s3Client.getETag(getSidecarPath(pathName, name));
+	}
+
+	@Override
+	public void writeSidecar(final String pathName, final String name,
+		final byte[] data)
+	{
+		this.s3Client.putBytes(getSidecarPath(pathName, name), data);
+	}
+
+	/**
+	 * The object is put with a precondition on its ETag.
+	 */
+	@Override
+	public String writeSidecar(final String pathName, final String name,
+		final byte[] data, final String version)
+	{
+		return this.s3Client.putBytes(getSidecarPath(pathName, name), data,
+			version);
+	}
+
+	@Override
+	public void deleteSidecar(final String pathName, final String name) {
+		this.s3Client.deleteFile(getSidecarPath(pathName, name));
+	}
+
+	@Override
+	public List<String> listSidecars(final String pathName,
+		final String prefix)
+	{
+		final String sidecarPath = getSidecarPath(pathName, prefix);
+		final String keyPrefix = sidecarPath.substring(0, sidecarPath.length() -
+			SIDECAR_EXTENSION.length());
+		final int nameStart = keyPrefix.length() - prefix.length();
+		final List<String> result = new ArrayList<>();
+		this.s3Client.streamAllObjectSummaries(keyPrefix).forEach(summary -> {
+			final String name = summary.getKey().substring(nameStart);
+			if (!name.contains(this.s3Client.getDelimiter()) && SidecarAccess
+				.isSidecar(name))
+			{
+				result.add(name.substring(0, name.length() - SIDECAR_EXTENSION
+					.length()));
+			}
+		});
+		return result;
+	}
+
+	private String getSidecarPath(final String pathName, final String name) {
+		return keyRoutines.resolve(keyRoutines.resolve(basePath, pathName), name +
+			SIDECAR_EXTENSION);
+	}
+
 	@Override
 	public boolean deleteBlock(final String pathName, final long[] gridPosition)
 		throws IOException
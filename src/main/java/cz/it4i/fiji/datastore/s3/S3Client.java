@@ -8,14 +8,17 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.DeleteObjectsResult;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 
@@ -24,6 +27,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -89,6 +94,91 @@ class S3Client {
 		return this.client.doesObjectExist(settings.getBucket(), name);
 	}
 
+	/**
+	 * @return ETag of the object or null if the object does not exist
+	 */
+	String getETag(final String name) {
+		try {
+			return this.client.getObjectMetadata(settings.getBucket(), name)
+				.getETag();
+		}
+		catch (AmazonS3Exception exc) {
+			if (exc.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return null;
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * @return size of the object in bytes or -1 if the object does not exist
+	 */
+	long getSize(final String name) {
+		try {
+			return this.client.getObjectMetadata(settings.getBucket(), name)
+				.getContentLength();
+		}
+		catch (AmazonS3Exception exc) {
+			if (exc.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return -1;
+			}
+			throw exc;
+		}
+	}
+
+	void putBytes(final String name, final byte[] data) {
+		putObject(name, data, data.length);
+	}
+
+	/**
+	 * The object is put only if it has the ETag (If-Match) or if it does not
+	 * exist (If-None-Match) when the ETag is null.
+	 * 
+	 * @return ETag of the put object or null if the precondition failed
+	 */
+	String putBytes(final String name, final byte[] data, final String eTag) {
+		ObjectMetadata obj = new ObjectMetadata();
+		obj.setContentLength(data.length);
+		PutObjectRequest request = new PutObjectRequest(settings.getBucket(), name,
+			new ByteArrayInputStream(data), obj);
+		if (eTag != null) {
+			request.putCustomRequestHeader("If-Match", "\"" + eTag + "\"");
+		}
+		else {
+			request.putCustomRequestHeader("If-None-Match", "*");
+		}
+		try {
+			return this.client.putObject(request).getETag();
+		}
+		catch (AmazonS3Exception exc) {
+			// conflicting conditional write is reported as 409
+			if (exc.getStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED || exc
+				.getStatusCode() == HttpURLConnection.HTTP_CONFLICT)
+			{
+				return null;
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Unlike {@link #streamObjects(String)} it goes through all pages of the
+	 * listing.
+	 */
+	Stream<S3ObjectSummary> streamAllObjectSummaries(final String prefix) {
+		final List<S3ObjectSummary> result = new LinkedList<>();
+		final ListObjectsV2Request request = new ListObjectsV2Request()
+			.withBucketName(settings.getBucket()).withPrefix(prefix);
+		ListObjectsV2Result listing;
+		do {
+			listing = this.client.listObjectsV2(request);
+			result.addAll(listing.getObjectSummaries());
+			request.setContinuationToken(listing.getNextContinuationToken());
+		}
+		while (listing.isTruncated());
+		return result.stream();
+	}
+
 	boolean directoryExists(final String path) {
 		final ListObjectsV2Request request = new ListObjectsV2Request()
 			.withBucketName(settings.getBucket()).withPrefix(path.toString());
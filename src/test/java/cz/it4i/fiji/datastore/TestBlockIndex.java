@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link BlockIndexN5Writer} shared by writers of several processes.
+ * Indexes are cached per base path, so every process is simulated by a writer
+ * accessing the same directory through its own symbolic link.
+ */
+public class TestBlockIndex {
+
+	private static final String DATASET = "0";
+
+	private static final DatasetAttributes ATTRIBUTES = new DatasetAttributes(
+		new long[] { 16, 16, 1 }, new int[] { 4, 4, 1 }, DataType.UINT32,
+		new RawCompression());
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void changesOfTwoProcessesArePersisted() throws Exception {
+		Path datasetPath = directory.resolve("dataset");
+		N5Writer storage = new FilesystemN5Writer(datasetPath.toString());
+		storage.createDataset(DATASET, ATTRIBUTES);
+		CountDownLatch materializing = new CountDownLatch(1);
+		N5Writer first = BlockIndexN5Writer.decorate(gate(storage, materializing));
+		N5Writer second = BlockIndexN5Writer.decorate(new FilesystemN5Writer(link(
+			datasetPath, "second").toString()));
+		// both indexes are loaded before any block is written
+		assertNull(first.readBlock(DATASET, ATTRIBUTES, new long[] { 0, 0, 0 }));
+		assertNull(second.readBlock(DATASET, ATTRIBUTES, new long[] { 1, 0, 0 }));
+
+		int[] firstData = constructData(3);
+		int[] secondData = constructData(5);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> writing = executor.submit(() -> {
+				first.writeBlock(DATASET, ATTRIBUTES, constructBlock(0, firstData));
+				return null;
+			});
+			await(() -> listMarkers(storage).size() == 1);
+
+			second.writeBlock(DATASET, ATTRIBUTES, constructBlock(1, secondData));
+			await(() -> getPersistedSize(storage, 1) > 0);
+			assertEquals(1, listMarkers(storage).size(),
+				"Marker of the first process should be kept");
+
+			materializing.countDown();
+			writing.get();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		await(() -> listMarkers(storage).isEmpty());
+		assertTrue(getPersistedSize(storage, 0) > 0,
+			"Block of the first process should be in the index");
+		assertTrue(getPersistedSize(storage, 1) > 0,
+			"Block of the second process should be in the index");
+
+		N5Writer third = BlockIndexN5Writer.decorate(new FilesystemN5Writer(link(
+			datasetPath, "third").toString()));
+		assertArrayEquals(firstData, (int[]) third.readBlock(DATASET, ATTRIBUTES,
+			new long[] { 0, 0, 0 }).getData());
+		assertArrayEquals(secondData, (int[]) third.readBlock(DATASET, ATTRIBUTES,
+			new long[] { 1, 0, 0 }).getData());
+	}
+
+	private Path link(Path datasetPath, String name) throws IOException {
+		return Files.createSymbolicLink(directory.resolve(name), datasetPath);
+	}
+
+	private static List<String> listMarkers(N5Writer storage) {
+		try {
+			return SidecarAccess.of(storage).listSidecars(DATASET,
+				BlockIndexN5Writer.DIRTY_SIDECAR);
+		}
+		catch (IOException exc) {
+			throw new AssertionError(exc);
+		}
+	}
+
+	private static int getPersistedSize(N5Writer storage, long x) {
+		try {
+			byte[] data = SidecarAccess.of(storage).readSidecar(DATASET,
+				BlockIndexN5Writer.INDEX_SIDECAR);
+			return data == null ? 0 : BlockIndex.fromByteArray(data, BlockIndex
+				.getGridDimensions(ATTRIBUTES)).getStoredSize(new long[] { x, 0, 0 });
+		}
+		catch (IOException exc) {
+			throw new AssertionError(exc);
+		}
+	}
+
+	private static void await(BooleanSupplier condition)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline,
+				"Condition not met in " + TIMEOUT_MILLIS + " ms");
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Writing waits until the latch is released.
+	 */
+	private static N5Writer gate(N5Writer storage, CountDownLatch latch) {
+		return new N5WriterDecorator(storage) {
+
+			@Override
+			public <T> void writeBlock(String pathName,
+				DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+				throws IOException
+			{
+				try {
+					latch.await();
+				}
+				catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				super.writeBlock(pathName, datasetAttributes, dataBlock);
+			}
+		};
+	}
+
+	private static DataBlock<int[]> constructBlock(long x, int[] data) {
+		return new IntArrayDataBlock(ATTRIBUTES.getBlockSize(), new long[] { x, 0,
+			0 }, data);
+	}
+
+	private static int[] constructData(int seed) {
+		int[] result = new int[4 * 4];
+		Arrays.setAll(result, i -> seed * 100 + i);
+		return result;
+	}
+}
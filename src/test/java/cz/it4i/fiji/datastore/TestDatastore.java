@@ -12,6 +12,8 @@ import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 
+import com.google.common.hash.Hashing;
+
 import io.quarkus.runtime.Quarkus;
 import io.quarkus.test.junit.QuarkusTest;
 import io.restassured.RestAssured;
@@ -22,8 +24,12 @@ import io.restassured.http.ContentType;
 import io.restassured.response.Response;
 import io.restassured.specification.RequestSpecification;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.zip.CRC32C;
 
 import javax.ws.rs.core.Response.Status;
 
@@ -119,6 +125,662 @@ public class TestDatastore {
 		with().baseUri(redirectedURI).post("/stop");
 	}
 
+	@Test
+	public void readBlocksAsSingleBlocks() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] data = constructBlocks(2, 64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(data).post(
+			"/0/0/0/0/0/0/0/1/0/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		String[] blocks = { "/0/0/0/0/0/0", "/10/10/10/0/0/0", "/0/1/0/0/0/0" };
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (String block : blocks) {
+			Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+				.get(block);
+			assertEquals(ContentType.BINARY.toString(), result.contentType(),
+				"expected binary but obtained: " + result.body().asString());
+			expected.writeBytes(result.getBody().asByteArray());
+		}
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.get(String.join("", blocks));
+		assertEquals(ContentType.BINARY.toString(), result.contentType(),
+			"expected binary but obtained: " + result.body().asString());
+		byte[] outputData = result.getBody().asByteArray();
+		assertArrayEquals(expected.toByteArray(), outputData);
+
+		// missing block is sent as its header of size [-1, -1, -1]
+		int sizeOfOneBlock = data.length / 2;
+		ByteBuffer missing = ByteBuffer.wrap(outputData, sizeOfOneBlock, 12);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(-1, missing.getInt());
+		}
+		assertArrayEquals(Arrays.copyOfRange(data, 0, sizeOfOneBlock), Arrays
+			.copyOfRange(outputData, 0, sizeOfOneBlock));
+		assertArrayEquals(Arrays.copyOfRange(data, sizeOfOneBlock, data.length),
+			Arrays.copyOfRange(outputData, sizeOfOneBlock + 12, outputData.length));
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void writeReadTwoBlocksFramed() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] data = constructBlocks(2, 64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(data).post(
+			"/0/0/0/0/0/0/0/1/0/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.get("/0/0/0/0/0/0/0/1/0/0/0/0/10/10/10/0/0/0?format=framed");
+		assertEquals(ContentType.BINARY.toString(), result.contentType(),
+			"expected binary but obtained: " + result.body().asString());
+		ByteBuffer frames = ByteBuffer.wrap(result.getBody().asByteArray());
+		int sizeOfOneBlock = data.length / 2;
+		int numberOfFrames = 0;
+		while (frames.hasRemaining()) {
+			int kind = frames.getInt();
+			long[] position = { frames.getLong(), frames.getLong(), frames
+				.getLong() };
+			assertEquals(0, frames.getInt() + frames.getInt() + frames.getInt());
+			if (position[0] == 10) {
+				assertEquals(1, kind, "block should be missing");
+				for (int i = 0; i < 3; i++) {
+					assertEquals(-1, frames.getInt());
+				}
+			}
+			else {
+				assertEquals(0, kind, "block should exist");
+				byte[] block = new byte[sizeOfOneBlock];
+				frames.get(block);
+				int offset = (int) position[1] * sizeOfOneBlock;
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset +
+					sizeOfOneBlock), block);
+			}
+			numberOfFrames++;
+		}
+		assertEquals(3, numberOfFrames);
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void readStoredBlocks() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] data = constructBlocks(1, 64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(data).post(
+			"/0/0/0/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.get("/0/0/0/0/0/0/10/10/10/0/0/0?format=stored");
+		assertEquals("raw", result.getHeader("X-Datastore-Compression"));
+		ByteBuffer stored = ByteBuffer.wrap(result.getBody().asByteArray());
+		// N5 header of raw block: mode, number of dimensions, dimensions
+		assertEquals(data.length + 4, stored.getInt());
+		assertEquals(0, stored.getShort());
+		assertEquals(3, stored.getShort());
+		byte[] block = new byte[data.length];
+		stored.get(block);
+		assertArrayEquals(data, block);
+		assertEquals(-1, stored.getInt());
+		assertEquals(0, stored.remaining());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void readRegion() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] data = constructOneBlock(64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(data).post(
+			"/0/0/0/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		// x from 32 to 96 - the second half lies in block that does not exist
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.get("/region/32/0/0/64/2/1/0/0/0");
+		assertEquals(ContentType.BINARY.toString(), result.contentType(),
+			"expected binary but obtained: " + result.body().asString());
+		ByteBuffer region = ByteBuffer.wrap(result.getBody().asByteArray());
+		assertEquals(64, region.getInt());
+		assertEquals(2, region.getInt());
+		assertEquals(1, region.getInt());
+		for (int y = 0; y < 2; y++) {
+			byte[] row = new byte[64 * 4];
+			region.get(row);
+			int offset = 12 + (y * 64 + 32) * 4;
+			assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 32 * 4), Arrays
+				.copyOfRange(row, 0, 32 * 4));
+			assertArrayEquals(new byte[32 * 4], Arrays.copyOfRange(row, 32 * 4, 64 *
+				4));
+		}
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void writeReadBinaryBatch() {
+		ByteBuffer batch = ByteBuffer.allocate(Integer.BYTES + 2 *
+			BaseBlockRequestHandler.BINARY_BLOCK_ID_SIZE);
+		batch.putInt(2);
+		for (int y = 0; y < 2; y++) {
+			batch.putLong(0).putLong(y).putLong(0).putInt(0).putInt(0).putInt(0);
+		}
+		byte[] data = constructBlocks(2, 64);
+		byte[] body = Arrays.copyOf(batch.array(), batch.capacity() + data.length);
+		System.arraycopy(data, 0, body, batch.capacity(), data.length);
+
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(body).post(
+			"/batch/write").then().statusCode(Status.OK.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.body(batch.array()).post("/batch/read");
+		assertEquals(ContentType.BINARY.toString(), result.contentType(),
+			"expected binary but obtained: " + result.body().asString());
+		assertArrayEquals(data, result.getBody().asByteArray());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void writeBlocksWithStatus() {
+		byte[] valid = constructOneBlock(64);
+		byte[] tooLarge = constructOneBlock(65);
+		byte[] body = Arrays.copyOf(valid, valid.length + tooLarge.length);
+		System.arraycopy(tooLarge, 0, body, valid.length, tooLarge.length);
+
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.body(body).post("/0/0/2/0/0/0/0/1/2/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), result.getStatusCode());
+		assertEquals("WRITTEN", result.jsonPath().getString("[0].status"));
+		assertEquals("FAILED", result.jsonPath().getString("[1].status"));
+		assertEquals(1, result.jsonPath().getInt("[1].gridPosition[1]"));
+	}
+
+	@Test
+	public void writeRegion() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] data = constructOneBlock(64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(data).post(
+			"/0/0/0/0/0/0");
+		// x from 32 to 96 - patches existing block and block that does not exist
+		byte[] patch = new byte[12 + 64 * 2 * 4];
+		new Random().nextBytes(patch);
+		ByteBuffer.wrap(patch).putInt(64).putInt(2).putInt(1);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(patch).post(
+			"/region/32/0/0/64/2/1/0/0/0").then().statusCode(Status.OK
+				.getStatusCode());
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(patch).post(
+			"/region/32/0/0/64/3/1/0/0/0").then().statusCode(Status.BAD_REQUEST
+				.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		ByteBuffer region = ByteBuffer.wrap(with().baseUri(baseURI).get(
+			"/region/0/0/0/128/3/1/0/0/0").getBody().asByteArray());
+		region.position(12);
+		for (int y = 0; y < 3; y++) {
+			byte[] row = new byte[128 * 4];
+			region.get(row);
+			int offset = 12 + y * 64 * 4;
+			if (y < 2) {
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 32 * 4),
+					Arrays.copyOfRange(row, 0, 32 * 4));
+				assertArrayEquals(Arrays.copyOfRange(patch, 12 + y * 64 * 4, 12 + (y +
+					1) * 64 * 4), Arrays.copyOfRange(row, 32 * 4, 96 * 4));
+			}
+			else {
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 64 * 4),
+					Arrays.copyOfRange(row, 0, 64 * 4));
+				assertArrayEquals(new byte[64 * 4], Arrays.copyOfRange(row, 64 * 4,
+					128 * 4));
+			}
+		}
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void writeStoredBlock() {
+		byte[] data = constructOneBlock(64);
+		// N5 header of raw block followed by size and voxels as sent in plain
+		ByteBuffer stored = ByteBuffer.allocate(data.length + 4);
+		stored.putShort((short) 0).putShort((short) 3).put(data);
+		CRC32C crc = new CRC32C();
+		crc.update(stored.array());
+		ByteBuffer body = ByteBuffer.allocate(stored.capacity() + 8);
+		body.putInt(stored.capacity()).putInt((int) crc.getValue()).put(stored
+			.array());
+
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.body(body.array()).post("/1/0/3/0/0/0?format=stored");
+		assertEquals(Status.OK.getStatusCode(), result.getStatusCode());
+		body.putInt(4, (int) crc.getValue() + 1);
+		result = with().baseUri(baseURI).contentType(ContentType.BINARY).body(body
+			.array()).post("/1/0/4/0/0/0?format=stored");
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), result.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		result = with().baseUri(baseURI).contentType(ContentType.BINARY).get(
+			"/1/0/3/0/0/0");
+		assertArrayEquals(data, result.getBody().asByteArray());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void writeBlockContent() {
+		byte[] data = constructOneBlock(64);
+		ByteBuffer stored = ByteBuffer.allocate(data.length + 4);
+		stored.putShort((short) 0).putShort((short) 3).put(data);
+		CRC32C crc = new CRC32C();
+		crc.update(stored.array());
+		ByteBuffer body = ByteBuffer.allocate(stored.capacity() + 8);
+		body.putInt(stored.capacity()).putInt((int) crc.getValue()).put(stored
+			.array());
+		String hash = Hashing.murmur3_128().hashBytes(stored.array()).toString();
+		String missing = Hashing.murmur3_128().hashInt(0).toString();
+
+		System.setProperty("datastore.blockDeduplication", "true");
+		try {
+			String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+				"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+			with().baseUri(baseURI).contentType(ContentType.BINARY).body(body
+				.array()).post("/1/0/5/0/0/0?format=stored").then().statusCode(
+					Status.OK.getStatusCode());
+			assertEquals(Arrays.asList(hash), with().baseUri(baseURI).contentType(
+				ContentType.JSON).body(Arrays.asList(hash, missing)).post("/contents")
+				.jsonPath().getList("$"));
+			with().baseUri(baseURI).post("/contents/" + hash + "/1/0/6/0/0/0").then()
+				.statusCode(Status.OK.getStatusCode());
+			with().baseUri(baseURI).post("/contents/" + missing + "/1/0/7/0/0/0")
+				.then().statusCode(Status.NOT_FOUND.getStatusCode());
+			assertArrayEquals(data, with().baseUri(baseURI).get("/1/0/6/0/0/0")
+				.getBody().asByteArray());
+			with().baseUri(baseURI).post("/stop");
+		}
+		finally {
+			System.clearProperty("datastore.blockDeduplication");
+		}
+	}
+
+	@Test
+	public void writeConstantBlock() {
+		int dim = 64;
+		ByteBuffer data = ByteBuffer.allocate((dim * dim * dim + 3) * 4);
+		data.putInt(dim).putInt(dim).putInt(dim);
+		while (data.hasRemaining()) {
+			data.putInt(7);
+		}
+
+		System.setProperty("datastore.constantBlocks", "true");
+		try {
+			String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+				"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+			with().baseUri(baseURI).contentType(ContentType.BINARY).body(data
+				.array()).post("/0/5/0/0/0/0").then().statusCode(Status.OK
+					.getStatusCode());
+			assertArrayEquals(data.array(), with().baseUri(baseURI).get(
+				"/0/5/0/0/0/0").getBody().asByteArray());
+			ByteBuffer frame = ByteBuffer.wrap(with().baseUri(baseURI).get(
+				"/0/5/0/0/0/0?format=framed").getBody().asByteArray());
+			assertEquals(2, frame.getInt(), "block should be constant");
+			frame.position(frame.position() + 3 * Long.BYTES + 3 * Integer.BYTES);
+			for (int i = 0; i < 3; i++) {
+				assertEquals(dim, frame.getInt());
+			}
+			assertEquals(7, frame.getInt());
+			assertEquals(0, frame.remaining());
+
+			ByteBuffer occupancy = ByteBuffer.wrap(with().baseUri(baseURI).get(
+				"/occupancy/0/0/0?sizes=true").getBody().asByteArray());
+			with().baseUri(baseURI).post("/stop");
+			occupancy.position(3 * Long.BYTES);
+			byte[] bitmap = new byte[16 * 16 / 8];
+			occupancy.get(bitmap);
+			// block [0,5,0] in grid 16x16x1
+			assertEquals(1, bitmap[10]);
+			int storedSize = occupancy.getInt();
+			assertEquals(true, storedSize > 0 && storedSize < dim,
+				"block should be kept in the map instead of a block file but has " +
+					storedSize + " bytes");
+		}
+		finally {
+			System.clearProperty("datastore.constantBlocks");
+		}
+	}
+
+	@Test
+	public void uploadSession() {
+		ByteBuffer batch = ByteBuffer.allocate(Integer.BYTES + 2 *
+			(3 * Long.BYTES + 3 * Integer.BYTES));
+		batch.putInt(2);
+		for (int y = 2; y < 4; y++) {
+			batch.putLong(0).putLong(y).putLong(0).putInt(0).putInt(0).putInt(0);
+		}
+		byte[] data = constructOneBlock(64);
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		String checksum = String.format("%08x", crc.getValue());
+
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		String session = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.body(batch.array()).post("/uploads").jsonPath().getString("id");
+		with().baseUri(baseURI).contentType(ContentType.BINARY).header(
+			"X-Datastore-CRC32C", checksum).body(data).post("/uploads/" + session +
+				"/0/2/0/0/0/0").then().statusCode(Status.OK.getStatusCode());
+		with().baseUri(baseURI).contentType(ContentType.BINARY).header(
+			"X-Datastore-CRC32C", "00000000").body(data).post("/uploads/" +
+				session + "/0/3/0/0/0/0").then().statusCode(Status.BAD_REQUEST
+					.getStatusCode());
+		assertEquals(1, with().baseUri(baseURI).get("/uploads/" + session)
+			.jsonPath().getList("missing").size());
+
+		int half = data.length / 2;
+		for (int part = 0; part < 2; part++) {
+			byte[] partData = Arrays.copyOfRange(data, part * half, part == 0
+				? half : data.length);
+			CRC32C partCrc = new CRC32C();
+			partCrc.update(partData);
+			with().baseUri(baseURI).contentType(ContentType.BINARY).header(
+				"X-Datastore-CRC32C", String.format("%08x", partCrc.getValue())).body(
+					partData).put("/uploads/" + session + "/0/3/0/0/0/0/parts/" + part)
+				.then().statusCode(Status.OK.getStatusCode());
+		}
+		with().baseUri(baseURI).header("X-Datastore-CRC32C", checksum).post(
+			"/uploads/" + session + "/0/3/0/0/0/0/parts").then().statusCode(
+				Status.OK.getStatusCode());
+		Response state = with().baseUri(baseURI).get("/uploads/" + session);
+		assertEquals(0, state.jsonPath().getList("missing").size());
+		assertEquals(2, state.jsonPath().getInt("committed"));
+		assertArrayEquals(data, with().baseUri(baseURI).get("/0/3/0/0/0/0")
+			.getBody().asByteArray());
+		with().baseUri(baseURI).delete("/uploads/" + session).then().statusCode(
+			Status.OK.getStatusCode());
+		with().baseUri(baseURI).get("/uploads/" + session).then().statusCode(
+			Status.NOT_FOUND.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void conditionalRead() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(
+			constructOneBlock(64)).post("/0/0/0/0/0/0");
+
+		Response result = with().baseUri(baseURI).get("/0/0/0/0/0/0");
+		String eTag = result.getHeader("ETag");
+		assertNotNull(eTag);
+		with().baseUri(baseURI).header("If-None-Match", eTag).get("/0/0/0/0/0/0")
+			.then().statusCode(Status.NOT_MODIFIED.getStatusCode());
+
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(
+			constructOneBlock(64)).post("/0/0/0/0/0/0");
+		with().baseUri(baseURI).header("If-None-Match", eTag).get("/0/0/0/0/0/0")
+			.then().statusCode(Status.OK.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void conditionalWrite() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		with().baseUri(baseURI).contentType(ContentType.BINARY).header("If-Match",
+			"*").body(constructOneBlock(64)).post("/0/1/0/0/0/0").then().statusCode(
+				Status.PRECONDITION_FAILED.getStatusCode());
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(
+			constructOneBlock(64)).post("/0/1/0/0/0/0");
+		String eTag = with().baseUri(baseURI).get("/0/1/0/0/0/0").getHeader(
+			"ETag");
+		assertNotNull(eTag);
+
+		Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+			.header("If-Match", eTag).body(constructOneBlock(64)).post(
+				"/0/1/0/0/0/0");
+		assertEquals(Status.OK.getStatusCode(), result.getStatusCode());
+		String newETag = result.getHeader("ETag");
+		assertEquals(newETag, with().baseUri(baseURI).get("/0/1/0/0/0/0")
+			.getHeader("ETag"));
+		// the block was changed since eTag was read
+		with().baseUri(baseURI).contentType(ContentType.BINARY).header("If-Match",
+			eTag).body(constructOneBlock(64)).post("/0/1/0/0/0/0").then().statusCode(
+				Status.PRECONDITION_FAILED.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+	}
+
+	@Test
+	public void readOccupancy() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(
+			constructOneBlock(64)).post("/1/0/0/0/0/0");
+		Response result = with().baseUri(baseURI).get("/occupancy/0/0/0?sizes=true");
+		with().baseUri(baseURI).post("/stop");
+
+		ByteBuffer occupancy = ByteBuffer.wrap(result.getBody().asByteArray());
+		// grid of dataset 1000x1000x1 with blocks 64x64x64
+		assertEquals(16, occupancy.getLong());
+		assertEquals(16, occupancy.getLong());
+		assertEquals(1, occupancy.getLong());
+		byte[] bitmap = new byte[16 * 16 / 8];
+		occupancy.get(bitmap);
+		assertEquals(2, bitmap[0]);
+		for (int i = 1; i < bitmap.length; i++) {
+			assertEquals(0, bitmap[i]);
+		}
+		assertEquals(true, occupancy.getInt() > 0);
+		assertEquals(0, occupancy.remaining());
+	}
+
+	@Test
+	public void cachedRead() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[] block = constructOneBlock(64);
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(block).post(
+			"/2/0/0/0/0/0");
+		long hits = with().baseUri(baseURI).get().jsonPath().getLong(
+			"blockCache.hits");
+		for (int i = 0; i < 2; i++) {
+			byte[] outputData = with().baseUri(baseURI).contentType(
+				ContentType.BINARY).get("/2/0/0/0/0/0").getBody().asByteArray();
+			assertArrayEquals(block, outputData);
+		}
+		Response result = with().baseUri(baseURI).get();
+		with().baseUri(baseURI).post("/stop");
+		assertEquals(true, result.jsonPath().getLong("blockCache.hits") > hits);
+	}
+
+	@Test
+	public void readDownsampledLevels() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		ByteBuffer block = ByteBuffer.allocate((3 + 64 * 64) * 4);
+		block.putInt(64).putInt(64).putInt(1);
+		while (block.hasRemaining()) {
+			block.putInt(6);
+		}
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(block.array())
+			.post("/0/0/0/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		// [2,2,1] is not populated and [4,4,1] is not in the dataset
+		for (String level : new String[] { "2/2/1", "4/4/1" }) {
+			baseURI = withNoFollowRedirects().get("/datasets/" + uuid + "/" + level +
+				"/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+			Response result = with().baseUri(baseURI).contentType(ContentType.BINARY)
+				.get("/0/0/0/0/0/0");
+			with().baseUri(baseURI).post("/stop");
+			ByteBuffer downsampled = ByteBuffer.wrap(result.getBody().asByteArray());
+			assertEquals(64, downsampled.getInt());
+			assertEquals(64, downsampled.getInt());
+			assertEquals(1, downsampled.getInt());
+			assertEquals(6, downsampled.getInt());
+		}
+	}
+
+	@Test
+	public void readProjection() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		ByteBuffer block = ByteBuffer.allocate((3 + 64 * 64) * 4);
+		block.putInt(64).putInt(64).putInt(1);
+		for (int i = 0; i < 64 * 64; i++) {
+			block.putInt(i % 64);
+		}
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(block.array())
+			.post("/3/0/0/0/0/0");
+		Response max = with().baseUri(baseURI).get(
+			"/projection/192/0/0/64/64/1/0/0/0?operation=max&axis=y");
+		Response mean = with().baseUri(baseURI).get(
+			"/projection/192/0/0/64/64/1/0/0/0?operation=mean&axis=y");
+		with().baseUri(baseURI).post("/stop");
+
+		assertEquals("uint32", max.getHeader(DatasetServerEndpoint.DATA_TYPE_HEADER));
+		ByteBuffer result = ByteBuffer.wrap(max.getBody().asByteArray());
+		assertEquals(64, result.getInt());
+		assertEquals(1, result.getInt());
+		assertEquals(1, result.getInt());
+		for (int i = 0; i < 64; i++) {
+			assertEquals(i, result.getInt());
+		}
+		assertEquals("float64", mean.getHeader(
+			DatasetServerEndpoint.DATA_TYPE_HEADER));
+		result = ByteBuffer.wrap(mean.getBody().asByteArray());
+		result.position(3 * Integer.BYTES);
+		for (int i = 0; i < 64; i++) {
+			assertEquals(i, result.getDouble());
+		}
+	}
+
+	@Test
+	public void readStatistics() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		ByteBuffer block = ByteBuffer.allocate((3 + 64 * 64) * 4);
+		block.putInt(64).putInt(64).putInt(1);
+		for (int i = 0; i < 64 * 64; i++) {
+			block.putInt(i % 64);
+		}
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(block.array())
+			.post("/5/0/0/0/0/0");
+		Response found = with().baseUri(baseURI).get(
+			"/statistics/blocks/0/0/0?maxAbove=62");
+		Response notFound = with().baseUri(baseURI).get(
+			"/statistics/blocks/0/0/0?maxAbove=63");
+		Response region = with().baseUri(baseURI).get(
+			"/statistics/320/0/0/64/64/1/0/0/0");
+		with().baseUri(baseURI).post("/stop");
+
+		assertEquals(1, found.jsonPath().getList("$").size());
+		assertEquals(5, found.jsonPath().getInt("[0].gridPosition[0]"));
+		assertEquals(63, found.jsonPath().getInt("[0].statistics.max"));
+		assertEquals(0, notFound.jsonPath().getList("$").size());
+		assertEquals(1, region.jsonPath().getLong("blocks"));
+		assertEquals(64 * 63, region.jsonPath().getLong("nonZero"));
+		assertEquals(64 * 2016, region.jsonPath().getLong("sum"));
+	}
+
+	@Test
+	public void readWithTransferEncoding() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		ByteBuffer block = ByteBuffer.allocate((3 + 64 * 64) * 4);
+		block.putInt(64).putInt(64).putInt(1);
+		for (int i = 0; i < 64 * 64; i++) {
+			block.putInt(i % 64 * 2);
+		}
+		with().baseUri(baseURI).contentType(ContentType.BINARY).body(block.array())
+			.post("/9/0/0/0/0/0");
+		Response windowed = with().baseUri(baseURI).get(
+			"/9/0/0/0/0/0?encoding=uint8&windowMin=0&windowMax=63");
+		Response littleEndian = with().baseUri(baseURI).get(
+			"/9/0/0/0/0/0?byteOrder=little");
+		with().baseUri(baseURI).post("/stop");
+
+		assertEquals("uint8", windowed.getHeader(
+			DatasetServerEndpoint.DATA_TYPE_HEADER));
+		ByteBuffer result = ByteBuffer.wrap(windowed.getBody().asByteArray());
+		assertEquals(3 * Integer.BYTES + 64 * 64, result.remaining());
+		result.position(3 * Integer.BYTES);
+		for (int i = 0; i < 64 * 64; i++) {
+			int expected = i % 64 < 32 ? (int) Math.round(i % 64 * 2 * 255. / 63)
+				: 255;
+			assertEquals(expected, result.get() & 0xff);
+		}
+		assertEquals("little", littleEndian.getHeader(
+			DatasetServerEndpoint.BYTE_ORDER_HEADER));
+		result = ByteBuffer.wrap(littleEndian.getBody().asByteArray());
+		assertEquals(64, result.getInt());
+		result.position(3 * Integer.BYTES);
+		result.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 64 * 64; i++) {
+			assertEquals(i % 64 * 2, result.getInt());
+		}
+	}
+
+	@Test
+	public void readWithReadahead() {
+		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/new/write?timeout=" + TIMEOUT).getHeader("Location");
+		byte[][] blocks = new byte[3][];
+		for (int i = 0; i < blocks.length; i++) {
+			ByteBuffer block = ByteBuffer.allocate((3 + 64 * 64) * 4);
+			block.putInt(64).putInt(64).putInt(1);
+			while (block.hasRemaining()) {
+				block.putInt(i + 1);
+			}
+			blocks[i] = block.array();
+			with().baseUri(baseURI).contentType(ContentType.BINARY).body(blocks[i])
+				.post("/" + (6 + i) + "/0/0/0/0/0");
+		}
+		with().baseUri(baseURI).post("/stop");
+
+		baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
+			"/1/1/1/latest/read?timeout=" + TIMEOUT).getHeader("Location");
+		assertEquals(Status.OK.getStatusCode(), with().baseUri(baseURI).header(
+			DatasetServerEndpoint.SESSION_HEADER, "scan").post(
+				"/readahead/6/0/0/3/1/1/0/0/0?axis=z").getStatusCode());
+		// cancels only the stream of the other session
+		assertEquals(Status.OK.getStatusCode(), with().baseUri(baseURI).header(
+			DatasetServerEndpoint.SESSION_HEADER, "other").delete(
+				"/readahead/0/0/0").getStatusCode());
+		for (int i = 0; i < blocks.length; i++) {
+			byte[] outputData = with().baseUri(baseURI).header(
+				DatasetServerEndpoint.SESSION_HEADER, "scan").contentType(
+					ContentType.BINARY).get("/" + (6 + i) + "/0/0/0/0/0").getBody()
+				.asByteArray();
+			assertArrayEquals(blocks[i], outputData);
+		}
+		assertEquals(Status.OK.getStatusCode(), with().baseUri(baseURI).header(
+			DatasetServerEndpoint.SESSION_HEADER, "scan").delete("/readahead/0/0/0")
+			.getStatusCode());
+		with().baseUri(baseURI).post("/stop");
+	}
+
 	@Test
 	public void mixedLatest() {
 		String baseURI = withNoFollowRedirects().get("/datasets/" + uuid +
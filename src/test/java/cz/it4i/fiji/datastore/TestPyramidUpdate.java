@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import static io.restassured.RestAssured.with;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import io.quarkus.test.junit.QuarkusTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import javax.inject.Inject;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.junit.jupiter.api.Test;
+
+import cz.it4i.fiji.datastore.register_service.OperationMode;
+import mpicbg.spim.data.SpimDataException;
+
+/**
+ * Drives {@link N5Access} directly in
+ * {@link OperationMode#WRITE_TO_OTHER_RESOLUTIONS}, so updates of a coarser
+ * block scheduled by quickly repeated writes run on the pyramid threads
+ * concurrently with each other.
+ */
+@QuarkusTest()
+public class TestPyramidUpdate {
+
+	private static final int WRITES = 50;
+
+	@Inject
+	ApplicationConfiguration configuration;
+
+	@Test
+	public void lastWriteWinsInCoarserLevel() throws IOException,
+		SpimDataException
+	{
+		String uuid = with().when().contentType("application/json").body(
+			" { \"voxelType\":\"uint32\", \"dimensions\":[1000,1000,1], \"timepoints\": 1, \"channels\": 1, \"angles\": 1, \"voxelUnit\": \"um\", \"voxelResolution\": [0.4, 0.4, 1], \"timepointResolution\": {\"value\": 1,\"unit\":\"min\"}, \"channelResolution\": {\"value\": 0,\"unit\":null}, \"angleResolution\": {\"value\":0 ,\"unit\":null}, \"compression\": \"raw\", \"resolutionLevels\": [ {\"resolutions\":[ 1, 1, 1],\"blockDimensions\":[ 64, 64, 64] }, {\"resolutions\":[ 2, 2, 1],\"blockDimensions\":[ 64, 64, 64]} ]}")
+			.post("/datasets").andReturn().asString();
+		DatasetHandler handler = configuration.getDatasetHandler(uuid);
+		N5Access writing = new N5Access(handler.getSpimData(), handler.getWriter(
+			DatasetHandler.INITIAL_VERSION), Collections.singletonList(new int[] { 2,
+				2, 1 }), OperationMode.WRITE_TO_OTHER_RESOLUTIONS, uuid + ":" +
+					DatasetHandler.INITIAL_VERSION);
+		for (int value = 1; value <= WRITES; value++) {
+			writing.write(new long[] { 0, 0, 0 }, 0, 0, 0, new ByteArrayInputStream(
+				constructBlock(value)));
+		}
+		writing.awaitOtherResolutions();
+
+		N5Access reading = new N5Access(handler.getSpimData(), handler.getWriter(
+			DatasetHandler.INITIAL_VERSION), Collections.singletonList(new int[] { 2,
+				2, 1 }), OperationMode.READ);
+		DataBlock<?> block = reading.read(new long[] { 0, 0, 0 }, 0, 0, 0);
+		assertNotNull(block);
+		assertEquals(WRITES, ((int[]) block.getData())[0]);
+	}
+
+	private static byte[] constructBlock(int value) {
+		ByteBuffer result = ByteBuffer.allocate((3 + 64 * 64) * 4);
+		result.putInt(64).putInt(64).putInt(1);
+		while (result.hasRemaining()) {
+			result.putInt(value);
+		}
+		return result.array();
+	}
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2022 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore;
+
+import static cz.it4i.fiji.datastore.DatasetPathRoutines.getDataDirectory;
+import static cz.it4i.fiji.datastore.DatasetPathRoutines.getDatasetVersionDirectory;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link WriteBehindJournal} and {@link WriteBehindN5Writer} on a
+ * local directory. Journals are created directly, only tests of
+ * {@link DatasetFilesystemHandler} use the journal of the process configured
+ * by {@value #JOURNAL_PATH_PROPERTY}.
+ */
+public class TestWriteBehind {
+
+	private static final String JOURNAL_PATH_PROPERTY = "datastore.journal.path";
+
+	private static final String DATASET = "0";
+
+	private static final DatasetAttributes ATTRIBUTES = new DatasetAttributes(
+		new long[] { 16, 16, 1 }, new int[] { 4, 4, 1 }, DataType.UINT32,
+		new RawCompression());
+
+	@TempDir
+	static Path processDirectory;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void configureJournal() {
+		System.setProperty(JOURNAL_PATH_PROPERTY, processDirectory.resolve(
+			"journal").toString());
+	}
+
+	@AfterAll
+	static void unconfigureJournal() {
+		System.clearProperty(JOURNAL_PATH_PROPERTY);
+	}
+
+	@Test
+	public void readYourWrite() throws IOException {
+		N5Writer storage = createStorage(directory.resolve("dataset"), 1);
+		CountDownLatch materializing = new CountDownLatch(1);
+		WriteBehindJournal journal = openJournal(directory.resolve("journal"));
+		N5Writer writer = new WriteBehindN5Writer(gate(storage, materializing),
+			journal);
+
+		int[] data = constructData(7);
+		writer.writeBlock(DATASET, ATTRIBUTES, constructBlock(0, data));
+		assertNull(storage.readBlock(DATASET, ATTRIBUTES, new long[] { 0, 0, 0 }),
+			"Block should not be materialized yet");
+		assertArrayEquals(data, (int[]) writer.readBlock(DATASET, ATTRIBUTES,
+			new long[] { 0, 0, 0 }).getData());
+
+		materializing.countDown();
+		journal.flush(SidecarAccess.of(storage).getBasePath());
+		assertArrayEquals(data, (int[]) storage.readBlock(DATASET, ATTRIBUTES,
+			new long[] { 0, 0, 0 }).getData());
+	}
+
+	@Test
+	public void replayAfterReopen() throws IOException {
+		N5Writer storage = createStorage(directory.resolve("dataset"), 1);
+		Path journalPath = directory.resolve("journal");
+		WriteBehindJournal journal = openJournal(journalPath);
+		N5Writer writer = new WriteBehindN5Writer(unavailable(storage), journal);
+		int[] data = constructData(11);
+		writer.writeBlock(DATASET, ATTRIBUTES, constructBlock(1, data));
+
+		// segments as a crashed process leaves them
+		Path reopenedPath = directory.resolve("reopened");
+		Files.createDirectories(reopenedPath);
+		for (Path segment : listSegments(journalPath)) {
+			Files.copy(segment, reopenedPath.resolve(segment.getFileName()));
+		}
+		openJournal(reopenedPath);
+
+		DataBlock<?> replayed = storage.readBlock(DATASET, ATTRIBUTES, new long[] {
+			1, 0, 0 });
+		assertNotNull(replayed, "Journaled block should be replayed");
+		assertArrayEquals(data, (int[]) replayed.getData());
+		assertEquals(1, listSegments(reopenedPath).size(),
+			"Replayed segments should be replaced by a new one");
+	}
+
+	@Test
+	public void journalOwnedByOtherIsNotTakenOver() throws IOException {
+		N5Writer storage = createStorage(directory.resolve("dataset"), 1);
+		Path journalPath = directory.resolve("journal");
+		CountDownLatch materializing = new CountDownLatch(1);
+		WriteBehindJournal journal = openJournal(journalPath);
+		N5Writer writer = new WriteBehindN5Writer(gate(storage, materializing),
+			journal);
+		writer.writeBlock(DATASET, ATTRIBUTES, constructBlock(2, constructData(
+			13)));
+		List<Path> segments = listSegments(journalPath);
+
+		assertFalse(new WriteBehindJournal(journalPath, 1 << 20, 1).open(
+			DatasetFilesystemHandler::createWriter));
+		assertEquals(segments, listSegments(journalPath));
+		assertTrue(Files.size(segments.get(0)) > 0,
+			"Segment of the owner should not be truncated");
+		materializing.countDown();
+	}
+
+	@Test
+	public void deleteVersionFlushesJournal() throws IOException {
+		Path datasetPath = directory.resolve("dataset");
+		createStorage(datasetPath, 0);
+		createStorage(datasetPath, 1);
+		DatasetFilesystemHandler handler = new DatasetFilesystemHandler("uuid",
+			datasetPath);
+		N5Writer writer = handler.getWriter(1);
+		assertTrue(writer instanceof WriteBehindN5Writer);
+		writeBlocks(writer);
+
+		handler.deleteVersion(1);
+		assertTrue(WriteBehindJournal.getInstance().list(getDataDirectory(
+			getDatasetVersionDirectory(datasetPath, 1)).toString(), DATASET)
+			.isEmpty());
+		assertFalse(Files.exists(getDatasetVersionDirectory(datasetPath, 1)));
+	}
+
+	@Test
+	public void makeAsInitialVersionFlushesJournal() throws IOException {
+		Path datasetPath = directory.resolve("dataset");
+		createStorage(datasetPath, 1);
+		DatasetFilesystemHandler handler = new DatasetFilesystemHandler("uuid",
+			datasetPath);
+		List<int[]> written = writeBlocks(handler.getWriter(1));
+
+		handler.makeAsInitialVersion(1);
+		assertTrue(WriteBehindJournal.getInstance().list(getDataDirectory(
+			getDatasetVersionDirectory(datasetPath, 1)).toString(), DATASET)
+			.isEmpty());
+		assertFalse(Files.exists(getDatasetVersionDirectory(datasetPath, 1)));
+		N5Writer storage = new FilesystemN5Writer(getDataDirectory(
+			getDatasetVersionDirectory(datasetPath, 0)).toString());
+		for (int i = 0; i < written.size(); i++) {
+			DataBlock<?> block = storage.readBlock(DATASET, ATTRIBUTES, new long[] {
+				i % 4, i / 4, 0 });
+			assertNotNull(block, "Block " + i + " should be moved");
+			assertArrayEquals(written.get(i), (int[]) block.getData());
+		}
+	}
+
+	@Test
+	public void sharedDatasetIsWrittenThrough() throws IOException {
+		Path datasetPath = directory.resolve("dataset");
+		createStorage(datasetPath, 0);
+		DatasetFilesystemHandler handler = new DatasetFilesystemHandler("uuid",
+			datasetPath);
+		N5Writer writer = handler.getWriter(0);
+		List<int[]> written = writeBlocks(writer);
+		String basePath = getDataDirectory(getDatasetVersionDirectory(datasetPath,
+			0)).toString();
+		N5Writer storage = new FilesystemN5Writer(basePath);
+
+		try (Closeable sharing = handler.shareWithOtherProcess()) {
+			assertTrue(WriteBehindJournal.getInstance().list(basePath, DATASET)
+				.isEmpty(), "Journaled blocks should be materialized");
+			assertArrayEquals(written.get(1), (int[]) storage.readBlock(DATASET,
+				ATTRIBUTES, new long[] { 1, 0, 0 }).getData());
+
+			int[] data = constructData(17);
+			writer.writeBlock(DATASET, ATTRIBUTES, constructBlock(0, data));
+			assertTrue(WriteBehindJournal.getInstance().list(basePath, DATASET)
+				.isEmpty(), "Block should be written directly");
+			assertArrayEquals(data, (int[]) storage.readBlock(DATASET, ATTRIBUTES,
+				new long[] { 0, 0, 0 }).getData());
+		}
+	}
+
+	private static WriteBehindJournal openJournal(Path path) throws IOException {
+		WriteBehindJournal result = new WriteBehindJournal(path, 1 << 20, 1);
+		assertTrue(result.open(DatasetFilesystemHandler::createWriter));
+		return result;
+	}
+
+	private static N5Writer createStorage(Path datasetPath, int version)
+		throws IOException
+	{
+		N5Writer result = new FilesystemN5Writer(getDataDirectory(
+			getDatasetVersionDirectory(datasetPath, version)).toString());
+		result.createDataset(DATASET, ATTRIBUTES);
+		return result;
+	}
+
+	private static List<int[]> writeBlocks(N5Writer writer) throws IOException {
+		List<int[]> result = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			int[] data = constructData(i);
+			writer.writeBlock(DATASET, ATTRIBUTES, new IntArrayDataBlock(
+				ATTRIBUTES.getBlockSize(), new long[] { i % 4, i / 4, 0 }, data));
+			result.add(data);
+		}
+		return result;
+	}
+
+	/**
+	 * Materializing waits until the latch is released.
+	 */
+	private static N5Writer gate(N5Writer storage, CountDownLatch latch) {
+		return new N5WriterDecorator(storage) {
+
+			@Override
+			public <T> void writeBlock(String pathName,
+				DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+				throws IOException
+			{
+				try {
+					latch.await();
+				}
+				catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				super.writeBlock(pathName, datasetAttributes, dataBlock);
+			}
+		};
+	}
+
+	/**
+	 * Materializing fails, so journaled blocks stay in the journal.
+	 */
+	private static N5Writer unavailable(N5Writer storage) {
+		return new N5WriterDecorator(storage) {
+
+			@Override
+			public <T> void writeBlock(String pathName,
+				DatasetAttributes datasetAttributes, DataBlock<T> dataBlock)
+				throws IOException
+			{
+				throw new IOException("Storage is not available");
+			}
+		};
+	}
+
+	private static List<Path> listSegments(Path journalPath) throws IOException {
+		List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(journalPath,
+			"journal-*.log"))
+		{
+			ds.forEach(result::add);
+		}
+		result.sort(null);
+		return result;
+	}
+
+	private static DataBlock<int[]> constructBlock(long x, int[] data) {
+		return new IntArrayDataBlock(ATTRIBUTES.getBlockSize(), new long[] { x, 0,
+			0 }, data);
+	}
+
+	private static int[] constructData(int seed) {
+		int[] result = new int[4 * 4];
+		Arrays.setAll(result, i -> seed * 100 + i);
+		return result;
+	}
+}